@@ -0,0 +1,50 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+// The box filter behind ImageScaler.downscale(), on plain pixel arrays so
+// it can be measured off the phone (see scripts/ImageScalerBenchmark.java).
+//
+// The source is read in bands of rows small enough for a fixed buffer, and
+// each scale x scale block of ARGB pixels is averaged into one.
+public class BoxFilter {
+    // Source pixels read per band, 256 KB as ints
+    public static final int BAND_BUFFER_PIXELS = 64 * 1024;
+
+    private BoxFilter() {
+    }
+
+    // Output rows per band when reducing rows of srcWidth pixels by scale
+    public static int bandRows(int srcWidth, int scale, int dstHeight) {
+        int rows = Math.max(BAND_BUFFER_PIXELS / (srcWidth * scale), 1);
+        return Math.max(Math.min(rows, dstHeight), 1);
+    }
+
+    // Average rows * scale source rows of srcWidth pixels into rows rows
+    // of dstWidth pixels
+    public static void downscaleBand(int[] src, int srcWidth, int scale,
+                                     int[] dst, int dstWidth, int rows) {
+        int area = scale * scale;
+        for (int row = 0; row < rows; row++) {
+            int srcRow = row * scale * srcWidth;
+            for (int x = 0; x < dstWidth; x++) {
+                int r = 0, g = 0, b = 0;
+                int i = srcRow + x * scale;
+                for (int dy = 0; dy < scale; dy++, i += srcWidth) {
+                    for (int dx = 0; dx < scale; dx++) {
+                        int c = src[i + dx];
+                        r += (c >> 16) & 0xff;
+                        g += (c >> 8) & 0xff;
+                        b += c & 0xff;
+                    }
+                }
+                dst[row * dstWidth + x] = 0xff000000
+                    | ((r / area) << 16) | ((g / area) << 8) | (b / area);
+            }
+        }
+    }
+}
@@ -8,7 +8,7 @@ package gov.nasa.arc.geocam.geocam;
 
 import gov.nasa.arc.geocam.geocam.util.ForegroundTracker;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -23,7 +23,6 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
-import android.graphics.BitmapFactory;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
@@ -40,7 +39,6 @@ import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.ImageView.ScaleType;
-import java.io.InputStream;
 
 public class CameraPreviewActivity extends Activity {
 
@@ -98,18 +96,16 @@ public class CameraPreviewActivity extends Activity {
         }
 
         try {
-            final BitmapFactory.Options opts = new BitmapFactory.Options();
-            opts.inSampleSize = 4;
-            InputStream in = getContentResolver().openInputStream(mImageUri);
-            Bitmap bitmap = BitmapFactory.decodeStream(in, null, opts);
+            ImageScaler scaler = new ImageScaler(GeoCamMobile.PHOTO_DOWNSCALE_BUDGET_BYTES);
+            Bitmap bitmap = scaler.decode(getContentResolver(), mImageUri, 4);
 
             //Bitmap bitmap = MediaStore.Images.Media.getBitmap(getContentResolver(), mImageUri);
             ImageView imageView = (ImageView)findViewById(R.id.camera_preview_imageview);
             imageView.setAdjustViewBounds(true);
             imageView.setScaleType(ScaleType.CENTER_INSIDE);
             imageView.setImageBitmap(bitmap);
-        } catch (FileNotFoundException e) {
-            Log.d(GeoCamMobile.DEBUG_ID, "Error loading bitmap in CameraPreviewActivity");
+        } catch (IOException e) {
+            Log.d(GeoCamMobile.DEBUG_ID, "Error loading bitmap in CameraPreviewActivity: " + e);
         }
 
         SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
@@ -257,6 +253,16 @@ public class CameraPreviewActivity extends Activity {
     private void deletePhoto() {
         Log.d(GeoCamMobile.DEBUG_ID, "Deleting photo with Uri: " + mImageUri.toString());        
         getContentResolver().delete(mImageUri, null, null);
+
+        // Don't try to upload a photo that no longer exists
+        if (mService != null) {
+            try {
+                mService.cancelUpload(mImageUri.toString());
+            }
+            catch (RemoteException e) {
+                Log.d(GeoCamMobile.DEBUG_ID, "Error talking to upload service while cancelling uri: " + mImageUri.toString() + " - " + e);
+            }
+        }
     }
 }
 
@@ -0,0 +1,244 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import android.util.Log;
+
+// Opens every connection HttpPost and ResumableUpload make, so that they
+// can share what is expensive to set up.
+//
+// The TLS context is built once per process.  All HTTPS connections use
+// its socket factory, so its session cache lets a new connection resume an
+// earlier session instead of doing a full handshake, and HttpURLConnection's
+// own keep-alive pool (kept per host and port) can hand an open connection
+// to the next request.  A connection only goes back to that pool once its
+// response has been read to the end, which is what finish() is for.
+//
+// Counts of requests, new TLS connections and full and resumed handshakes
+// are kept for the whole process and logged with each handshake.
+public class ConnectionManager {
+    private static final String TAG = "ConnectionManager";
+
+    // Idle keep-alive connections kept per server
+    public static final int MAX_IDLE_CONNECTIONS = 4;
+    // TLS session ids remembered to tell resumed handshakes from full ones
+    private static final int MAX_SESSION_IDS = 32;
+
+    private static final Object sLock = new Object();
+    private static SSLSocketFactory sSocketFactory = null;
+    private static HostnameVerifier sHostnameVerifier = null;
+
+    private static int sRequests = 0;
+    private static int sSecureRequests = 0;
+    private static int sSecureConnections = 0;
+    private static int sFullHandshakes = 0;
+    private static int sResumedHandshakes = 0;
+    private static final Map<String,Boolean> sSessionIds = new LinkedHashMap<String,Boolean>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+            return size() > MAX_SESSION_IDS;
+        }
+    };
+
+    static {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+    }
+
+    private ConnectionManager() {
+    }
+
+    public static HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection)(new URL(url)).openConnection();
+        synchronized (sLock) {
+            sRequests++;
+        }
+        if (conn instanceof HttpsURLConnection) {
+            HttpsURLConnection https = (HttpsURLConnection) conn;
+            https.setSSLSocketFactory(getSocketFactory());
+            https.setHostnameVerifier(sHostnameVerifier);
+            synchronized (sLock) {
+                sSecureRequests++;
+            }
+        }
+        return conn;
+    }
+
+    // Read what is left of the response, success or error, so the
+    // connection can be reused.  Never throws; a connection that can't be
+    // drained is simply not reused.
+    public static void finish(HttpURLConnection conn) {
+        InputStream in = null;
+        try {
+            in = conn.getInputStream();
+        } catch (IOException e) {
+            in = conn.getErrorStream();
+        }
+        if (in == null)
+            return;
+        try {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) { }
+        } catch (IOException e) {
+            // not reusable then
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) { }
+        }
+    }
+
+    // "host:port" of url, for keeping track of what each server supports
+    public static String getServer(String url) {
+        try {
+            URL u = new URL(url);
+            return u.getHost().toLowerCase() + ":" + ((u.getPort() >= 0) ? u.getPort() : u.getDefaultPort());
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    public static int getRequestCount() {
+        synchronized (sLock) {
+            return sRequests;
+        }
+    }
+
+    public static int getFullHandshakeCount() {
+        synchronized (sLock) {
+            return sFullHandshakes;
+        }
+    }
+
+    public static int getResumedHandshakeCount() {
+        synchronized (sLock) {
+            return sResumedHandshakes;
+        }
+    }
+
+    // Fraction of HTTPS requests that went over a connection already open,
+    // or -1 before the first one
+    public static double getReuseRatio() {
+        synchronized (sLock) {
+            if (sSecureRequests == 0)
+                return -1;
+            return Math.max(sSecureRequests - sSecureConnections, 0) / (double) sSecureRequests;
+        }
+    }
+
+    private static SSLSocketFactory getSocketFactory() throws IOException {
+        synchronized (sLock) {
+            if (sSocketFactory == null) {
+                // would rather not do this, need to check if there's still a problem
+                // with our ssl certificates on NASA servers.
+                try {
+                    sSocketFactory = new CountingSocketFactory(DisableSSLCertificateCheckUtil.createSocketFactory());
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("ConnectionManager - ssl: " + e);
+                }
+                sHostnameVerifier = DisableSSLCertificateCheckUtil.createHostnameVerifier();
+            }
+            return sSocketFactory;
+        }
+    }
+
+    private static final HandshakeCompletedListener sHandshakeListener = new HandshakeCompletedListener() {
+        public void handshakeCompleted(HandshakeCompletedEvent event) {
+            String id = toHex(event.getSession().getId());
+            synchronized (sLock) {
+                if (id.length() > 0 && sSessionIds.containsKey(id)) {
+                    sResumedHandshakes++;
+                } else {
+                    sFullHandshakes++;
+                    sSessionIds.put(id, Boolean.TRUE);
+                }
+                Log.d(TAG, sRequests + " requests, " + sSecureConnections + " TLS connections ("
+                      + sFullHandshakes + " full handshakes, " + sResumedHandshakes + " resumed), "
+                      + Math.round(100 * getReuseRatio()) + "% of HTTPS requests reused a connection");
+            }
+        }
+    };
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    // Counts the TLS connections opened, and watches their handshakes
+    private static class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory mFactory;
+
+        CountingSocketFactory(SSLSocketFactory factory) {
+            mFactory = factory;
+        }
+
+        private Socket counted(Socket socket) {
+            synchronized (sLock) {
+                sSecureConnections++;
+            }
+            if (socket instanceof SSLSocket)
+                ((SSLSocket) socket).addHandshakeCompletedListener(sHandshakeListener);
+            return socket;
+        }
+
+        public String[] getDefaultCipherSuites() {
+            return mFactory.getDefaultCipherSuites();
+        }
+
+        public String[] getSupportedCipherSuites() {
+            return mFactory.getSupportedCipherSuites();
+        }
+
+        public Socket createSocket() throws IOException {
+            return counted(mFactory.createSocket());
+        }
+
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return counted(mFactory.createSocket(s, host, port, autoClose));
+        }
+
+        public Socket createSocket(String host, int port) throws IOException {
+            return counted(mFactory.createSocket(host, port));
+        }
+
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+            throws IOException {
+            return counted(mFactory.createSocket(host, port, localHost, localPort));
+        }
+
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return counted(mFactory.createSocket(host, port));
+        }
+
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+            return counted(mFactory.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import android.location.Location;
+
+// Decides when a live position is worth sending.  Whoever watches the live
+// track can extrapolate from the last position we sent, using its speed and
+// bearing, so we only need to send another one when the phone has strayed
+// from that prediction by more than the threshold -- or when the heartbeat
+// interval has passed, so the server knows we are still there.
+public class DeadReckoning {
+    private static final double EARTH_RADIUS_METERS = 6371009;
+
+    private Location mLastSent = null;
+
+    // Whether to send location, given the error threshold in meters and
+    // the heartbeat interval in msecs.  Call sent() if you do send it.
+    public boolean shouldSend(Location location, double thresholdMeters, long heartbeatMsecs) {
+        if (mLastSent == null)
+            return true;
+
+        long elapsed = location.getTime() - mLastSent.getTime();
+        if (elapsed >= heartbeatMsecs || elapsed < 0)
+            return true;
+
+        double[] predicted = predict(mLastSent, location.getTime());
+        float[] error = new float[1];
+        Location.distanceBetween(predicted[0], predicted[1],
+                                 location.getLatitude(), location.getLongitude(), error);
+
+        // Don't chase GPS noise: a fix can't tell us more than its accuracy
+        double threshold = thresholdMeters;
+        if (location.hasAccuracy())
+            threshold = Math.max(threshold, location.getAccuracy());
+        return error[0] > threshold;
+    }
+
+    public void sent(Location location) {
+        mLastSent = new Location(location);
+    }
+
+    public void reset() {
+        mLastSent = null;
+    }
+
+    // Latitude and longitude from moving along from's bearing at from's
+    // speed until time.  Without a speed and bearing, we assume the phone
+    // stays put.
+    static double[] predict(Location from, long time) {
+        double lat = from.getLatitude();
+        double lon = from.getLongitude();
+        if (!from.hasSpeed() || !from.hasBearing() || time <= from.getTime())
+            return new double[] { lat, lon };
+
+        double distance = from.getSpeed() * (time - from.getTime()) / 1000.0;
+        double angular = distance / EARTH_RADIUS_METERS;
+        double bearing = Math.toRadians(from.getBearing());
+        double lat1 = Math.toRadians(lat);
+        double lon1 = Math.toRadians(lon);
+
+        double lat2 = Math.asin(Math.sin(lat1) * Math.cos(angular)
+                                + Math.cos(lat1) * Math.sin(angular) * Math.cos(bearing));
+        double lon2 = lon1 + Math.atan2(Math.sin(bearing) * Math.sin(angular) * Math.cos(lat1),
+                                        Math.cos(angular) - Math.sin(lat1) * Math.sin(lat2));
+        return new double[] { Math.toDegrees(lat2), Math.toDegrees(lon2) };
+    }
+}
@@ -0,0 +1,162 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+
+// Downsampled copies of captured photos, kept in app-private files so each
+// one is decoded and encoded once rather than on every upload attempt.
+//
+// The variants asked for are made together from a single decode of the
+// original: the smallest downsample factor is decoded directly and each
+// larger factor is scaled down from the variant before it, all within
+// ImageScaler's memory budget.  Only one photo is processed at a time.
+// Which variants a photo gets, and at what JPEG quality, is up to the
+// caller (see GeoCamService.getDownsampleFactors()).
+public class DerivativeCache {
+    private static final String TAG = "DerivativeCache";
+    private static final String CACHE_DIR = "derivatives";
+
+    private final Context mContext;
+    private final File mDir;
+    private final int[] mAllFactors;
+    private final ImageScaler mScaler = new ImageScaler(GeoCamMobile.PHOTO_DOWNSCALE_BUDGET_BYTES);
+
+    public DerivativeCache(Context context) {
+        mContext = context;
+        mDir = context.getDir(CACHE_DIR, Context.MODE_PRIVATE);
+        mAllFactors = downsampledOnly(GeoCamMobile.PHOTO_DOWNSAMPLE_FACTORS);
+    }
+
+    // Make the variants of the photo at the given downsample factors that
+    // aren't cached yet.  Factors of 1 (the original) are ignored.
+    public synchronized void generate(String uri, int[] factors, int quality) throws IOException {
+        int[] missing = new int[factors.length];
+        int count = 0;
+        for (int factor : downsampledOnly(factors)) {
+            if (!getFile(uri, factor).exists())
+                missing[count++] = factor;
+        }
+        if (count == 0)
+            return;
+        int[] needed = new int[count];
+        System.arraycopy(missing, 0, needed, 0, count);
+
+        long start = System.currentTimeMillis();
+        mScaler.resetPeak();
+
+        Bitmap bitmap = mScaler.decode(mContext.getContentResolver(), Uri.parse(uri), needed[0]);
+
+        try {
+            int previousFactor = needed[0];
+            for (int factor : needed) {
+                if (factor != previousFactor) {
+                    int scale = factor / previousFactor;
+                    Bitmap smaller = mScaler.downscale(bitmap, scale);
+                    bitmap.recycle();
+                    bitmap = smaller;
+                    previousFactor = factor;
+                }
+                write(bitmap, getFile(uri, factor), quality);
+            }
+        } finally {
+            bitmap.recycle();
+        }
+
+        // Per-megapixel cost, for comparing devices and budgets
+        long elapsed = System.currentTimeMillis() - start;
+        double megapixels = (double) mScaler.getSourceWidth() * mScaler.getSourceHeight() / 1e6;
+        Log.d(TAG, "Made " + needed.length + " variants of " + uri + " at quality " + quality + " ("
+              + mScaler.getSourceWidth() + "x" + mScaler.getSourceHeight() + ") in " + elapsed + " ms, "
+              + (megapixels > 0 ? Math.round(elapsed / megapixels) : 0) + " ms/MP, peak native heap +"
+              + (mScaler.getPeakHeapBytes() / 1024) + " KB");
+    }
+
+    // The cached variant of a photo at the given downsample factor, made
+    // now if it isn't cached yet
+    public File getDerivative(String uri, int factor, int quality) throws IOException {
+        File file = getFile(uri, factor);
+        if (!file.exists()) {
+            generate(uri, new int[] { factor }, quality);
+            if (!file.exists())
+                throw new FileNotFoundException("No " + factor + "x variant of " + uri);
+        }
+        return file;
+    }
+
+    // Size of the cached variant, or -1 if it isn't cached
+    public long getCachedLength(String uri, int factor) {
+        File file = getFile(uri, factor);
+        return file.exists() ? file.length() : -1;
+    }
+
+    // Call once every variant of the photo has been uploaded
+    public synchronized void evict(String uri) {
+        for (int factor : mAllFactors) {
+            File file = getFile(uri, factor);
+            if (file.exists() && !file.delete())
+                Log.w(TAG, "Could not delete " + file);
+        }
+    }
+
+    public synchronized void evictAll() {
+        File[] files = mDir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    // Downsampled factors only, smallest first
+    private static int[] downsampledOnly(int[] factors) {
+        int count = 0;
+        for (int factor : factors) {
+            if (factor > 1)
+                count++;
+        }
+        int[] result = new int[count];
+        count = 0;
+        for (int factor : factors) {
+            if (factor > 1)
+                result[count++] = factor;
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private File getFile(String uri, int factor) {
+        // content://media/external/images/media/42 -> content___media_..._42_4x.jpg
+        return new File(mDir, uri.replaceAll("[^A-Za-z0-9]", "_") + "_" + factor + "x.jpg");
+    }
+
+    // Write to a temporary file first so an interrupted write never
+    // leaves a truncated variant in the cache
+    private void write(Bitmap bitmap, File file, int quality) throws IOException {
+        File tmp = new File(mDir, file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out))
+                throw new IOException("Could not encode " + file.getName());
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp + " to " + file);
+        }
+    }
+}
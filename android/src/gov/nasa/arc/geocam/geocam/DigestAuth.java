@@ -0,0 +1,310 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+// HTTP Digest authentication (RFC 2617, qop=auth) for HttpPost and
+// ResumableUpload, so the password never crosses the wire and plain HTTP
+// is safe to use.
+//
+// HttpURLConnection can't answer a challenge for a streamed body, so we
+// answer it ahead of time: the last challenge from each server is cached
+// and every request signs itself with that nonce and the next nonce count.
+// The first request to a server is preceded by an empty POST to fetch a
+// challenge.
+//
+// Challenges are cached per thread.  A server may turn down nonce counts
+// that arrive out of order as replays.  The upload lanes send side by side,
+// but each sends from its own thread one request at a time, so with a
+// nonce of its own each thread's counts always arrive in order.
+//
+// When the server turns a request down with a new challenge (usually
+// because the nonce went stale) update() says so, and the caller sends the
+// request again if it still has the body, or reports STATUS_RENEWED so the
+// upload is retried later.
+public class DigestAuth {
+    private static final String TAG = "DigestAuth";
+
+    // Our code for a request turned down because the server wanted a new
+    // nonce.  The new one is cached, so trying again should work.
+    public static final int STATUS_RENEWED = -5;
+
+    private static volatile boolean sEnabled = false;
+    // Bumped by reset() to drop every thread's challenges
+    private static volatile int sGeneration = 0;
+    private static final ThreadLocal<Challenges> sChallenges = new ThreadLocal<Challenges>() {
+        @Override
+        protected Challenges initialValue() {
+            return new Challenges();
+        }
+    };
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    // One thread's challenges, by server
+    private static class Challenges {
+        int generation = sGeneration;
+        final Map<String,Challenge> byOrigin = new HashMap<String,Challenge>();
+    }
+
+    // The parts of a server's WWW-Authenticate: Digest challenge we need.
+    // A null nonce means the server didn't ask us to authenticate.
+    private static class Challenge {
+        String realm;
+        String nonce;
+        String opaque;
+        String algorithm;
+        boolean qopAuth;
+        boolean stale;
+        int nonceCount = 0;
+    }
+
+    private DigestAuth() {
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    // Forget all cached challenges, e.g. because the user name changed
+    public static void reset() {
+        sGeneration++;
+    }
+
+    // This thread's cached challenges
+    private static Map<String,Challenge> getChallenges() {
+        Challenges challenges = sChallenges.get();
+        int generation = sGeneration;
+        if (challenges.generation != generation) {
+            challenges.byOrigin.clear();
+            challenges.generation = generation;
+        }
+        return challenges.byOrigin;
+    }
+
+    // Sign conn, a POST not yet sent, with the cached challenge for its
+    // server, fetching one first if there is none
+    public static void authorize(HttpURLConnection conn, String username, String password)
+        throws IOException {
+        URL url = conn.getURL();
+        String origin = getOrigin(url);
+
+        Challenge challenge = getChallenges().get(origin);
+        if (challenge == null) {
+            prime(url);
+            challenge = getChallenges().get(origin);
+        }
+        if (challenge == null || challenge.nonce == null)
+            return;
+
+        String uri = url.getFile();
+        if (uri.length() == 0)
+            uri = "/";
+
+        challenge.nonceCount++;
+        conn.setRequestProperty("Authorization", createHeader(challenge, "POST", uri, username, password));
+    }
+
+    // Look at the response to a request made with authorize(), on the same
+    // thread.  Picks up a next nonce or a new challenge, and returns true if
+    // the request was turned down only because the nonce we used is no
+    // longer good.
+    public static boolean update(HttpURLConnection conn, int status) {
+        if (!sEnabled)
+            return false;
+
+        String origin = getOrigin(conn.getURL());
+        String info = getHeader(conn, "Authentication-Info");
+        if (info != null) {
+            String nextNonce = parseParams(info).get("nextnonce");
+            if (nextNonce != null) {
+                Challenge challenge = getChallenges().get(origin);
+                if (challenge != null) {
+                    challenge.nonce = nextNonce;
+                    challenge.nonceCount = 0;
+                }
+            }
+        }
+
+        if (status != 401)
+            return false;
+        Challenge fresh = parseChallenge(conn);
+        if (fresh == null)
+            return false;
+
+        Challenge old = getChallenges().put(origin, fresh);
+        // Same nonce and not stale: the server just doesn't like our
+        // user name or password
+        boolean renewed = fresh.stale || old == null || old.nonce == null
+            || !old.nonce.equals(fresh.nonce);
+        Log.d(TAG, "New challenge from " + origin + (renewed ? "" : ", credentials refused"));
+        return renewed;
+    }
+
+    // Fetch a challenge with an empty POST
+    private static void prime(URL url) throws IOException {
+        HttpURLConnection conn = ConnectionManager.open(url.toString());
+        conn.setDoOutput(true);
+        conn.setUseCaches(false);
+        conn.setRequestMethod("POST");
+        conn.setFixedLengthStreamingMode(0);
+        conn.getOutputStream().close();
+        int status = conn.getResponseCode();
+
+        Challenge challenge = (status == 401) ? parseChallenge(conn) : null;
+        if (challenge == null) {
+            Log.w(TAG, url.getHost() + " answered " + status + " without a Digest challenge");
+            challenge = new Challenge();
+        }
+        getChallenges().put(getOrigin(url), challenge);
+        ConnectionManager.finish(conn);
+    }
+
+    private static Challenge parseChallenge(HttpURLConnection conn) {
+        for (Map.Entry<String,List<String>> entry : conn.getHeaderFields().entrySet()) {
+            if (entry.getKey() == null || !entry.getKey().equalsIgnoreCase("WWW-Authenticate"))
+                continue;
+            for (String value : entry.getValue()) {
+                if (!value.regionMatches(true, 0, "Digest ", 0, 7))
+                    continue;
+                Map<String,String> params = parseParams(value.substring(7));
+                Challenge challenge = new Challenge();
+                challenge.realm = params.get("realm");
+                challenge.nonce = params.get("nonce");
+                challenge.opaque = params.get("opaque");
+                challenge.algorithm = params.get("algorithm");
+                challenge.stale = "true".equalsIgnoreCase(params.get("stale"));
+                String qop = params.get("qop");
+                if (qop != null) {
+                    for (String option : qop.split(",")) {
+                        if (option.trim().equals("auth"))
+                            challenge.qopAuth = true;
+                    }
+                    if (!challenge.qopAuth) {
+                        Log.w(TAG, "Server only offers qop=" + qop + ", which we don't support");
+                        continue;
+                    }
+                }
+                if (challenge.realm == null || challenge.nonce == null)
+                    continue;
+                return challenge;
+            }
+        }
+        return null;
+    }
+
+    private static String createHeader(Challenge challenge, String method, String uri,
+                                       String username, String password) {
+        String cnonce = Long.toHexString(sRandom.nextLong());
+        String nc = String.format("%08x", challenge.nonceCount);
+
+        String ha1 = md5(username + ":" + challenge.realm + ":" + password);
+        if ("MD5-sess".equalsIgnoreCase(challenge.algorithm))
+            ha1 = md5(ha1 + ":" + challenge.nonce + ":" + cnonce);
+        String ha2 = md5(method + ":" + uri);
+        String response;
+        if (challenge.qopAuth) {
+            response = md5(ha1 + ":" + challenge.nonce + ":" + nc + ":" + cnonce + ":auth:" + ha2);
+        } else {
+            response = md5(ha1 + ":" + challenge.nonce + ":" + ha2);
+        }
+
+        StringBuilder sb = new StringBuilder("Digest ");
+        sb.append("username=\"" + quote(username) + "\"");
+        sb.append(", realm=\"" + quote(challenge.realm) + "\"");
+        sb.append(", nonce=\"" + quote(challenge.nonce) + "\"");
+        sb.append(", uri=\"" + quote(uri) + "\"");
+        if (challenge.algorithm != null)
+            sb.append(", algorithm=" + challenge.algorithm);
+        if (challenge.qopAuth)
+            sb.append(", qop=auth, nc=" + nc + ", cnonce=\"" + cnonce + "\"");
+        sb.append(", response=\"" + response + "\"");
+        if (challenge.opaque != null)
+            sb.append(", opaque=\"" + quote(challenge.opaque) + "\"");
+        return sb.toString();
+    }
+
+    // Parse comma-separated name=value pairs, values optionally quoted
+    static Map<String,String> parseParams(String s) {
+        Map<String,String> params = new HashMap<String,String>();
+        int i = 0;
+        int n = s.length();
+        while (i < n) {
+            while (i < n && (s.charAt(i) == ',' || Character.isWhitespace(s.charAt(i))))
+                i++;
+            int eq = s.indexOf('=', i);
+            if (eq < 0)
+                break;
+            String name = s.substring(i, eq).trim().toLowerCase();
+            i = eq + 1;
+            StringBuilder value = new StringBuilder();
+            if (i < n && s.charAt(i) == '"') {
+                i++;
+                while (i < n && s.charAt(i) != '"') {
+                    if (s.charAt(i) == '\\' && i + 1 < n)
+                        i++;
+                    value.append(s.charAt(i++));
+                }
+                i++;
+            } else {
+                while (i < n && s.charAt(i) != ',')
+                    value.append(s.charAt(i++));
+            }
+            params.put(name, value.toString().trim());
+        }
+        return params;
+    }
+
+    private static String getHeader(HttpURLConnection conn, String name) {
+        for (Map.Entry<String,List<String>> entry : conn.getHeaderFields().entrySet()) {
+            if (entry.getKey() != null && entry.getKey().equalsIgnoreCase(name)
+                && !entry.getValue().isEmpty())
+                return entry.getValue().get(0);
+        }
+        return null;
+    }
+
+    private static String getOrigin(URL url) {
+        int port = (url.getPort() >= 0) ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost().toLowerCase() + ":" + port;
+    }
+
+    private static String quote(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    private static String md5(String s) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
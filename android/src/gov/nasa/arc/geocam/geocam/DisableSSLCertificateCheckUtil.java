@@ -8,17 +8,15 @@
 
 package gov.nasa.arc.geocam.geocam;
 
-import java.io.IOException;
-import java.net.URL;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 
 import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
@@ -56,32 +54,20 @@ public final class DisableSSLCertificateCheckUtil {
     }
 
     /**
-     * Disable trust checks for SSL connections.
+     * Socket factory for a new TLS context that trusts any certificate.
      */
-    public static void disableChecks() throws NoSuchAlgorithmException, KeyManagementException {
-        try {
-            new URL("https://0.0.0.0/").getContent();
-        } catch (IOException e) {
-            // This invocation will always fail, but it will register the
-            // default SSL provider to the URL class.
-        }
-
-        try {
-            SSLContext sslc;
-
-            sslc = SSLContext.getInstance("TLS");
-
-            TrustManager[] trustManagerArray = { new NullX509TrustManager() };
-            sslc.init(null, trustManagerArray, null);
-
-            HttpsURLConnection.setDefaultSSLSocketFactory(sslc.getSocketFactory());
-            HttpsURLConnection.setDefaultHostnameVerifier(new NullHostnameVerifier());
+    public static SSLSocketFactory createSocketFactory()
+        throws NoSuchAlgorithmException, KeyManagementException {
+        SSLContext sslc = SSLContext.getInstance("TLS");
+        TrustManager[] trustManagerArray = { new NullX509TrustManager() };
+        sslc.init(null, trustManagerArray, null);
+        return sslc.getSocketFactory();
+    }
 
-        }
-        catch(Exception e) {
-            e.printStackTrace();
-        }
+    /**
+     * Host name verifier that accepts any host.
+     */
+    public static HostnameVerifier createHostnameVerifier() {
+        return new NullHostnameVerifier();
     }
 }
-
-
@@ -0,0 +1,81 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+// Cheap LocationFilters that drop fixes which can't be right.
+public class FixGates {
+    private static final double METERS_PER_DEGREE = 6371009.0 * Math.PI / 180;
+
+    private FixGates() {
+    }
+
+    // Drops fixes the GPS itself says are worse than maxAccuracy meters,
+    // such as the first few after a cold start.  Fixes without an
+    // accuracy go through.
+    public static class Accuracy implements LocationFilter {
+        private final float mMaxAccuracy;
+
+        public Accuracy(float maxAccuracyMeters) {
+            mMaxAccuracy = maxAccuracyMeters;
+        }
+
+        public boolean filter(Fix fix) {
+            return fix.accuracy <= mMaxAccuracy;
+        }
+
+        public void reset() {
+        }
+    }
+
+    // Drops fixes that are further from the last fix let through than the
+    // phone could have gone at maxSpeed, after allowing for the accuracy
+    // of both: multipath spikes, mostly.  If maxDropped fixes in a row are
+    // dropped it is the last fix that was wrong, so the next one is let
+    // through and taken as the new reference.
+    public static class Speed implements LocationFilter {
+        private final double mMaxSpeed;
+        private final int mMaxDropped;
+
+        private boolean mHaveLast = false;
+        private double mLastLatitude;
+        private double mLastLongitude;
+        private float mLastAccuracy;
+        private long mLastTime;
+        private int mDropped = 0;
+
+        public Speed(double maxSpeedMetersPerSec, int maxDropped) {
+            mMaxSpeed = maxSpeedMetersPerSec;
+            mMaxDropped = maxDropped;
+        }
+
+        public boolean filter(Fix fix) {
+            if (mHaveLast && mDropped < mMaxDropped && fix.time > mLastTime) {
+                double dy = (fix.latitude - mLastLatitude) * METERS_PER_DEGREE;
+                double dx = (fix.longitude - mLastLongitude) * METERS_PER_DEGREE
+                    * Math.cos(Math.toRadians(fix.latitude));
+                double distance = Math.sqrt(dx * dx + dy * dy) - mLastAccuracy - fix.accuracy;
+                if (distance > mMaxSpeed * (fix.time - mLastTime) / 1000.0) {
+                    mDropped++;
+                    return false;
+                }
+            }
+
+            mHaveLast = true;
+            mLastLatitude = fix.latitude;
+            mLastLongitude = fix.longitude;
+            mLastAccuracy = fix.accuracy;
+            mLastTime = fix.time;
+            mDropped = 0;
+            return true;
+        }
+
+        public void reset() {
+            mHaveLast = false;
+            mDropped = 0;
+        }
+    }
+}
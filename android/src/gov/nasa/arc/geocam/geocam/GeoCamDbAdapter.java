@@ -6,6 +6,9 @@
 
 package gov.nasa.arc.geocam.geocam;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -24,22 +27,34 @@ public class GeoCamDbAdapter {
 	public static final String KEY_CREATED = "created";
 	public static final String KEY_UPLOADED = "is_uploaded";
 	public static final String KEY_PRIORITY = "priority";
+	public static final String KEY_CLAIMED = "is_claimed";
+	public static final String KEY_UPLOADED_BYTES = "uploaded_bytes";
+	public static final String KEY_ATTEMPTS = "attempts";
+	public static final String KEY_NEXT_ATTEMPT = "next_attempt";
 	
 	// Image-specific columns
 	public static final String KEY_DOWNSAMPLE = "downsample";
+	public static final String KEY_UUID = "uuid";
 	
 	// Queue types
 	public static final String TYPE_IMAGE = "image";
 	public static final String TYPE_TRACK = "track";
 	public static final String TYPE_WAYPOINT = "waypoint"; // Future
 	
+	// Upload lanes.  Each lane has its own workers so a slow full-size
+	// photo can't hold up thumbnails or tracks queued behind it.
+	public static final int LANE_SMALL = 0;	// downsampled images
+	public static final int LANE_FULL = 1;	// full-resolution images
+	public static final int LANE_TRACK = 2;	// gpx tracks
+	public static final int NUM_LANES = 3;
+	
 	private static final String TAG = "GeoCamDbAdapter";
 	private DatabaseHelper mDbHelper;
 	private SQLiteDatabase mDb;
 	
 	private static final String DATABASE_NAME = "geocam";
 	private static final String DATABASE_TABLE = "upload_queue";
-	private static final int DATABASE_VERSION = 5;
+	private static final int DATABASE_VERSION = 9;
 
 	private static final String DATABASE_CREATE =
 		"create table " + DATABASE_TABLE + " ("
@@ -50,7 +65,12 @@ public class GeoCamDbAdapter {
 			+ KEY_DOWNSAMPLE + " integer, "
 			+ KEY_PRIORITY + " integer not null, "
 			+ KEY_CREATED + " integer not null, "
-			+ KEY_UPLOADED + " integer not null"
+			+ KEY_UPLOADED + " integer not null, "
+			+ KEY_CLAIMED + " integer not null default 0, "
+			+ KEY_UPLOADED_BYTES + " integer not null default 0, "
+			+ KEY_ATTEMPTS + " integer not null default 0, "
+			+ KEY_NEXT_ATTEMPT + " integer not null default 0, "
+			+ KEY_UUID + " text"
 			+ ")";
 	
 	private final Context mCtx;
@@ -68,6 +88,30 @@ public class GeoCamDbAdapter {
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			if (oldVersion >= 5) {
+				// Versions 6 and up only add columns, keep the queue
+				Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+				if (oldVersion < 6) {
+					db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN "
+							+ KEY_CLAIMED + " integer not null default 0");
+				}
+				if (oldVersion < 7) {
+					db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN "
+							+ KEY_UPLOADED_BYTES + " integer not null default 0");
+				}
+				if (oldVersion < 8) {
+					db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN "
+							+ KEY_ATTEMPTS + " integer not null default 0");
+					db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN "
+							+ KEY_NEXT_ATTEMPT + " integer not null default 0");
+				}
+				if (oldVersion < 9) {
+					db.execSQL("ALTER TABLE " + DATABASE_TABLE + " ADD COLUMN "
+							+ KEY_UUID + " text");
+				}
+				return;
+			}
+			
 			Log.w(TAG, "Upgrading database from version " + oldVersion + " to " 
 					+ newVersion + ", which will destroy all old data");
 			db.execSQL("DROP TABLE IF EXISTS " + DATABASE_TABLE);
@@ -110,7 +154,8 @@ public class GeoCamDbAdapter {
 		return new TrackRow(rowId, trackId);
 	}
 	
-	public UploadQueueRow addToQueue(String uri, int downsample) {
+	// uuid identifies the photo across its variants, may be null
+	public UploadQueueRow addToQueue(String uri, int downsample, String uuid) {
 		ContentValues initialValues = seedNewRow();
 		initialValues.put(KEY_TYPE, TYPE_IMAGE);
 		
@@ -122,11 +167,14 @@ public class GeoCamDbAdapter {
 		
 		initialValues.put(KEY_URI, uri);
 		initialValues.put(KEY_DOWNSAMPLE, downsample);
+		initialValues.put(KEY_UUID, uuid);
 		
 		Log.d(TAG, "Inserting into upload queue: " + initialValues.toString());
 		
 		long rowId = mDb.insert(DATABASE_TABLE, null, initialValues);
-		return new ImageRow(rowId, uri, downsample);
+		ImageRow row = new ImageRow(rowId, uri, downsample);
+		row.uuid = uuid;
+		return row;
 	}
 	
 	public void clearQueue() {
@@ -136,8 +184,77 @@ public class GeoCamDbAdapter {
 	public boolean setAsUploaded(UploadQueueRow row) {
 		ContentValues newValues = new ContentValues();
 		newValues.put(KEY_UPLOADED, 1);
+		newValues.put(KEY_CLAIMED, 0);
+		newValues.put(KEY_ATTEMPTS, 0);
+		newValues.put(KEY_NEXT_ATTEMPT, 0);
+		return mDb.update(DATABASE_TABLE, newValues, KEY_ROWID + "=" + row.rowId, null) == 1;
+	}
+	
+	// Record how much of a resumable upload the server has confirmed
+	public boolean setUploadedBytes(UploadQueueRow row, long uploadedBytes) {
+		ContentValues newValues = new ContentValues();
+		newValues.put(KEY_UPLOADED_BYTES, uploadedBytes);
+		row.uploadedBytes = uploadedBytes;
 		return mDb.update(DATABASE_TABLE, newValues, KEY_ROWID + "=" + row.rowId, null) == 1;
 	}
+	
+	// Give a claimed row back after a failed upload.  No worker will
+	// claim it again until nextAttempt (wall clock msecs), so the rows
+	// behind it go ahead in the meantime.
+	public boolean deferRow(UploadQueueRow row, long nextAttempt) {
+		ContentValues newValues = new ContentValues();
+		newValues.put(KEY_CLAIMED, 0);
+		newValues.put(KEY_ATTEMPTS, row.attempts);
+		newValues.put(KEY_NEXT_ATTEMPT, nextAttempt);
+		return mDb.update(DATABASE_TABLE, newValues, KEY_ROWID + "=" + row.rowId, null) == 1;
+	}
+	
+	// Make every deferred row due now, e.g. when the network comes back.
+	// Attempt counts are kept so a row that fails again backs off further.
+	public void clearDeferrals() {
+		ContentValues newValues = new ContentValues();
+		newValues.put(KEY_NEXT_ATTEMPT, 0);
+		mDb.update(DATABASE_TABLE, newValues, KEY_NEXT_ATTEMPT + ">0 AND " + KEY_UPLOADED + "=0", null);
+	}
+	
+	// Wall clock time the earliest deferred row in a lane comes due, or 0
+	// if nothing in the lane is waiting to be retried
+	public long getNextAttemptTime(int lane) {
+		Cursor cursor = mDb.rawQuery(
+				"SELECT MIN(" + KEY_NEXT_ATTEMPT + ") FROM " + DATABASE_TABLE
+				+ " WHERE " + KEY_UPLOADED + "=0"
+				+ " AND " + KEY_CLAIMED + "=0"
+				+ " AND " + KEY_NEXT_ATTEMPT + ">0"
+				+ " AND " + laneSelection(lane), null);
+		long result = 0;
+		if (cursor != null) {
+			if (cursor.moveToFirst() && !cursor.isNull(0))
+				result = cursor.getLong(0);
+			cursor.close();
+		}
+		return result;
+	}
+	
+	// Claims left over from a previous run belong to workers that no
+	// longer exist.  Call before starting any workers.
+	public void releaseAllClaims() {
+		ContentValues newValues = new ContentValues();
+		newValues.put(KEY_CLAIMED, 0);
+		mDb.update(DATABASE_TABLE, newValues, KEY_CLAIMED + "=1", null);
+	}
+	
+	private static String laneSelection(int lane) {
+		switch (lane) {
+		case LANE_SMALL:
+			return KEY_TYPE + "='" + TYPE_IMAGE + "' AND " + KEY_DOWNSAMPLE + ">1";
+		case LANE_FULL:
+			return KEY_TYPE + "='" + TYPE_IMAGE + "' AND " + KEY_DOWNSAMPLE + "<=1";
+		case LANE_TRACK:
+			return KEY_TYPE + "='" + TYPE_TRACK + "'";
+		default:
+			throw new IllegalArgumentException("No such upload lane: " + lane);
+		}
+	}
 
 	public UploadQueueRow getRow(long rowId) {
 		Cursor cursor = mDb.query(DATABASE_TABLE, new String[] {KEY_URI, KEY_DOWNSAMPLE}, KEY_ROWID + "=" + rowId, 
@@ -155,8 +272,38 @@ public class GeoCamDbAdapter {
 		return result;
 	}
 	
-	public UploadQueueRow getNextFromQueue() {
-		final String QUERY = 
+	// Atomically take the next row in an upload lane that is not waiting
+	// out a retry delay.  A claimed row is invisible to every other worker
+	// until it is uploaded or deferred.
+	public synchronized UploadQueueRow claimNextFromQueue(int lane) {
+		UploadQueueRow result = null;
+		String selection = laneSelection(lane)
+			+ " AND " + KEY_NEXT_ATTEMPT + "<=" + System.currentTimeMillis();
+		
+		mDb.beginTransaction();
+		try {
+			Cursor cursor = mDb.rawQuery(nextFromQueueQuery(selection), null);
+			result = readQueueRow(cursor);
+			if (cursor != null)
+				cursor.close();
+			
+			if (result != null) {
+				ContentValues newValues = new ContentValues();
+				newValues.put(KEY_CLAIMED, 1);
+				int claimed = mDb.update(DATABASE_TABLE, newValues, 
+						KEY_ROWID + "=" + result.rowId + " AND " + KEY_CLAIMED + "=0", null);
+				if (claimed != 1)
+					result = null;
+			}
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+		return result;
+	}
+	
+	private static String nextFromQueueQuery(String selection) {
+		return 
 			"SELECT "
 				+ KEY_ROWID + ", "
 				+ KEY_TYPE + ", "
@@ -164,18 +311,22 @@ public class GeoCamDbAdapter {
 				+ KEY_URI + ", "
 				+ KEY_UPLOADED + ", "
 				+ KEY_PRIORITY + ", "
-				+ KEY_DOWNSAMPLE
+				+ KEY_DOWNSAMPLE + ", "
+				+ KEY_UPLOADED_BYTES + ", "
+				+ KEY_ATTEMPTS + ", "
+				+ KEY_UUID
 			+ " FROM " + DATABASE_TABLE
 			+ " WHERE "
 				+ KEY_UPLOADED + "=0"
+				+ " AND " + KEY_CLAIMED + "=0"
+				+ " AND " + selection
 			+ " ORDER BY "
 				+ KEY_PRIORITY + " DESC, "
 				+ KEY_CREATED + " ASC"
 			+ " LIMIT 1";
-				
-		// Return first row with the highest priority that hasn't been uploaded yet
-		Cursor cursor = mDb.rawQuery(QUERY, null);
-		
+	}
+	
+	private UploadQueueRow readQueueRow(Cursor cursor) {
 		UploadQueueRow result = null;
 		if (cursor != null && cursor.moveToFirst()) {
 
@@ -186,22 +337,26 @@ public class GeoCamDbAdapter {
 				String url = cursor.getString(cursor.getColumnIndex(KEY_URI));
 				int downsample = cursor.getInt(cursor.getColumnIndex(KEY_DOWNSAMPLE));
 				
-				Log.d(TAG, "GeoCamDbAdapter::getNextFromQueue - " + url + " [" + downsample + "]");
+				Log.d(TAG, "GeoCamDbAdapter::readQueueRow - " + url + " [" + downsample + "]");
 				
-				result = new ImageRow(rowId, url, downsample);
+				ImageRow row = new ImageRow(rowId, url, downsample);
+				row.uuid = cursor.getString(cursor.getColumnIndex(KEY_UUID));
+				result = row;
 			} else if (type.equals(TYPE_TRACK)) {
 				//return new TrackRow(rowId, )
 				long rowId = cursor.getLong(cursor.getColumnIndex(KEY_ROWID));
 				long trackId = cursor.getLong(cursor.getColumnIndex(KEY_FID));
 				
-				Log.d(TAG, "GeoCamDbAdapter::getNextFromQueue - track" + trackId);
+				Log.d(TAG, "GeoCamDbAdapter::readQueueRow - track" + trackId);
 
 				result = new TrackRow(rowId, trackId);
 			}
-		
+			
+			if (result != null) {
+				result.uploadedBytes = cursor.getLong(cursor.getColumnIndex(KEY_UPLOADED_BYTES));
+				result.attempts = cursor.getInt(cursor.getColumnIndex(KEY_ATTEMPTS));
+			}
 		}
-		if (cursor != null) 
-			cursor.close();
 		return result;
 	}
 	
@@ -222,6 +377,91 @@ public class GeoCamDbAdapter {
 	}
 	*/
 	
+	// Once a photo has been uploaded at some resolution, its lower
+	// resolution versions are of no use to the server.  Marks every such
+	// version that no worker is busy with as uploaded, and returns them.
+	public synchronized List<ImageRow> supersedeVariants(ImageRow uploaded) {
+		List<ImageRow> superseded = new ArrayList<ImageRow>();
+		if (uploaded.uuid == null)
+			return superseded;
+		
+		String selection = KEY_TYPE + "='" + TYPE_IMAGE + "'"
+			+ " AND " + KEY_UUID + "=?"
+			+ " AND " + KEY_DOWNSAMPLE + ">" + uploaded.downsample
+			+ " AND " + KEY_UPLOADED + "=0"
+			+ " AND " + KEY_CLAIMED + "=0";
+		String[] selectionArgs = new String[] {uploaded.uuid};
+		
+		mDb.beginTransaction();
+		try {
+			Cursor cursor = mDb.query(DATABASE_TABLE, new String[] {KEY_ROWID, KEY_URI, KEY_DOWNSAMPLE}, 
+					selection, selectionArgs, null, null, null);
+			while (cursor.moveToNext()) {
+				ImageRow row = new ImageRow(cursor.getLong(0), cursor.getString(1), cursor.getInt(2));
+				row.uuid = uploaded.uuid;
+				superseded.add(row);
+			}
+			cursor.close();
+			
+			ContentValues newValues = new ContentValues();
+			newValues.put(KEY_UPLOADED, 1);
+			mDb.update(DATABASE_TABLE, newValues, selection, selectionArgs);
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+		return superseded;
+	}
+	
+	// Whether a higher (or equal) resolution version of the photo has
+	// already been uploaded, which makes this row pointless
+	public boolean isSuperseded(ImageRow row) {
+		if (row.uuid == null)
+			return false;
+		Cursor cursor = mDb.query(DATABASE_TABLE, new String[] {KEY_ROWID}, 
+				KEY_UUID + "=? AND " + KEY_DOWNSAMPLE + "<=" + row.downsample
+				+ " AND " + KEY_UPLOADED + "=1 AND " + KEY_ROWID + "!=" + row.rowId,
+				new String[] {row.uuid}, null, null, null);
+		boolean superseded = cursor.getCount() > 0;
+		cursor.close();
+		return superseded;
+	}
+	
+	// Drop every version of the image at uri that hasn't been uploaded,
+	// e.g. because the photo was deleted.  A worker uploading one of them
+	// finds its row gone when it finishes.
+	public int cancelVariants(String uri) {
+		return mDb.delete(DATABASE_TABLE, 
+				KEY_URI + "=? AND " + KEY_UPLOADED + "=0", new String[] {uri});
+	}
+	
+	// Whether any version of the image at uri is still waiting to upload
+	public boolean hasPendingVariants(String uri) {
+		Cursor cursor = mDb.query(DATABASE_TABLE, new String[] {KEY_ROWID}, 
+				KEY_URI + "=? AND " + KEY_UPLOADED + "=0", new String[] {uri}, null, null, null);
+		boolean pending = cursor.getCount() > 0;
+		cursor.close();
+		return pending;
+	}
+	
+	// Whether an upload of the track is already waiting
+	public boolean hasPendingTrack(long trackId) {
+		Cursor cursor = mDb.query(DATABASE_TABLE, new String[] {KEY_ROWID}, 
+				KEY_TYPE + "=? AND " + KEY_FID + "=? AND " + KEY_UPLOADED + "=0", 
+				new String[] {TYPE_TRACK, Long.toString(trackId)}, null, null, null);
+		boolean pending = cursor.getCount() > 0;
+		cursor.close();
+		return pending;
+	}
+	
+	// Drop the track's uploads that haven't happened yet, e.g. slices
+	// queued while it was recorded once recording stops
+	public int cancelTrack(long trackId) {
+		return mDb.delete(DATABASE_TABLE, 
+				KEY_TYPE + "=? AND " + KEY_FID + "=? AND " + KEY_UPLOADED + "=0", 
+				new String[] {TYPE_TRACK, Long.toString(trackId)});
+	}
+	
 	public int size() {
 		Cursor cursor =  mDb.query(DATABASE_TABLE, new String[] {KEY_ROWID}, 
 				KEY_UPLOADED + "=0", null, null, null, null);
@@ -234,6 +474,8 @@ public class GeoCamDbAdapter {
 		public long rowId = 0;
 		public long priority = 0;
 		public String type = null;
+		public long uploadedBytes = 0;
+		public int attempts = 0;
 
 		public UploadQueueRow(long rowId, String type, long priority) {
 			this.rowId = rowId;
@@ -255,6 +497,7 @@ public class GeoCamDbAdapter {
 		
 		public String uri;
 		public int downsample;
+		public String uuid;
 
 		public ImageRow(long rowId, String uri, int downsample) {
 			super(rowId, TYPE_IMAGE, 0);
@@ -61,12 +61,24 @@ public class GeoCamMobile extends Activity {
     public static final long POS_UPDATE_MSECS_RECORDING = 1000;  // rate when recording a track
     public static final long POS_UPDATE_MSECS_FAST = 500;	// this value should always be larger than POS_UPDATE_MSECS_SLOW
     public static final long POS_UPDATE_FAST_EXPIRATION_MSECS = 120000;
+    public static final long POS_UPDATE_MSECS_STILL = 60000;	// rate when standing still in the background, at most half of LOCATION_STALE_MSECS and the live tracking interval
+    public static final long POS_UPDATE_MSECS_STILL_ACTIVE = 5000;	// rate when standing still in the foreground or recording
     public static final long LOCATION_STALE_MSECS = 120000;	// this value should always be larger than POS_UPDATE_MSECS_SLOW
 
     public static final long PHOTO_BRACKET_INTERVAL_MSECS = 10000;
     public static final long PHOTO_BRACKET_THRESHOLD_MSECS = 60000;
     
     public static final int[] PHOTO_DOWNSAMPLE_FACTORS = { 4, 2, 1 }; // higher downsample factors should come first
+    public static final long PHOTO_DOWNSCALE_BUDGET_BYTES = 4 * 1024 * 1024; // see ImageScaler
+    public static final int PHOTO_JPEG_QUALITY = 90;	// quality of downsampled versions on a good link
+    public static final String PHOTO_MIN_JPEG_QUALITY_DEFAULT = "70";
+
+    // Link speeds that decide which downsampled versions of a photo to send
+    // (see GeoCamService.getDownsampleFactors).  Below SLOW we send every
+    // version at the lowest quality allowed, above FAST only the original.
+    public static final long UPLOAD_SLOW_BYTES_PER_SEC = 16 * 1024;
+    public static final long UPLOAD_FAST_BYTES_PER_SEC = 256 * 1024;
+    public static final long UPLOAD_HIGH_RTT_MSECS = 1500;
     
     public static final boolean TRACK_ENABLED = false;
 
@@ -80,6 +92,52 @@ public class GeoCamMobile extends Activity {
     
     public static final int TRACK_PRIORITY = 15;
 
+    // Chunk size for resumable uploads of full-size photos
+    public static final int UPLOAD_CHUNK_BYTES = 128 * 1024;
+
+    // Default number of upload workers per upload lane (see GeoCamDbAdapter.LANE_*)
+    public static final int[] UPLOAD_WORKERS_DEFAULT = { 2, 1, 1 };
+
+    // Retry delay after a failed upload doubles with each attempt on the
+    // same row, from UPLOAD_RETRY_BASE_MSECS up to UPLOAD_RETRY_MAX_MSECS
+    public static final long UPLOAD_RETRY_BASE_MSECS = 10000;
+    public static final long UPLOAD_RETRY_MAX_MSECS = 30 * 60 * 1000;
+
+    // Live position uploads (see LiveLocationSender)
+    public static final long LIVE_STALE_MSECS = 5 * 60 * 1000;	// drop unsent positions older than this
+    public static final int LIVE_MAX_BATCH = 20;	// most positions waiting to be sent at once
+    public static final long LIVE_RETRY_MSECS = 10000;
+    public static final int LIVE_BACKLOG_CAPACITY = 5000;	// positions kept on disk while offline
+    public static final int LIVE_BACKLOG_BATCH = 250;	// positions per request when catching up
+    public static final String LIVE_BACKLOG_SPACING_DEFAULT = "30";	// seconds
+    public static final String LIVE_THRESHOLD_DEFAULT = "25";	// meters off the predicted position
+    public static final long LIVE_MIN_INTERVAL_MSECS = 5000;	// never send more often than this
+
+    // Uploading a track in slices while it is recorded
+    public static final String TRACK_SLICE_DEFAULT = "0";	// minutes between slices, 0 to wait for the save
+
+    // Track points closer than this to the line through their neighbors
+    // aren't drawn on the map (see TrackSimplifier)
+    public static final double TRACK_DISPLAY_TOLERANCE_METERS = 2.0;
+
+    // Adapting the GPS rate to movement (see GpsRateController)
+    public static final float GPS_STILL_SPEED = 0.5f;	// m/s, slower than this counts as still...
+    public static final long GPS_STILL_MSECS = 30000;	// ...for this long
+    public static final float GPS_MOVING_SPEED = 1.5f;	// m/s, one fix faster than this is moving again
+    public static final float GPS_RATE_MAX_ACCURACY = 30;	// fixes worse than this don't count
+    public static final long GPS_REREGISTER_MIN_MSECS = 15000;	// adapt the rate at most this often
+
+    // Filtering GPS fixes (see LocationFilter)
+    public static final float FIX_MAX_ACCURACY_METERS = 100;	// drop fixes worse than this
+    public static final double FIX_MAX_SPEED_METERS_PER_SEC = 70;	// drop fixes further than this from the last
+    public static final int FIX_MAX_DROPPED = 3;	// fixes dropped in a row before starting over
+    public static final double FIX_ACCELERATION_NOISE = 5;	// m/s^2, for smoothing
+    public static final double FIX_GATE_SIGMAS = 5;	// drop fixes this far off the smoothed track
+    public static final long FIX_MAX_GAP_MSECS = 60000;	// start smoothing over after a gap this long
+
+    // Untracked GPS points are kept at full rate for this long (see GpsRetention)
+    public static final String GPS_RETENTION_DEFAULT = "7";	// days
+
     // Yaw references
     public static final String YAW_MAGNETIC = "M"; 
     public static final String YAW_TRUE = "T"; 
@@ -102,12 +160,40 @@ public class GeoCamMobile extends Activity {
 
     protected static final String SETTINGS_SERVER_PASSWORD_KEY = "settings_server_password";
 
+    protected static final String SETTINGS_SERVER_RESUMABLE_KEY = "settings_server_resumable";
+
+    protected static final String SETTINGS_SERVER_COMPRESS_KEY = "settings_server_compress";
+
+    protected static final String SETTINGS_SERVER_AUTH_KEY = "settings_server_auth";
+    protected static final String SETTINGS_SERVER_AUTH_BASIC = "basic";	// Basic, forced over SSL
+    protected static final String SETTINGS_SERVER_AUTH_DIGEST = "digest";	// Digest, SSL only if the URL says so
+
+    protected static final String SETTINGS_UPLOAD_ADAPTIVE_KEY = "settings_upload_adaptive";
+    protected static final String SETTINGS_UPLOAD_MIN_QUALITY_KEY = "settings_upload_min_quality";
+    protected static final String SETTINGS_UPLOAD_TRACK_SLICE_KEY = "settings_upload_track_slice";
+
     protected static final String SETTINGS_SERVER_INBOX_KEY = "settings_server_inbox";
     protected static final String SETTINGS_DEFAULT_NOTES_KEY = "settings_default_notes";
     public static final String SETTINGS_TRACKING_FREQ_KEY = "settings_tracking_freq";
+    public static final String SETTINGS_LIVE_BACKLOG_SPACING_KEY = "settings_live_backlog_spacing";
+    public static final String SETTINGS_LIVE_THRESHOLD_KEY = "settings_live_threshold";
+    public static final String SETTINGS_LOCATION_FILTER_KEY = "settings_location_filter";
+    public static final String SETTINGS_GPS_ADAPTIVE_KEY = "settings_gps_adaptive";
+    public static final String SETTINGS_GPS_RETENTION_KEY = "settings_gps_retention";
+    public static final String SETTINGS_GPS_COMPACT_TRACKS_KEY = "settings_gps_compact_tracks";
 
     public static final String SETTINGS_UNIQUE_ID = "settings_other_uid";
 
+    // Number of upload workers, indexed by upload lane
+    public static final String SETTINGS_UPLOAD_WORKERS_SMALL_KEY = "settings_upload_workers_small";
+    public static final String SETTINGS_UPLOAD_WORKERS_FULL_KEY = "settings_upload_workers_full";
+    public static final String SETTINGS_UPLOAD_WORKERS_TRACK_KEY = "settings_upload_workers_track";
+    public static final String[] SETTINGS_UPLOAD_WORKERS_KEYS = {
+        SETTINGS_UPLOAD_WORKERS_SMALL_KEY,
+        SETTINGS_UPLOAD_WORKERS_FULL_KEY,
+        SETTINGS_UPLOAD_WORKERS_TRACK_KEY,
+    };
+
     //protected static final String SETTINGS_SERVER_INBOX_DEFAULT = "inbox";
     
     protected static final String SETTINGS_BETA_TEST_KEY = "settings_beta_test";
@@ -11,23 +11,23 @@ import gov.nasa.arc.geocam.geocam.GeoCamDbAdapter.ImageRow;
 import gov.nasa.arc.geocam.geocam.GeoCamDbAdapter.TrackRow;
 import gov.nasa.arc.geocam.geocam.util.Reflect;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
+import java.io.OutputStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -35,20 +35,22 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
 import android.database.CursorIndexOutOfBoundsException;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.hardware.GeomagneticField;
 import android.location.GpsSatellite;
 import android.location.GpsStatus;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
+import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.ConditionVariable;
@@ -56,6 +58,7 @@ import android.os.CountDownTimer;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.PowerManager.WakeLock;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
@@ -68,18 +71,26 @@ public class GeoCamService extends Service {
     private NotificationManager mNotificationManager;
     private Notification mNotification;
     
-    // Upload thread and queue
-    private ConditionVariable mCv;
-    private AtomicBoolean mIsUploading;
+    // Upload workers and queue
+    private final List<UploadWorker> mUploadWorkers = new ArrayList<UploadWorker>();
+    private AtomicInteger mNumActiveUploads;
     private AtomicInteger mLastStatus;
-    private Thread mUploadThread;
-    private GeoCamDbAdapter mUploadQueue;
+    private final AtomicLong mBytesSaved = new AtomicLong(0);
+    private volatile GeoCamDbAdapter mUploadQueue;
+    private DerivativeCache mDerivativeCache;
     private GpsDbAdapter mGpsLog;
-    private int mNumFailures;
+    private GpsLogWriter mGpsLogWriter;
+    private GpsRetention mGpsRetention;
     private SharedPreferences.OnSharedPreferenceChangeListener mPrefListener;
+    private BroadcastReceiver mConnectivityReceiver;
+    private final Random mRetryJitter = new Random();
 
     // Current GPS update rate
     private AtomicLong mGpsUpdateRate = new AtomicLong(0);
+    private long mLastGpsRegistration = 0;
+    private final GpsRateController mGpsRateController = new GpsRateController(
+            GeoCamMobile.GPS_STILL_SPEED, GeoCamMobile.GPS_MOVING_SPEED,
+            GeoCamMobile.GPS_STILL_MSECS, GeoCamMobile.GPS_RATE_MAX_ACCURACY);
     private CountDownTimer mPhotoTimer = null;
     
     // Application state
@@ -92,29 +103,57 @@ public class GeoCamService extends Service {
     private boolean mTrackPaused = false;
     private boolean mRecordingTrack = false;
     private WakeLock mWakeLock = null;
+    private long mLastTrackSlice = 0;
+    private final Object mTrackUploadLock = new Object();
     
     // IPC calls
     private final IGeoCamService.Stub mBinder = new IGeoCamService.Stub() {
 
-        public void addToUploadQueue(String uri) throws RemoteException {
+        public void addToUploadQueue(final String uri) throws RemoteException {
         	// Add image stack with downsampled versions to queue and wake the upload thread
-        	for (int factor : GeoCamMobile.PHOTO_DOWNSAMPLE_FACTORS) {
-                mUploadQueue.addToQueue(uri, factor);
+        	String uuid = getImageUuid(Uri.parse(uri));
+        	final int[] factors = getDownsampleFactors();
+        	final int quality = getJpegQuality();
+        	for (int factor : factors) {
+                mUploadQueue.addToQueue(uri, factor, uuid);
         	}
-            mCv.open();
+        	
+        	// Make the downsampled versions now, once, rather than on each upload
+        	new Thread(null, new Runnable() {
+        	    public void run() {
+        	        try {
+        	            mDerivativeCache.generate(uri, factors, quality);
+        	        } catch (IOException e) {
+        	            Log.e(GeoCamMobile.DEBUG_ID, "Could not make downsampled versions of " + uri + ": " + e);
+        	        }
+        	    }
+        	}, "DerivativeThread").start();
+        	
+            wakeUploadWorkers();
         }
         
         public void addTrackToUploadQueue(long trackId) throws RemoteException {
         	mUploadQueue.addTrackToQueue(trackId);
-        	mCv.open();
+        	wakeUploadWorkers();
         }
 
         public void clearQueue() throws RemoteException {
         	mUploadQueue.clearQueue();
+        	mDerivativeCache.evictAll();
+        }
+        
+        public void cancelUpload(String uri) throws RemoteException {
+        	int cancelled = mUploadQueue.cancelVariants(uri);
+        	mDerivativeCache.evict(uri);
+        	Log.d(GeoCamMobile.DEBUG_ID, "Cancelled " + cancelled + " queued uploads of " + uri);
+        }
+        
+        public long getBytesSaved() {
+        	return mBytesSaved.get();
         }
         
         public boolean isUploading() {
-            return mIsUploading.get();
+            return mNumActiveUploads.get() > 0;
         }
         
         public int getQueueSize() throws RemoteException {
@@ -160,8 +199,11 @@ public class GeoCamService extends Service {
 		public void startRecordingTrack() throws RemoteException {
 			try {
 				mRecordingTrack = true;
+				// expect the crew to set off
+				mGpsRateController.reset();
 				registerListener();
 				mTrackId = mGpsLog.startTrack();
+				mLastTrackSlice = System.currentTimeMillis();
 				
 				PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
 				mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, GeoCamMobile.DEBUG_ID);
@@ -174,7 +216,14 @@ public class GeoCamService extends Service {
 
 		public void stopRecordingTrack() throws RemoteException {
 			mRecordingTrack = false;
+			mGpsLogWriter.flush();
+			if (isCompactTracks())
+				mGpsLogWriter.packSegments(mTrackId, Long.MAX_VALUE);
 			mGpsLog.stopTrack(mTrackId);
+			// Saving queues the last slice, and cancelling shouldn't send any more
+			GeoCamDbAdapter queue = mUploadQueue;
+			if (queue != null)
+				queue.cancelTrack(mTrackId);
 			mTrackId = 0;
 			mTrackSegment = 0;
 			
@@ -189,6 +238,10 @@ public class GeoCamService extends Service {
 		public void resumeTrack() throws RemoteException {
 			mTrackSegment += 1;
 			mTrackPaused = false;
+			if (isCompactTracks())
+				mGpsLogWriter.packSegments(mTrackId, mTrackSegment);
+			// The segment just finished can go now
+			queueTrackSlice(0);
 		}
 		
 		public boolean isRecordingTrack() throws RemoteException {
@@ -230,82 +283,269 @@ public class GeoCamService extends Service {
 		}
     };
     
-    private Runnable uploadTask = new Runnable() {
+    // One upload worker.  Each worker serves a single lane of the upload
+    // queue and has its own ConditionVariable to sleep on, so waking one
+    // worker can never swallow the wakeup meant for another.
+    private class UploadWorker implements Runnable {
+        private final int mLane;
+        private final ConditionVariable mWakeup = new ConditionVariable(true);
+        private volatile boolean mRunning = true;
+        private Thread mThread;
+
+        public UploadWorker(int lane) {
+            mLane = lane;
+        }
+
+        public void start(int index) {
+            mThread = new Thread(null, this, "UploadThread-" + mLane + "-" + index);
+            mThread.start();
+        }
 
-        public String getNumImagesMsg() {
-            int qLen = mUploadQueue.size();
-            return String.valueOf(qLen) + (qLen == 1 ? " image in upload queue" : " images in upload queue");
+        public void stop() {
+            mRunning = false;
+            mWakeup.open();
+        }
+
+        public void wakeup() {
+            mWakeup.open();
         }
 
         public void run() {
-            Thread thisThread = Thread.currentThread();
-            while (thisThread == mUploadThread) {
-            	UploadQueueRow row = mUploadQueue.getNextFromQueue();
-
-                if (getIsUploadEnabled()) {
-                    // If queue is empty, sleep and try again
-                    if (row == null) {
-                        Log.d(GeoCamMobile.DEBUG_ID, "GeoCamService - empty queue, sleeping...");
-                        buildAndShowNotification("Logging GPS", "0 images in upload queue");
-                        mCv.close();
-                        mCv.block();
-                        continue;
-                    }
-                    else {
-                        Log.d(GeoCamMobile.DEBUG_ID, "Next row id: " + row.toString());
-                        buildAndShowNotification("Uploading", getNumImagesMsg());
+            while (mRunning) {
+                // Close before looking at the queue so a row added after
+                // we look still wakes us
+                mWakeup.close();
+
+                if (!getIsUploadEnabled()) {
+                    // uploading disabled, go to sleep
+                    Log.d(GeoCamMobile.DEBUG_ID, "GeoCamService - uploading disabled, sleeping...");
+                    buildAndShowNotification("Logging GPS", "Uploader stopped");
+                    mWakeup.block();
+                    continue;
+                }
+
+                UploadQueueRow row = mUploadQueue.claimNextFromQueue(mLane);
+
+                // If nothing in this lane is due, sleep until the earliest
+                // retry comes due or we are woken, then try again
+                if (row == null) {
+                    long nextAttempt = mUploadQueue.getNextAttemptTime(mLane);
+                    if (mNumActiveUploads.get() == 0)
+                        buildAndShowNotification("Logging GPS", getNumImagesMsg());
+                    if (nextAttempt > 0) {
+                        long waitMsecs = Math.max(nextAttempt - System.currentTimeMillis(), 1);
+                        Log.d(GeoCamMobile.DEBUG_ID, "GeoCamService - lane " + mLane + " waiting "
+                              + waitMsecs + " ms to retry");
+                        mWakeup.block(waitMsecs);
+                    } else {
+                        Log.d(GeoCamMobile.DEBUG_ID, "GeoCamService - lane " + mLane + " empty, sleeping...");
+                        mWakeup.block();
                     }
+                    continue;
+                }
 
-                    // Attempt upload
-                    boolean success = false;
-                    
-                    mIsUploading.set(true);
+                // Skip a version made pointless by a larger one that already went up
+                if (row.type.equals(GeoCamDbAdapter.TYPE_IMAGE) && mUploadQueue.isSuperseded((ImageRow) row)) {
+                    mUploadQueue.setAsUploaded(row);
+                    skipSupersededImage((ImageRow) row);
+                    if (!mUploadQueue.hasPendingVariants(((ImageRow) row).uri))
+                        mDerivativeCache.evict(((ImageRow) row).uri);
+                    continue;
+                }
+
+                Log.d(GeoCamMobile.DEBUG_ID, "Next row id: " + row.toString() + " lane: " + mLane);
+                buildAndShowNotification("Uploading", getNumImagesMsg());
+
+                // Attempt upload
+                boolean success = false;
+
+                mNumActiveUploads.incrementAndGet();
+                try {
                     if (row.type.equals(GeoCamDbAdapter.TYPE_IMAGE)) {
-                	ImageRow imgRow = (ImageRow) row;
-                	postProcessLocation(Uri.parse(imgRow.uri));
-                	success = uploadImage(Uri.parse(imgRow.uri), imgRow.downsample);
+                        ImageRow imgRow = (ImageRow) row;
+                        postProcessLocation(Uri.parse(imgRow.uri));
+                        success = uploadImage(imgRow);
                     } else if (row.type.equals(GeoCamDbAdapter.TYPE_TRACK)) {
-                	TrackRow trackRow = (TrackRow) row;
-                	Log.d(GeoCamMobile.DEBUG_ID, "Uploading track: " + trackRow.trackId);
-                	success = uploadTrack(trackRow.trackId);
+                        TrackRow trackRow = (TrackRow) row;
+                        Log.d(GeoCamMobile.DEBUG_ID, "Uploading track: " + trackRow.trackId);
+                        success = uploadTrack(trackRow.trackId);
                     }
-                    
-                    mIsUploading.set(false);
-                    
-                    if (success) {
-                        mUploadQueue.setAsUploaded(row); // pop from queue
-                        Log.d(GeoCamMobile.DEBUG_ID, "GeoCamService - upload success, " + getNumImagesMsg());
-                    }
-                    else {
-                        Log.d(GeoCamMobile.DEBUG_ID, "GeoCamService - upload failed, sleeping...");
-                        
-                        // Verify thread is still valid
-                        if (mUploadThread == null) 
-                            continue;
-                        
-                        buildAndShowNotification("Waiting to retry upload", getNumImagesMsg());
-                        
-                        // Sleep and try again
-                        try {
-                            Thread.sleep(10000);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
+                } finally {
+                    mNumActiveUploads.decrementAndGet();
+                }
+
+                // The queue is closed once the service is destroyed
+                GeoCamDbAdapter queue = mUploadQueue;
+                if (queue == null)
+                    break;
+
+                if (success) {
+                    queue.setAsUploaded(row); // pop from queue
+                    if (row.type.equals(GeoCamDbAdapter.TYPE_IMAGE)) {
+                        ImageRow imgRow = (ImageRow) row;
+                        for (ImageRow superseded : queue.supersedeVariants(imgRow)) {
+                            skipSupersededImage(superseded);
                         }
-                        continue;
+                        if (!queue.hasPendingVariants(imgRow.uri))
+                            mDerivativeCache.evict(imgRow.uri);
                     }
-
-                } else {
-                    // uploading disabled, go to sleep
-                    Log.d(GeoCamMobile.DEBUG_ID, "GeoCamService - uploading disabled, sleeping...");
-                    buildAndShowNotification("Logging GPS", "Uploader stopped");
-                    mCv.close();
-                    mCv.block();
-                    continue;
+                    Log.d(GeoCamMobile.DEBUG_ID, "GeoCamService - upload success, " + getNumImagesMsg());
+                }
+                else {
+                    // Put the row aside and go on to the next one; the
+                    // row is retried once its delay has passed
+                    row.attempts++;
+                    long delay = getRetryDelay(row.attempts);
+                    queue.deferRow(row, System.currentTimeMillis() + delay);
+                    Log.d(GeoCamMobile.DEBUG_ID, "GeoCamService - upload of row " + row.rowId
+                          + " failed (attempt " + row.attempts + "), retrying in " + delay + " ms");
+
+                    buildAndShowNotification("Waiting to retry upload", getNumImagesMsg());
                 }
             }
         }
-    };
- 
+    }
+
+    // Exponential backoff with jitter: the delay doubles with each failed
+    // attempt up to the cap, and is then picked at random from its upper
+    // half so rows that failed together don't all retry together.
+    private long getRetryDelay(int attempts) {
+        long delay = GeoCamMobile.UPLOAD_RETRY_MAX_MSECS;
+        if (attempts < 20) {
+            delay = Math.min(GeoCamMobile.UPLOAD_RETRY_BASE_MSECS << Math.max(attempts - 1, 0),
+                             GeoCamMobile.UPLOAD_RETRY_MAX_MSECS);
+        }
+        long half = delay / 2;
+        synchronized (mRetryJitter) {
+            return half + (long) (mRetryJitter.nextDouble() * (delay - half));
+        }
+    }
+
+    // Retry every deferred row now, e.g. when we regain coverage or the
+    // server settings change
+    private void retryDeferredUploads() {
+        GeoCamDbAdapter queue = mUploadQueue;
+        if (queue == null)
+            return;
+        queue.clearDeferrals();
+        wakeUploadWorkers();
+    }
+
+    private boolean isUploadAdaptive() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        return settings.getBoolean(GeoCamMobile.SETTINGS_UPLOAD_ADAPTIVE_KEY, true);
+    }
+
+    // Which versions of a new photo to queue, given what the link has
+    // been carrying lately.  On a slow link the small versions get a
+    // picture to the server soon; on a fast one they are just overhead.
+    // On a long round trip the per-request cost makes the middle version
+    // not worth it.  With no recent measurements we send everything.
+    private int[] getDownsampleFactors() {
+        double bytesPerSec = ThroughputEstimator.getBytesPerSec();
+        if (!isUploadAdaptive() || bytesPerSec < 0)
+            return GeoCamMobile.PHOTO_DOWNSAMPLE_FACTORS;
+
+        int[] factors;
+        if (bytesPerSec >= GeoCamMobile.UPLOAD_FAST_BYTES_PER_SEC) {
+            factors = new int[] { 1 };
+        } else if (bytesPerSec >= GeoCamMobile.UPLOAD_SLOW_BYTES_PER_SEC) {
+            factors = new int[] { 2, 1 };
+        } else if (ThroughputEstimator.getRttMsecs() >= GeoCamMobile.UPLOAD_HIGH_RTT_MSECS) {
+            factors = new int[] { 4, 1 };
+        } else {
+            factors = GeoCamMobile.PHOTO_DOWNSAMPLE_FACTORS;
+        }
+        Log.d(GeoCamMobile.DEBUG_ID, "GeoCamService - link at " + Math.round(bytesPerSec / 1024)
+              + " KB/s, queueing " + factors.length + " versions");
+        return factors;
+    }
+
+    // JPEG quality for downsampled versions, from the lowest allowed in
+    // the settings on a slow link up to PHOTO_JPEG_QUALITY on a fast one,
+    // on a log scale in between
+    private int getJpegQuality() {
+        double bytesPerSec = ThroughputEstimator.getBytesPerSec();
+        if (!isUploadAdaptive() || bytesPerSec < 0)
+            return GeoCamMobile.PHOTO_JPEG_QUALITY;
+
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        int minQuality;
+        try {
+            minQuality = Integer.parseInt(settings.getString(GeoCamMobile.SETTINGS_UPLOAD_MIN_QUALITY_KEY,
+                                                             GeoCamMobile.PHOTO_MIN_JPEG_QUALITY_DEFAULT));
+        } catch (NumberFormatException e) {
+            minQuality = Integer.parseInt(GeoCamMobile.PHOTO_MIN_JPEG_QUALITY_DEFAULT);
+        }
+        minQuality = Math.min(minQuality, GeoCamMobile.PHOTO_JPEG_QUALITY);
+
+        double slow = Math.log(GeoCamMobile.UPLOAD_SLOW_BYTES_PER_SEC);
+        double fast = Math.log(GeoCamMobile.UPLOAD_FAST_BYTES_PER_SEC);
+        double t = (Math.log(Math.max(bytesPerSec, 1)) - slow) / (fast - slow);
+        t = Math.max(0, Math.min(1, t));
+        return (int) Math.round(minQuality + t * (GeoCamMobile.PHOTO_JPEG_QUALITY - minQuality));
+    }
+
+    // Count a lower-resolution version we didn't send towards the bytes
+    // saved.  Uses the cached file's size, or failing that an estimate
+    // from the full-size photo.
+    private void skipSupersededImage(ImageRow row) {
+        long bytes = mDerivativeCache.getCachedLength(row.uri, row.downsample);
+        if (bytes < 0) {
+            long fullLength = getContentLength(Uri.parse(row.uri));
+            bytes = (fullLength < 0) ? 0 : fullLength / ((long) row.downsample * row.downsample);
+        }
+        long total = mBytesSaved.addAndGet(bytes);
+        Log.i(GeoCamMobile.DEBUG_ID, "GeoCamService - skipped " + row.downsample + "x version of "
+              + row.uri + ", already uploaded at higher resolution (" + bytes + " bytes saved, "
+              + total + " total)");
+    }
+
+    private String getNumImagesMsg() {
+        GeoCamDbAdapter queue = mUploadQueue;
+        int qLen = (queue == null) ? 0 : queue.size();
+        return String.valueOf(qLen) + (qLen == 1 ? " image in upload queue" : " images in upload queue");
+    }
+
+    // Number of workers per lane, from the settings
+    private int getNumUploadWorkers(int lane) {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        String key = GeoCamMobile.SETTINGS_UPLOAD_WORKERS_KEYS[lane];
+        String defaultValue = String.valueOf(GeoCamMobile.UPLOAD_WORKERS_DEFAULT[lane]);
+        try {
+            return Math.max(1, Integer.parseInt(settings.getString(key, defaultValue)));
+        } catch (NumberFormatException e) {
+            return GeoCamMobile.UPLOAD_WORKERS_DEFAULT[lane];
+        }
+    }
+
+    private synchronized void startUploadWorkers() {
+        for (int lane = 0; lane < GeoCamDbAdapter.NUM_LANES; lane++) {
+            int numWorkers = getNumUploadWorkers(lane);
+            Log.d(GeoCamMobile.DEBUG_ID, "Starting " + numWorkers + " upload workers for lane " + lane);
+            for (int i = 0; i < numWorkers; i++) {
+                UploadWorker worker = new UploadWorker(lane);
+                mUploadWorkers.add(worker);
+                worker.start(i);
+            }
+        }
+    }
+
+    // Workers in the middle of an upload finish it before they exit
+    private synchronized void stopUploadWorkers() {
+        for (UploadWorker worker : mUploadWorkers) {
+            worker.stop();
+        }
+        mUploadWorkers.clear();
+    }
+
+    // Wake every worker, e.g. when rows are queued or settings change
+    private synchronized void wakeUploadWorkers() {
+        for (UploadWorker worker : mUploadWorkers) {
+            worker.wakeup();
+        }
+    }
+
     public boolean getIsUploadEnabled() {
         SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
         return settings.getBoolean(GeoCamMobile.SETTINGS_SERVER_UPLOAD_ENABLED, true);
@@ -316,29 +556,24 @@ public class GeoCamService extends Service {
         settings.edit().putBoolean(GeoCamMobile.SETTINGS_SERVER_UPLOAD_ENABLED, isUploadEnabled).commit();
     }
 
-    public void setLastStatus(int val) {
+    // HttpPost picks Basic or Digest authentication for every request
+    // from this, see DigestAuth
+    private void updateAuthMode() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        String mode = settings.getString(GeoCamMobile.SETTINGS_SERVER_AUTH_KEY,
+                                         GeoCamMobile.SETTINGS_SERVER_AUTH_BASIC);
+        DigestAuth.setEnabled(mode.equals(GeoCamMobile.SETTINGS_SERVER_AUTH_DIGEST));
+    }
+
+    public synchronized void setLastStatus(int val) {
         mLastStatus.set(val);
 
-        if (val == 200) {
-            // success, reset failure counter
-            mNumFailures = 0;
-        } else if (val != -2) {
-            // -2 usually means we couldn't connect to server.  we won't
-            // count that status as a failure because (a) it's usually
-            // due to being out of coverage, so retrying until we regain
-            // coverage makes sense, and (b) it usually doesn't cause
-            // load on the server, so we can tolerate retries.
-
-            // todo: we should probably back off the retry interval
-            // after several connection failures, just in case we are
-            // loading the server.
-            mNumFailures++;
-        }
-
-        // disable uploading if either (a) we failed several times in a
-        // row or (b) we got a 'permanent failure' type status code such
-        // that retrying doesn't make sense.
-        if (mNumFailures >= 3 || (val >= 300 && val != 400)) {
+        // Transient failures (no connection, server errors, a resumable
+        // upload resyncing its offset) are retried per row with backoff
+        // by the upload workers.  Only disable uploading if we got a
+        // 'permanent failure' type status code such that retrying
+        // doesn't make sense.
+        if (val >= 300 && val != 400) {
             setIsUploadEnabled(false);
         }
     }
@@ -363,7 +598,10 @@ public class GeoCamService extends Service {
             String imageData = cur.getString(cur.getColumnIndex(MediaStore.Images.ImageColumns.DESCRIPTION));
             cur.close();
 
+            long lookupStart = SystemClock.elapsedRealtime();
             List<Location> points = mGpsLog.getBoundingLocations(dateTakenMillis, 1);
+            Log.d(GeoCamMobile.DEBUG_ID, "Position bracket lookup took "
+                  + (SystemClock.elapsedRealtime() - lookupStart) + "ms");
             if (points.size() == 2) {
             	Location before = points.get(0);
             	Location after = points.get(1);
@@ -439,10 +677,17 @@ public class GeoCamService extends Service {
     private LocationListener mLocationListener = new LocationListener() {
 
         public void onLocationChanged(Location location) {
-        	mLocation = location;
-            if (mLocation != null) {
+            if (location != null)
+                location = filterLocation(location);
+            if (location != null) {
+                mLocation = location;
                 //Log.d(GeoCamMobile.DEBUG_ID, "GeoCamService::onLocationChanged");
 
+                mGpsRateController.update(location.hasSpeed(), location.getSpeed(),
+                                          location.hasAccuracy() ? location.getAccuracy() : 0,
+                                          location.getTime());
+                adaptListener();
+
                 boolean tracked = logLocation(location);
                 
                 // Broadcast change in location
@@ -500,7 +745,18 @@ public class GeoCamService extends Service {
     
     private Object mMutex = new Object();
     
-    private void registerListener() {
+    private boolean isGpsAdaptive() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        return settings.getBoolean(GeoCamMobile.SETTINGS_GPS_ADAPTIVE_KEY, true);
+    }
+
+    // While standing still, fixes are asked for less often, except when a
+    // photo wants a fresh one
+    private boolean isGpsStill() {
+        return !mIsLocationUpdateFast && mGpsRateController.isStill() && isGpsAdaptive();
+    }
+
+    private long getGpsMinTime() {
     	long minTime = GeoCamMobile.POS_UPDATE_MSECS_SLOW;
     	
     	if (mInForeground)
@@ -512,6 +768,42 @@ public class GeoCamService extends Service {
     	if (mIsLocationUpdateFast)
     		minTime = GeoCamMobile.POS_UPDATE_MSECS_FAST;
     	
+    	// Still fixes keep coming, just less often: well inside
+    	// LOCATION_STALE_MSECS so getLocation() doesn't give up on a crew
+    	// member standing still, and inside the live tracking heartbeat
+    	if (isGpsStill()) {
+    		long stillTime = (mRecordingTrack || mInForeground)
+    			? GeoCamMobile.POS_UPDATE_MSECS_STILL_ACTIVE : GeoCamMobile.POS_UPDATE_MSECS_STILL;
+    		stillTime = Math.min(stillTime, GeoCamMobile.LOCATION_STALE_MSECS / 2);
+    		long heartbeat = getLiveHeartbeatMsecs();
+    		if (heartbeat > 0)
+    			stillTime = Math.min(stillTime, heartbeat / 2);
+    		minTime = Math.max(minTime, stillTime);
+    	}
+    	
+    	return minTime;
+    }
+    
+    // The tracking frequency setting, 0 when live tracking is off
+    private long getLiveHeartbeatMsecs() {
+    	SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+    	return Integer.parseInt(settings.getString(GeoCamMobile.SETTINGS_TRACKING_FREQ_KEY, "0")) * 1000L;
+    }
+    
+    // Follow the GPS rate controller, re-registering at most once every
+    // GPS_REREGISTER_MIN_MSECS so the LocationManager isn't thrashed.
+    // Explicit changes (recording, photos, foreground) go straight to
+    // registerListener().
+    private void adaptListener() {
+    	if (SystemClock.elapsedRealtime() - mLastGpsRegistration < GeoCamMobile.GPS_REREGISTER_MIN_MSECS)
+    		return;
+    	if (getGpsMinTime() != mGpsUpdateRate.get())
+    		registerListener();
+    }
+    
+    private void registerListener() {
+    	long minTime = getGpsMinTime();
+    	
     	if (minTime == mGpsUpdateRate.get()) {
     		Log.d(GeoCamMobile.DEBUG_ID, "Current rate is same as previous. Not re-registering GPS updates: " + minTime + "ms");
     		return;
@@ -535,6 +827,9 @@ public class GeoCamService extends Service {
     		}
         
     		mGpsUpdateRate.set(minTime);
+    		// don't smooth or gate the next fix against one from before
+    		mLocationFilterStale = true;
+    		mLastGpsRegistration = SystemClock.elapsedRealtime();
     		mIsLocationRegistered = true;
     	}
     }
@@ -549,6 +844,45 @@ public class GeoCamService extends Service {
     	}
     }
     
+    // Fix filtering: accuracy and speed gates, then smoothing
+    private final LocationFilter.Chain mLocationFilter = new LocationFilter.Chain(
+            new FixGates.Accuracy(GeoCamMobile.FIX_MAX_ACCURACY_METERS),
+            new FixGates.Speed(GeoCamMobile.FIX_MAX_SPEED_METERS_PER_SEC, GeoCamMobile.FIX_MAX_DROPPED),
+            new KalmanLocationFilter(GeoCamMobile.FIX_ACCELERATION_NOISE, GeoCamMobile.FIX_GATE_SIGMAS,
+                                     GeoCamMobile.FIX_MAX_DROPPED, GeoCamMobile.FIX_MAX_GAP_MSECS));
+    private final LocationFilter.Fix mFix = new LocationFilter.Fix();
+    // Set when the filters' state may be out of date (the listener was
+    // registered again or filtering turned on or off), and acted on by the
+    // next fix so the filters are only touched from one thread
+    private volatile boolean mLocationFilterStale = false;
+
+    // Run a new fix through the filters before anything else sees it.
+    // Returns the fix as filtered, or null if it was dropped.
+    private Location filterLocation(Location location) {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        if (!settings.getBoolean(GeoCamMobile.SETTINGS_LOCATION_FILTER_KEY, true))
+            return location;
+
+        if (mLocationFilterStale) {
+            mLocationFilterStale = false;
+            mLocationFilter.reset();
+        }
+        mFix.set(location.getLatitude(), location.getLongitude(),
+                 location.hasAccuracy() ? location.getAccuracy() : 0, location.getTime());
+        if (!mLocationFilter.filter(mFix)) {
+            Log.d(GeoCamMobile.DEBUG_ID, "Dropped fix " + location.getLatitude() + ","
+                  + location.getLongitude() + " +/- " + location.getAccuracy() + "m");
+            return null;
+        }
+
+        Location filtered = new Location(location);
+        filtered.setLatitude(mFix.latitude);
+        filtered.setLongitude(mFix.longitude);
+        if (location.hasAccuracy())
+            filtered.setAccuracy(mFix.accuracy);
+        return filtered;
+    }
+
     private boolean logLocation(Location location) {
     	double distance = 10.0;
     	if (mPrevLocation != null) {
@@ -557,23 +891,25 @@ public class GeoCamService extends Service {
     	}
     	
     	if(mRecordingTrack && !mTrackPaused && distance >= 3.0)  {
-    		mGpsLog.addPointToTrack(mTrackId, mTrackSegment, location);
+    		mGpsLogWriter.logPointToTrack(mTrackId, mTrackSegment, location);
     		mPrevLocation = location;
+    		queueTrackSlice(getTrackSliceMsecs());
     		return true;
     	}
     	
-    	mGpsLog.addPoint(location);
+    	mGpsLogWriter.logPoint(location);
     	return false;
     }
 
     // Live-tracks
     private long mLastLiveUpload = 0;
-    private Runnable mLiveUploadRunnable = new Runnable() {
-        public void run() {
-            uploadLiveLocation(mLocation);
-        }
-    };
-    private volatile Thread mThread = null;
+    private LiveLocationSender mLiveLocationSender;
+    private DeadReckoning mDeadReckoning = new DeadReckoning();
+
+    // The tracking frequency setting is the heartbeat: the longest we go
+    // without sending a position.  In between, a position is only sent when
+    // the phone is further than the threshold from where the last one sent
+    // says it should be by now (see DeadReckoning).
     private void updateLiveLocation() {
         //Log.d(GeoCamMobile.DEBUG_ID, "updateLiveLocation: Determining whether to upload new live location");
 
@@ -583,22 +919,35 @@ public class GeoCamService extends Service {
 
         if (uploadFreq == 0) {
             //Log.d(GeoCamMobile.DEBUG_ID, "updateLiveLocation: nope, disabled");
+            mDeadReckoning.reset();
             return;
         }
 
-        if ((mLocation.getTime() - mLastLiveUpload) < uploadFreq) {
+        long sinceLast = mLocation.getTime() - mLastLiveUpload;
+        if (sinceLast >= 0 && sinceLast < GeoCamMobile.LIVE_MIN_INTERVAL_MSECS) {
             //Log.d(GeoCamMobile.DEBUG_ID, "updateLiveLocation: nope, not late enough");
             return;
         }
+
+        if (!mDeadReckoning.shouldSend(mLocation, getLiveThresholdMeters(settings), uploadFreq)) {
+            //Log.d(GeoCamMobile.DEBUG_ID, "updateLiveLocation: nope, still on course");
+            return;
+        }
         
         Log.d(GeoCamMobile.DEBUG_ID, "updateLiveLocation: uploading new live location");
         mLastLiveUpload = mLocation.getTime();
+        mDeadReckoning.sent(mLocation);
 
-        Thread moribund = mThread;
-        mThread = new Thread(mLiveUploadRunnable);
-        mThread.start();
+        mLiveLocationSender.send(mLocation);
+    }
 
-        return;
+    private double getLiveThresholdMeters(SharedPreferences settings) {
+        try {
+            return Double.parseDouble(settings.getString(GeoCamMobile.SETTINGS_LIVE_THRESHOLD_KEY,
+                                                         GeoCamMobile.LIVE_THRESHOLD_DEFAULT));
+        } catch (NumberFormatException e) {
+            return Double.parseDouble(GeoCamMobile.LIVE_THRESHOLD_DEFAULT);
+        }
     }
     
     public GeoCamService() {
@@ -630,17 +979,28 @@ public class GeoCamService extends Service {
         // Notification Manager
         mNotificationManager = (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
 
-        // Upload queue and thread
-        // Initialize with mCv open so we immediately try to upload when the thread is spawned
+        // Upload queue and workers
+        // Workers start awake so we immediately try to upload when they are spawned
         // This is important on service restart with non-zero length queue
-        // The thread will close mCv if the queue is empty
-        mCv = new ConditionVariable(true);
-        mIsUploading = new AtomicBoolean(false);
+        // A worker goes to sleep if its lane of the queue is empty
+        mNumActiveUploads = new AtomicInteger(0);
         mLastStatus = new AtomicInteger(0);
 
         if (mUploadQueue == null) {
         	mUploadQueue = new GeoCamDbAdapter(this);
         	mUploadQueue.open();
+        	mUploadQueue.releaseAllClaims();
+        }
+        
+        if (mDerivativeCache == null)
+        	mDerivativeCache = new DerivativeCache(this);
+        
+        updateAuthMode();
+
+        // Live positions go out from their own thread, one request at a time
+        if (mLiveLocationSender == null) {
+        	mLiveLocationSender = new LiveLocationSender(this);
+        	mLiveLocationSender.start();
         }
         
         if (mGpsLog == null) {
@@ -648,6 +1008,18 @@ public class GeoCamService extends Service {
         	mGpsLog.open();
         }
         
+        // Fixes are committed to mGpsLog in batches from a background thread
+        if (mGpsLogWriter == null) {
+        	mGpsLogWriter = new GpsLogWriter(mGpsLog);
+        	mGpsLogWriter.start();
+        }
+        
+        // Old untracked points are thinned out in the background
+        if (mGpsRetention == null) {
+        	mGpsRetention = new GpsRetention(mGpsLog, getGpsRetentionDays());
+        	mGpsRetention.start();
+        }
+        
         mPrefListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
                 public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
                     // wake up upload thread if upload was just enabled
@@ -658,16 +1030,64 @@ public class GeoCamService extends Service {
                     if (key.equals(GeoCamMobile.SETTINGS_SERVER_UPLOAD_ENABLED)
                         && isUploadEnabled) {
                         Log.d(GeoCamMobile.DEBUG_ID, "GeoCamService.mPrefListener.onSharedPreferenceChanged"
-                              + " waking up upload thread");
-                        mCv.open();
+                              + " waking up upload workers");
+                        retryDeferredUploads();
+                    }
+                    
+                    // rows may have been failing because of the old server settings
+                    if (key.equals(GeoCamMobile.SETTINGS_SERVER_URL_KEY)
+                        || key.equals(GeoCamMobile.SETTINGS_SERVER_USERNAME_KEY)
+                        || key.equals(GeoCamMobile.SETTINGS_SERVER_PASSWORD_KEY)
+                        || key.equals(GeoCamMobile.SETTINGS_SERVER_AUTH_KEY)) {
+                        updateAuthMode();
+                        DigestAuth.reset();
+                        retryDeferredUploads();
+                    }
+                    
+                    // the GPS rate depends on these, and while still there
+                    // may be no fix coming to adapt it
+                    if (key.equals(GeoCamMobile.SETTINGS_GPS_ADAPTIVE_KEY)
+                        || key.equals(GeoCamMobile.SETTINGS_TRACKING_FREQ_KEY)) {
+                        registerListener();
+                    }
+                    
+                    if (key.equals(GeoCamMobile.SETTINGS_LOCATION_FILTER_KEY)) {
+                        mLocationFilterStale = true;
+                    }
+                    
+                    if (key.equals(GeoCamMobile.SETTINGS_GPS_RETENTION_KEY)
+                        && mGpsRetention != null) {
+                        mGpsRetention.setRetentionDays(getGpsRetentionDays());
+                    }
+                    
+                    // restart the pool if the number of workers in a lane changed
+                    for (String workersKey : GeoCamMobile.SETTINGS_UPLOAD_WORKERS_KEYS) {
+                        if (key.equals(workersKey)) {
+                            stopUploadWorkers();
+                            startUploadWorkers();
+                            break;
+                        }
                     }
                 }
             };
     	SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
         settings.registerOnSharedPreferenceChangeListener(mPrefListener);
 
-        mUploadThread = new Thread(null, uploadTask, "UploadThread");
-        mUploadThread.start();
+        // Don't wait out the backoff once we have a network again
+        mConnectivityReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    if (!intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+                        Log.d(GeoCamMobile.DEBUG_ID, "GeoCamService - network available, retrying uploads");
+                        retryDeferredUploads();
+                        if (mLiveLocationSender != null)
+                            mLiveLocationSender.retryNow();
+                    }
+                }
+            };
+        registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
+        startUploadWorkers();
     }
 
     @Override
@@ -687,10 +1107,28 @@ public class GeoCamService extends Service {
         if (mPhotoTimer != null)
         	mPhotoTimer.cancel();
         
+        if (mLiveLocationSender != null)
+        	mLiveLocationSender.stop();
+        mLiveLocationSender = null;
+        
+        unregisterReceiver(mConnectivityReceiver);
+        mConnectivityReceiver = null;
+        
+        stopUploadWorkers();
+        
         if (mUploadQueue != null)
         	mUploadQueue.close();
         mUploadQueue = null;
         
+        // Commit any buffered fixes before the database goes away
+        if (mGpsRetention != null)
+        	mGpsRetention.close();
+        mGpsRetention = null;
+        
+        if (mGpsLogWriter != null)
+        	mGpsLogWriter.close();
+        mGpsLogWriter = null;
+        
         if (mGpsLog != null)
         	mGpsLog.close();
         mGpsLog = null;
@@ -702,8 +1140,6 @@ public class GeoCamService extends Service {
         settings.unregisterOnSharedPreferenceChangeListener(mPrefListener);
         mPrefListener = null;
 
-        mUploadThread = null;
-        
         Reflect.Service.stopForeground(this, NOTIFICATION_ID);
 
         Log.d(GeoCamMobile.DEBUG_ID, "GeoCamService::onDestroy called");
@@ -734,76 +1170,74 @@ public class GeoCamService extends Service {
         mNotificationManager.notify(NOTIFICATION_ID, mNotification);
     }
 
-    private void buildAndShowNotification(CharSequence title, CharSequence notifyText) {
+    private synchronized void buildAndShowNotification(CharSequence title, CharSequence notifyText) {
         buildNotification(title, notifyText);
         showNotification();
     }
 
-    public boolean uploadLiveLocation(Location location) {
-    	SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
-        String serverUrl = settings.getString(GeoCamMobile.SETTINGS_SERVER_URL_KEY, "BOGUS");
-        String username = settings.getString(GeoCamMobile.SETTINGS_SERVER_USERNAME_KEY, "BOGUS");
-        String password = settings.getString(GeoCamMobile.SETTINGS_SERVER_PASSWORD_KEY, "BOGUS");
-        String phoneUid = settings.getString(GeoCamMobile.SETTINGS_UNIQUE_ID, "BOGUS");
-
-        JSONObject feature;
+    // Whether finished track segments are packed (see TrackSegmentCodec)
+    private boolean isCompactTracks() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        return settings.getBoolean(GeoCamMobile.SETTINGS_GPS_COMPACT_TRACKS_KEY, false);
+    }
 
+    // Days to keep untracked points at full rate, from the settings
+    private int getGpsRetentionDays() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
         try {
-            // Create the coordinates array .. x, y and z
-            JSONArray coordinates = new JSONArray();
-            coordinates.put(location.getLongitude());
-            coordinates.put(location.getLatitude());
-            if (location.hasAltitude()) {
-                coordinates.put(location.getAltitude());
-            }
-
-            // Create the point geometry
-            JSONObject geometry = new JSONObject();
-            geometry.put("type", "Point");
-            geometry.put("coordinates", coordinates);
-       
-            // Create the properties object
-            JSONObject properties = new JSONObject();
-            properties.put("name", username);
-            properties.put("userName", username);
-
-            if (location.hasAccuracy()) {
-                properties.put("accuracyMeters", location.getAccuracy());
-            }
-
-            if (location.hasSpeed()) {
-                properties.put("speedMetersPerSecond", location.getSpeed());
-            }
-
-            properties.put("timestamp", GpxWriter.dateToISO8601(location.getTime()));
-
-            // Create a GeoJson feature for this
-            feature = new JSONObject();
-            feature.put("type", "Feature");
-            feature.put("id", phoneUid);
-            feature.put("geometry", geometry);
-            feature.put("properties", properties);
-        } catch (JSONException e) {
-            Log.e(GeoCamMobile.DEBUG_ID, "uploadLiveLocation: error creating json " + e);
-            return false;
+            return Math.max(1, Integer.parseInt(settings.getString(GeoCamMobile.SETTINGS_GPS_RETENTION_KEY,
+                                                                   GeoCamMobile.GPS_RETENTION_DEFAULT)));
+        } catch (NumberFormatException e) {
+            return Integer.parseInt(GeoCamMobile.GPS_RETENTION_DEFAULT);
         }
-        
-        Log.i(GeoCamMobile.DEBUG_ID, "uploadLiveLocation: " + feature.toString());
+    }
 
-        String postUrl = serverUrl + "tracking/post/";
-        
-        int out = 0;
+    // Minutes between uploads of the track being recorded, from the
+    // settings, as msecs.  0 if it only goes up once saved.
+    private long getTrackSliceMsecs() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
         try {
-            out = HttpPost.post(postUrl, feature, username, password);
-        } catch (IOException e) {
-            Log.w(GeoCamMobile.DEBUG_ID, "uploadLiveLocation: " + e);
-            return false;
+            return Math.max(0, Long.parseLong(settings.getString(GeoCamMobile.SETTINGS_UPLOAD_TRACK_SLICE_KEY,
+                                                                 GeoCamMobile.TRACK_SLICE_DEFAULT))) * 60 * 1000;
+        } catch (NumberFormatException e) {
+            return 0;
         }
+    }
+
+    // Queue an upload of what has been recorded of the current track since
+    // the last slice, if sliceMsecs have passed since then and none is
+    // waiting already.  A sliceMsecs of 0 queues one now, if slices are on
+    // at all.
+    private void queueTrackSlice(long sliceMsecs) {
+        GeoCamDbAdapter queue = mUploadQueue;
+        if (!mRecordingTrack || queue == null || getTrackSliceMsecs() == 0)
+            return;
 
-        return (out == 200);
+        long now = System.currentTimeMillis();
+        if (now - mLastTrackSlice < sliceMsecs)
+            return;
+        mLastTrackSlice = now;
+
+        if (queue.hasPendingTrack(mTrackId))
+            return;
+        Log.d(GeoCamMobile.DEBUG_ID, "Queueing a slice of track " + mTrackId);
+        queue.addTrackToQueue(mTrackId);
+        wakeUploadWorkers();
     }
-    
+
+    // Uploads what hasn't been sent of the track.  Once part of a track
+    // has gone up, the rest goes as numbered slices: the points acquired
+    // since the last one, with "final" set on the one sent after recording
+    // stops.  A track that only goes up once saved is sent whole, as
+    // before.
     public boolean uploadTrack(long trackId) {
+        // One slice of a track at a time, so they go up in order
+        synchronized (mTrackUploadLock) {
+            return uploadTrackSlice(trackId);
+        }
+    }
+
+    private boolean uploadTrackSlice(final long trackId) {
     	SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
         String serverUrl = settings.getString(GeoCamMobile.SETTINGS_SERVER_URL_KEY, "BOGUS");
         String serverUsername = settings.getString(GeoCamMobile.SETTINGS_SERVER_USERNAME_KEY, "BOGUS");
@@ -824,33 +1258,74 @@ public class GeoCamService extends Service {
     	boolean success = false;
     	
     	String trackUid = mGpsLog.getTrackUuid(trackId);
-    	GpxWriter writer = mGpsLog.trackToGpx(trackId);
+    	if (trackUid == null) {
+    		Log.e(GeoCamMobile.DEBUG_ID, "No track " + trackId + " to upload");
+    		return false;
+    	}
+
+    	// Points still waiting to be written are part of what gets sent
+    	mGpsLogWriter.flushAndWait();
+    	
+    	boolean recording = mRecordingTrack && trackId == mTrackId;
+    	final long uploadedUntil = mGpsLog.getTrackUploadedUntil(trackId);
+    	int sequence = mGpsLog.getTrackUploadSequence(trackId);
+    	if (uploadedUntil == GpsDbAdapter.TRACK_UPLOAD_FINISHED) {
+    		Log.d(GeoCamMobile.DEBUG_ID, "Track " + trackId + " is already uploaded");
+    		return true;
+    	}
+    	if (recording && mGpsLog.getLastTrackPointTime(trackId) <= uploadedUntil) {
+    		Log.d(GeoCamMobile.DEBUG_ID, "Nothing new in track " + trackId + " to upload");
+    		return true;
+    	}
+    	boolean sliced = recording || sequence > 0;
 
     	HashMap<String,String> vars = new HashMap<String,String>();
     	vars.put("trackUploadProtocolVersion", "1.0");
     	vars.put("icon", "camera");
     	vars.put("uuid", trackUid);
+    	if (sliced) {
+    		vars.put("sequence", String.valueOf(sequence));
+    		vars.put("final", recording ? "false" : "true");
+    	}
+    	final double tolerance = TrackTolerance.get(postUrl);
+    	if (tolerance > 0) {
+    		vars.put("tolerance", String.valueOf(tolerance));
+    	}
     	//vars.put("lineColor", "");
     	//vars.put("icon", "");
     	//vars.put("icon", "");
     	
+    	// The GPX is written into the request as it is read from the
+    	// database, noting the time of the last point in it
+    	final long[] lastWritten = new long[] { uploadedUntil };
+    	HttpPost.BodyWriter gpx = new HttpPost.BodyWriter() {
+    		public void writeTo(OutputStream out) throws IOException {
+    			lastWritten[0] = mGpsLog.writeTrackGpx(trackId, uploadedUntil, tolerance, out);
+    		}
+    	};
+    	
     	try {
-    		InputStream inputStream = new ByteArrayInputStream(writer.toString().getBytes("utf-8"));
+    		boolean compress = settings.getBoolean(GeoCamMobile.SETTINGS_SERVER_COMPRESS_KEY, true)
+    		    && RequestCompression.isAccepted(postUrl);
     	
     		Log.d(GeoCamMobile.DEBUG_ID, "Posting to " + postUrl);
-    		int out = HttpPost.post(postUrl, vars, "gpxFile", trackUid, inputStream, username, password);
+    		int out = HttpPost.post(postUrl, vars, "gpxFile", trackUid, gpx, -1,
+    		                        username, password, compress);
+    		if (compress && RequestCompression.isRefusal(out)) {
+    		    // the server won't take gzip, send it again plain
+    		    out = HttpPost.post(postUrl, vars, "gpxFile", trackUid, gpx, -1,
+    		                        username, password, false);
+    		}
     		
     		Log.d(GeoCamMobile.DEBUG_ID, "Post response: " + out);
     		
     		success = (out == 200);
-    	} catch (UnsupportedEncodingException e) {
-    		Log.e(GeoCamMobile.DEBUG_ID, "No utf-8 encoding. WTF");
-    		return false;
+    		if (success) {
+    			mGpsLog.setTrackUploaded(trackId,
+    			                         recording ? lastWritten[0] : GpsDbAdapter.TRACK_UPLOAD_FINISHED,
+    			                         sequence + 1);
+    		}
     	}
-        catch (FileNotFoundException e) {
-            Log.e(GeoCamMobile.DEBUG_ID, "FileNotFoundException: " + e);
-            return false;
-        } 
         catch (IOException e) {
             Log.e(GeoCamMobile.DEBUG_ID, "IOException: " + e);
             return false;
@@ -863,7 +1338,9 @@ public class GeoCamService extends Service {
     	return success;
     }
     
-    public boolean uploadImage(Uri uri, int downsampleFactor) {
+    public boolean uploadImage(ImageRow row) {
+        Uri uri = Uri.parse(row.uri);
+
         final String[] projection = new String[] {
                 MediaStore.Images.ImageColumns._ID,
                 MediaStore.Images.ImageColumns.DATE_TAKEN,
@@ -925,19 +1402,20 @@ public class GeoCamService extends Service {
             
             Log.d(GeoCamMobile.DEBUG_ID, "Uploading with yawRef: " + yawRef);
 
-            success = uploadImage(uri, id, vars, downsampleFactor);
+            success = uploadImage(row, id, vars);
             cur.close();
         }
         catch (CursorIndexOutOfBoundsException e) {
-            // Bad db entry, remove from queue and report success so we can move on
-        	mUploadQueue.setAsUploaded(mUploadQueue.getNextFromQueue());
+            // Bad db entry, report success so the worker removes it from the queue
             Log.d(GeoCamMobile.DEBUG_ID, "Invalid entry in upload queue, removing: " + e);
             success = true;
         }
         return success;
     }
 
-    public boolean uploadImage(Uri uri, long id, Map<String,String> vars, int downsampleFactor) {
+    public boolean uploadImage(ImageRow row, long id, Map<String,String> vars) {
+        Uri uri = Uri.parse(row.uri);
+        int downsampleFactor = row.downsample;
         SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
         String serverUrl = settings.getString(GeoCamMobile.SETTINGS_SERVER_URL_KEY, "BOGUS");
         String serverUsername = settings.getString(GeoCamMobile.SETTINGS_SERVER_USERNAME_KEY, "BOGUS");
@@ -956,22 +1434,31 @@ public class GeoCamService extends Service {
         Log.i(GeoCamMobile.DEBUG_ID, "Uploading image #" + String.valueOf(id));
         try {
             InputStream readJpeg = null;
+            long jpegLength = -1;
             if (downsampleFactor == 1) {
+                jpegLength = getContentLength(uri);
+
+                boolean resumable = settings.getBoolean(GeoCamMobile.SETTINGS_SERVER_RESUMABLE_KEY, false);
+                if (resumable && jpegLength > 0) {
+                    int out = uploadImageResumable(row, id, vars, jpegLength, serverUrl, serverUsername,
+                                                   username, password);
+                    if (out != 404) {
+                        setLastStatus(out);
+                        return (out == 200);
+                    }
+                    Log.w(GeoCamMobile.DEBUG_ID, "Server doesn't take chunked uploads, sending whole image");
+                }
+
                 readJpeg = getContentResolver().openInputStream(uri);
             } else {
-                InputStream readFullJpeg = getContentResolver().openInputStream(uri); 
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inSampleSize = downsampleFactor;
-                Bitmap bitmap = BitmapFactory.decodeStream(readFullJpeg, null, opts);
-                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 90, bytes);
-                bitmap.recycle();
-                readJpeg = new ByteArrayInputStream(bytes.toByteArray());
+                File jpeg = mDerivativeCache.getDerivative(row.uri, downsampleFactor, getJpegQuality());
+                jpegLength = jpeg.length();
+                readJpeg = new FileInputStream(jpeg);
             }
             
             Log.d(GeoCamMobile.DEBUG_ID, "Posting to URL " + postUrl);
             int out = HttpPost.post(postUrl, vars, "photo", String.valueOf(id) + ".jpg", readJpeg,
-                                    username, password);
+                                    jpegLength, username, password);
             
             Log.d(GeoCamMobile.DEBUG_ID, "POST response: " + (new Integer(out).toString()));
             
@@ -992,4 +1479,83 @@ public class GeoCamService extends Service {
             return false;
         }
     }
+
+    // Send a full-size image in chunks, resuming from the offset the server
+    // last confirmed for this queue row
+    private int uploadImageResumable(final ImageRow row, long id, Map<String,String> vars, long jpegLength,
+                                     String serverUrl, String serverUsername, String username, String password)
+        throws IOException {
+        String postUrl;
+        if (password.equals("")) {
+            // old style -- username in url
+            postUrl = serverUrl + "/upload-chunk/" + serverUsername + "/";
+        } else {
+            // new style -- username will be in credentials
+            postUrl = serverUrl + "/upload-chunk-m/";
+        }
+
+        long offset = Math.min(row.uploadedBytes, jpegLength);
+        Log.d(GeoCamMobile.DEBUG_ID, "Posting chunks to URL " + postUrl + " from offset " + offset
+              + " of " + jpegLength);
+
+        InputStream readJpeg = getContentResolver().openInputStream(Uri.parse(row.uri));
+        try {
+            ResumableUpload.skipFully(readJpeg, offset);
+        } catch (IOException e) {
+            readJpeg.close();
+            throw e;
+        }
+
+        int out = ResumableUpload.upload(postUrl, vars, String.valueOf(id) + ".jpg", readJpeg,
+                                         offset, jpegLength, GeoCamMobile.UPLOAD_CHUNK_BYTES,
+                                         username, password,
+                                         new ResumableUpload.Listener() {
+            public void onChunkConfirmed(long confirmed) {
+                GeoCamDbAdapter queue = mUploadQueue;
+                if (queue != null)
+                    queue.setUploadedBytes(row, confirmed);
+            }
+        });
+
+        Log.d(GeoCamMobile.DEBUG_ID, "Chunked POST response: " + out);
+        return out;
+    }
+
+    // Length of the content behind uri, or -1 if the provider doesn't know
+    private long getContentLength(Uri uri) {
+        try {
+            AssetFileDescriptor fd = getContentResolver().openAssetFileDescriptor(uri, "r");
+            if (fd == null)
+                return -1;
+            long length = fd.getLength();
+            fd.close();
+            return (length == AssetFileDescriptor.UNKNOWN_LENGTH) ? -1 : length;
+        } catch (IOException e) {
+            Log.w(GeoCamMobile.DEBUG_ID, "Unable to get length of " + uri + ": " + e);
+            return -1;
+        }
+    }
+
+    // Photos are tagged with a uuid in the JSON we keep in the description
+    private String getImageUuid(Uri uri) {
+        try {
+            Cursor cur = getContentResolver().query(uri,
+                    new String[] { MediaStore.Images.ImageColumns.DESCRIPTION }, null, null, null);
+            if (cur == null)
+                return null;
+            try {
+                if (!cur.moveToFirst())
+                    return null;
+                return new JSONObject(cur.getString(0)).getString("uuid");
+            } finally {
+                cur.close();
+            }
+        } catch (JSONException e) {
+            Log.w(GeoCamMobile.DEBUG_ID, "No uuid for " + uri + ": " + e);
+            return null;
+        } catch (NullPointerException e) {
+            Log.w(GeoCamMobile.DEBUG_ID, "No description for " + uri);
+            return null;
+        }
+    }
 }
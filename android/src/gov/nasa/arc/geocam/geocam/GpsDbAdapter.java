@@ -6,20 +6,33 @@
 
 package gov.nasa.arc.geocam.geocam;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.UUID;
 
+import gov.nasa.arc.geocam.geocam.GpsLogWriter.PendingPoint;
+
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.location.Location;
+import android.location.LocationManager;
 import android.util.Log;
 
 public class GpsDbAdapter {
@@ -29,6 +42,9 @@ public class GpsDbAdapter {
 	public static final String KEY_UPLOADED = "is_uploaded";
 	
 	private static final String TAG = "GpsDbAdapter";
+	
+	// Characters of GPX buffered before they are encoded and written out
+	private static final int GPX_BUFFER_SIZE = 8192;
 	private DatabaseHelper mDbHelper;
 	private SQLiteDatabase mDb;
 	
@@ -36,6 +52,12 @@ public class GpsDbAdapter {
 	private static final String TABLE_POINTS = "points";
 	private static final String TABLE_WAYPOINTS = "waypoints";
 	private static final String TABLE_TRACKS = "tracks";
+	private static final String TABLE_STATE = "state";
+	private static final String TABLE_SEGMENTS = "track_segments";
+	
+	private static final String INDEX_POINTS_ACQUIRED = "points_acquired_idx";
+	private static final String INDEX_POINTS_TRACK_ACQUIRED = "points_track_acquired_idx";
+	private static final String INDEX_SEGMENTS_ACQUIRED = "track_segments_acquired_idx";
 	
 	public static final String KEY_ROWID = "_id";
 	
@@ -67,8 +89,28 @@ public class GpsDbAdapter {
 	public static final String KEY_TRACK_DASHED = "is_dashed";
 	public static final String KEY_TRACK_STARTED = "start_date";
 	public static final String KEY_TRACK_STOPPED = "stop_date";
+	public static final String KEY_TRACK_UPLOADED_UNTIL = "uploaded_until";
+	public static final String KEY_TRACK_UPLOAD_SEQUENCE = "upload_sequence";
+	
+	// KEY_TRACK_UPLOADED_UNTIL once the last slice of a track is sent
+	public static final long TRACK_UPLOAD_FINISHED = Long.MAX_VALUE;
+	
+	// Finished track segments packed into one blob each (see TrackSegmentCodec)
+	private static final String KEY_SEGMENT_TRACK_ID = "track_id";
+	private static final String KEY_SEGMENT_NUMBER = "segment";
+	private static final String KEY_SEGMENT_FIRST_ACQUIRED = "first_acquired";
+	private static final String KEY_SEGMENT_LAST_ACQUIRED = "last_acquired";
+	private static final String KEY_SEGMENT_NUM_POINTS = "num_points";
+	private static final String KEY_SEGMENT_DATA = "data";
+	
+	// Named values the adapter keeps for itself
+	private static final String KEY_STATE_NAME = "name";
+	private static final String KEY_STATE_VALUE = "value";
+	
+	// Untracked points acquired before this have been rolled up
+	private static final String STATE_ROLLED_UP_UNTIL = "rolled_up_until";
 	
-	private static final int DATABASE_VERSION = 2;
+	private static final int DATABASE_VERSION = 6;
 
 	private final Context mCtx;
 	
@@ -115,17 +157,77 @@ public class GpsDbAdapter {
 					+ KEY_TRACK_COLOR + " integer, "
 					+ KEY_TRACK_DASHED + " integer not null default 0, "
 					+ KEY_TRACK_STARTED + " intger not null, "
-					+ KEY_TRACK_STOPPED + " integer)";
+					+ KEY_TRACK_STOPPED + " integer, "
+					+ KEY_TRACK_UPLOADED_UNTIL + " integer not null default 0, "
+					+ KEY_TRACK_UPLOAD_SEQUENCE + " integer not null default 0)";
 			db.execSQL(CREATE_TRACKS);
+			
+			createPointIndexes(db);
+			createStateTable(db);
+			createSegmentsTable(db);
+		}
+		
+		private void createStateTable(SQLiteDatabase db) {
+			db.execSQL("create table " + TABLE_STATE + " ("
+					+ KEY_STATE_NAME + " text primary key, "
+					+ KEY_STATE_VALUE + " integer not null)");
+		}
+		
+		// Geotagging looks up packed segments by time, like points
+		private void createSegmentsTable(SQLiteDatabase db) {
+			db.execSQL("create table " + TABLE_SEGMENTS + " ("
+					+ KEY_SEGMENT_TRACK_ID + " integer not null, "
+					+ KEY_SEGMENT_NUMBER + " integer not null, "
+					+ KEY_SEGMENT_FIRST_ACQUIRED + " integer not null, "
+					+ KEY_SEGMENT_LAST_ACQUIRED + " integer not null, "
+					+ KEY_SEGMENT_NUM_POINTS + " integer not null, "
+					+ KEY_SEGMENT_DATA + " blob not null, "
+					+ "primary key (" + KEY_SEGMENT_TRACK_ID + ", " + KEY_SEGMENT_NUMBER + "))");
+			db.execSQL("create index " + INDEX_SEGMENTS_ACQUIRED
+					+ " on " + TABLE_SEGMENTS + " (" + KEY_SEGMENT_FIRST_ACQUIRED + ")");
+		}
+		
+		// Geotagging brackets photos by acquired time, and tracks are
+		// always read back in acquired order.  Without these every lookup
+		// scans and sorts the whole point history.
+		private void createPointIndexes(SQLiteDatabase db) {
+			db.execSQL("create index if not exists " + INDEX_POINTS_ACQUIRED
+					+ " on " + TABLE_POINTS + " (" + KEY_POINT_ACQUIRED + ")");
+			db.execSQL("create index if not exists " + INDEX_POINTS_TRACK_ACQUIRED
+					+ " on " + TABLE_POINTS + " (" + KEY_POINT_TRACK_ID + ", " + KEY_POINT_ACQUIRED + ")");
 		}
 
 		@Override
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			if (oldVersion >= 2) {
+				// Versions 3 and up only add indexes and columns, keep the data
+				Log.w(TAG, "Upgrading database from version " + oldVersion + " to " 
+						+ newVersion);
+				if (oldVersion < 3) {
+					createPointIndexes(db);
+				}
+				if (oldVersion < 4) {
+					db.execSQL("ALTER TABLE " + TABLE_TRACKS + " ADD COLUMN "
+							+ KEY_TRACK_UPLOADED_UNTIL + " integer not null default 0");
+					db.execSQL("ALTER TABLE " + TABLE_TRACKS + " ADD COLUMN "
+							+ KEY_TRACK_UPLOAD_SEQUENCE + " integer not null default 0");
+				}
+				if (oldVersion < 5) {
+					createStateTable(db);
+				}
+				if (oldVersion < 6) {
+					createSegmentsTable(db);
+				}
+				return;
+			}
+			
 			Log.w(TAG, "Upgrading database from version " + oldVersion + " to " 
 					+ newVersion + ", which will destroy all old data");
 			db.execSQL("DROP TABLE IF EXISTS " + TABLE_POINTS);
 			db.execSQL("DROP TABLE IF EXISTS " + TABLE_WAYPOINTS);
 			db.execSQL("DROP TABLE IF EXISTS " + TABLE_TRACKS);
+			db.execSQL("DROP TABLE IF EXISTS " + TABLE_STATE);
+			db.execSQL("DROP TABLE IF EXISTS " + TABLE_SEGMENTS);
 			onCreate(db);
 		}
 	}
@@ -178,7 +280,16 @@ public class GpsDbAdapter {
 		return sb.toString();
 	}
 	
-	public GpxWriter trackToGpx(long trackId) {
+	// Write the track's points acquired after afterTime out as a GPX
+	// document as the points are read, so memory use doesn't depend on
+	// the track's length.  Each segment is tagged with its number, so the
+	// slices of a track uploaded while it is recorded can be joined back
+	// up.  If toleranceMeters is above 0, points within that of the line
+	// through their neighbors are left out (see TrackSimplifier).  out is
+	// flushed but left open.  Returns the acquired time of the last point
+	// read, or afterTime if there were none.
+	public long writeTrackGpx(long trackId, long afterTime, double toleranceMeters,
+			OutputStream out) throws IOException {
 		final String TRACK_QUERY = 
 			"select "
 				+ KEY_TRACK_UID + ", "
@@ -190,15 +301,14 @@ public class GpsDbAdapter {
 			+ " where " 
 				+ KEY_TRACK_ROWID + "=" + Long.toString(trackId); 
 		
-		GpxWriter writer = new GpxWriter();
-		
 		Log.d(TAG, "Saving track " + Long.toString(trackId));
 		
 		Cursor track = mDb.rawQuery(TRACK_QUERY, null);
 		
 		// No such track
 		if (track.getCount() <= 0) {
-			return null;
+			track.close();
+			throw new IOException("No track " + trackId);
 		}
 		
 		track.moveToFirst();
@@ -209,52 +319,67 @@ public class GpsDbAdapter {
 		int colorIndex = track.getColumnIndex(KEY_TRACK_COLOR);
 		int dashedIndex = track.getColumnIndex(KEY_TRACK_DASHED);
 		
-		Cursor trackPoints = this.getTrackPoints(trackId);
+		final long[] currentSegment = { -1 };
+		final long[] lastTime = { afterTime };
 		
-		writer.startTrack(track.getString(notesIndex));
-		
-		if (trackPoints.getCount() > 0) {	
+		try {
+			Writer gpx = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), GPX_BUFFER_SIZE);
+			final GpxWriter writer = new GpxWriter(gpx);
+			writer.startTrack(track.getString(notesIndex));
 			
-			int latIndex = trackPoints.getColumnIndex(KEY_POINT_LATITUDE);
-			int lonIndex = trackPoints.getColumnIndex(KEY_POINT_LONGITUDE);
-			int altIndex = trackPoints.getColumnIndex(KEY_POINT_ALTITUDE);
-			int acqIndex = trackPoints.getColumnIndex(KEY_POINT_ACQUIRED);
-			int trkSegIndex = trackPoints.getColumnIndex(KEY_POINT_TRACK_SEGMENT);
-
-			long currentSegment = -1;
+			final TrackSimplifier simplifier = (toleranceMeters <= 0) ? null
+				: new TrackSimplifier(toleranceMeters, new TrackSimplifier.Sink() {
+					public void point(double lat, double lon, double alt, long time) throws IOException {
+						writer.append(lat, lon, alt, time);
+					}
+				});
 			
-			trackPoints.moveToFirst();
-			do {
-				if (currentSegment != trackPoints.getLong(trkSegIndex)) {
-					if (currentSegment != -1)
-						writer.endSegment();
-					writer.startSegment();
-					currentSegment = trackPoints.getLong(trkSegIndex);
+			readTrackPoints(trackId, afterTime, new TrackPointSink() {
+				public void point(long segment, double lat, double lon, double alt, long time) throws IOException {
+					if (currentSegment[0] != segment) {
+						if (currentSegment[0] != -1) {
+							if (simplifier != null)
+								simplifier.finish();
+							writer.appendSegmentNumber(currentSegment[0]);
+							writer.endSegment();
+						}
+						writer.startSegment();
+						currentSegment[0] = segment;
+					}
+					
+					if (simplifier != null) {
+						simplifier.add(lat, lon, alt, time);
+					} else {
+						writer.append(lat, lon, alt, time);
+					}
+					lastTime[0] = time;
 				}
-				
-				writer.append(trackPoints.getDouble(latIndex),
-								 trackPoints.getDouble(lonIndex),
-								 trackPoints.getDouble(altIndex),
-								 trackPoints.getLong(acqIndex));
-			} while (trackPoints.moveToNext());
+			});
 			
-			writer.endSegment();
-		}
-		
-		trackPoints.close();
-		
-		writer.startTrackExtensions();
-		//writer.appendUID(track.getString(uidIndex));
-		writer.appendIcon(track.getString(iconIndex));
-		writer.appendColor(track.getInt(colorIndex));
-		writer.appendSolidDashed((track.getInt(dashedIndex) == 1));
-		writer.endTrackExtensions();
+			if (currentSegment[0] != -1) {
+				if (simplifier != null) {
+					simplifier.finish();
+					Log.d(TAG, "Kept " + simplifier.getPointsOut() + " of " + simplifier.getPointsIn()
+							+ " points within " + toleranceMeters + " m");
+				}
+				writer.appendSegmentNumber(currentSegment[0]);
+				writer.endSegment();
+			}
 		
-		writer.endTrack();
+			writer.startTrackExtensions();
+			//writer.appendUID(track.getString(uidIndex));
+			writer.appendIcon(track.getString(iconIndex));
+			writer.appendColor(track.getInt(colorIndex));
+			writer.appendSolidDashed((track.getInt(dashedIndex) == 1));
+			writer.endTrackExtensions();
 		
-		track.close();
+			writer.endTrack();
+			writer.finish();
+		} finally {
+			track.close();
+		}
 		
-		return writer;
+		return lastTime[0];
 	}
 	
 	public GpsDbAdapter(Context ctx) {
@@ -296,6 +421,46 @@ public class GpsDbAdapter {
 		return mDb.insert(TABLE_POINTS, null, initialValues);		
 	}
 	
+	// Insert a batch of points from GpsLogWriter in a single transaction
+	public boolean addPoints(List<PendingPoint> batch) {
+		final String INSERT =
+			"insert into " + TABLE_POINTS + " ("
+				+ KEY_POINT_PROVIDER + ", "
+				+ KEY_POINT_LATITUDE + ", "
+				+ KEY_POINT_LONGITUDE + ", "
+				+ KEY_POINT_ALTITUDE + ", "
+				+ KEY_POINT_ACQUIRED + ", "
+				+ KEY_POINT_TRACK_ID + ", "
+				+ KEY_POINT_TRACK_SEGMENT
+			+ ") values (?, ?, ?, ?, ?, ?, ?)";
+		
+		SQLiteStatement insert = mDb.compileStatement(INSERT);
+		mDb.beginTransaction();
+		try {
+			for (PendingPoint point : batch) {
+				Location location = point.location;
+				insert.bindString(1, location.getProvider());
+				insert.bindDouble(2, location.getLatitude());
+				insert.bindDouble(3, location.getLongitude());
+				insert.bindDouble(4, location.getAltitude());
+				insert.bindLong(5, location.getTime());
+				if (point.isTracked()) {
+					insert.bindLong(6, point.trackId);
+					insert.bindLong(7, point.segment);
+				} else {
+					insert.bindNull(6);
+					insert.bindLong(7, 0);
+				}
+				insert.executeInsert();
+			}
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+			insert.close();
+		}
+		return true;
+	}
+	
 	public long startTrack() {
 		Log.d(TAG, "Starting new track");
 		
@@ -377,9 +542,178 @@ public class GpsDbAdapter {
 		return (mDb.update(TABLE_TRACKS, newValues, KEY_TRACK_ROWID+"=?", whereArgs) > 0);				
 	}
 	
+	// Acquired time of the last point uploaded, 0 if none yet, or
+	// TRACK_UPLOAD_FINISHED
+	public long getTrackUploadedUntil(long trackId) {
+		return getTrackLong(trackId, KEY_TRACK_UPLOADED_UNTIL);
+	}
+	
+	// Number of slices of the track uploaded so far
+	public int getTrackUploadSequence(long trackId) {
+		return (int) getTrackLong(trackId, KEY_TRACK_UPLOAD_SEQUENCE);
+	}
+	
+	public boolean setTrackUploaded(long trackId, long uploadedUntil, int sequence) {
+		ContentValues newValues = new ContentValues();
+		newValues.put(KEY_TRACK_UPLOADED_UNTIL, uploadedUntil);
+		newValues.put(KEY_TRACK_UPLOAD_SEQUENCE, sequence);
+		
+		String[] whereArgs = new String[1];
+		whereArgs[0] = Long.toString(trackId);
+		
+		return (mDb.update(TABLE_TRACKS, newValues, KEY_TRACK_ROWID+"=?", whereArgs) > 0);
+	}
+	
+	// Acquired time of the track's last stored point, or 0 if it has none
+	public long getLastTrackPointTime(long trackId) {
+		final String QUERY =
+			"select max("
+				+ "coalesce((select max(" + KEY_POINT_ACQUIRED + ")"
+					+ " from " + TABLE_POINTS
+					+ " where " + KEY_POINT_TRACK_ID + "=" + Long.toString(trackId) + "), 0), "
+				+ "coalesce((select max(" + KEY_SEGMENT_LAST_ACQUIRED + ")"
+					+ " from " + TABLE_SEGMENTS
+					+ " where " + KEY_SEGMENT_TRACK_ID + "=" + Long.toString(trackId) + "), 0))";
+		
+		long time = 0;
+		Cursor c = mDb.rawQuery(QUERY, null);
+		if (c.moveToFirst() && !c.isNull(0)) {
+			time = c.getLong(0);
+		}
+		c.close();
+		
+		return time;
+	}
+	
+	private long getTrackLong(long trackId, String column) {
+		final String QUERY =
+			"select " + column
+			+ " from " + TABLE_TRACKS
+			+ " where " + KEY_TRACK_ROWID + "=" + Long.toString(trackId);
+		
+		long value = 0;
+		Cursor c = mDb.rawQuery(QUERY, null);
+		if (c.moveToFirst()) {
+			value = c.getLong(0);
+		}
+		c.close();
+		
+		return value;
+	}
+	
 	public Cursor getTrackPoints(long trackId) {
-		final String QUERY = 
-			"select "
+		return getTrackPoints(trackId, Long.MIN_VALUE);
+	}
+	
+	static final String[] TRACK_POINT_COLUMNS = {
+			KEY_POINT_ROWID,
+			KEY_POINT_LATITUDE,
+			KEY_POINT_LONGITUDE,
+			KEY_POINT_ALTITUDE,
+			KEY_POINT_ORIENTATION,
+			KEY_POINT_ACQUIRED,
+			KEY_POINT_TRACK_SEGMENT
+	};
+	
+	// Points of the track acquired after afterTime, oldest first.  Points
+	// in packed segments have no row id.  readTrackPoints() is cheaper if
+	// the points are only read through once.
+	public Cursor getTrackPoints(long trackId, long afterTime) {
+		Cursor stored;
+		List<PackedSegment> packed;
+		List<PendingPoint> pending;
+		synchronized (GpsLogWriter.COMMIT_LOCK) {
+			packed = getPackedSegments(trackId, afterTime);
+			stored = mDb.rawQuery(getStoredTrackPointsQuery(trackId, afterTime), null);
+			stored.getCount(); // run the query before the writer can commit more
+			pending = GpsLogWriter.pendingPoints();
+		}
+		
+		// Only finished segments are packed, so they go before the stored
+		// points.  They are decoded a segment at a time as the cursor moves.
+		Cursor unpacked = new PackedSegmentCursor(packed, afterTime);
+		
+		// Points still in the write-behind buffer go after the stored ones
+		MatrixCursor unflushed = new MatrixCursor(TRACK_POINT_COLUMNS);
+		for (PendingPoint point : pending) {
+			if (point.trackId != trackId || point.location.getTime() <= afterTime)
+				continue;
+			
+			Location l = point.location;
+			unflushed.addRow(new Object[] { null, l.getLatitude(), l.getLongitude(), l.getAltitude(),
+					null, l.getTime(), point.segment });
+		}
+		
+		List<Cursor> cursors = new ArrayList<Cursor>(3);
+		for (Cursor c : new Cursor[] { unpacked, stored, unflushed }) {
+			if (c == stored || c.getCount() > 0) {
+				cursors.add(c);
+			} else {
+				c.close();
+			}
+		}
+		
+		if (cursors.size() == 1) {
+			return stored;
+		}
+		return new MergeCursor(cursors.toArray(new Cursor[cursors.size()]));
+	}
+	
+	// Receives the points of a track from readTrackPoints()
+	public interface TrackPointSink {
+		void point(long segment, double lat, double lon, double alt, long time) throws IOException;
+	}
+	
+	// Pass the points of the track acquired after afterTime to sink,
+	// oldest first.  Unlike getTrackPoints() packed segments are decoded
+	// straight into the sink, without a cursor row per point.
+	public void readTrackPoints(long trackId, long afterTime, TrackPointSink sink) throws IOException {
+		Cursor stored;
+		List<PackedSegment> packed;
+		List<PendingPoint> pending;
+		synchronized (GpsLogWriter.COMMIT_LOCK) {
+			packed = getPackedSegments(trackId, afterTime);
+			stored = mDb.rawQuery(getStoredTrackPointsQuery(trackId, afterTime), null);
+			stored.getCount(); // run the query before the writer can commit more
+			pending = GpsLogWriter.pendingPoints();
+		}
+		
+		try {
+			for (PackedSegment segment : packed) {
+				TrackSegmentCodec.Decoder points = new TrackSegmentCodec.Decoder(segment.data);
+				while (points.next()) {
+					if (points.time > afterTime)
+						sink.point(segment.number, points.latitude, points.longitude, points.altitude,
+								points.time);
+				}
+			}
+			
+			if (stored.moveToFirst()) {
+				int latIndex = stored.getColumnIndex(KEY_POINT_LATITUDE);
+				int lonIndex = stored.getColumnIndex(KEY_POINT_LONGITUDE);
+				int altIndex = stored.getColumnIndex(KEY_POINT_ALTITUDE);
+				int acqIndex = stored.getColumnIndex(KEY_POINT_ACQUIRED);
+				int segIndex = stored.getColumnIndex(KEY_POINT_TRACK_SEGMENT);
+				do {
+					sink.point(stored.getLong(segIndex), stored.getDouble(latIndex),
+							stored.getDouble(lonIndex), stored.getDouble(altIndex), stored.getLong(acqIndex));
+				} while (stored.moveToNext());
+			}
+		} finally {
+			stored.close();
+		}
+		
+		for (PendingPoint point : pending) {
+			if (point.trackId != trackId || point.location.getTime() <= afterTime)
+				continue;
+			
+			Location l = point.location;
+			sink.point(point.segment, l.getLatitude(), l.getLongitude(), l.getAltitude(), l.getTime());
+		}
+	}
+	
+	private String getStoredTrackPointsQuery(long trackId, long afterTime) {
+		return "select "
 				+ KEY_POINT_ROWID + ", "
 				+ KEY_POINT_LATITUDE + ", "
 				+ KEY_POINT_LONGITUDE + ", "
@@ -389,17 +723,165 @@ public class GpsDbAdapter {
 				+ KEY_POINT_TRACK_SEGMENT
 				+ " from " + TABLE_POINTS
 				+ " where " + KEY_POINT_TRACK_ID + "=" + Long.toString(trackId)
+				+ " and " + KEY_POINT_ACQUIRED + ">" + Long.toString(afterTime)
 				+ " order by " + KEY_POINT_ACQUIRED + " asc";
-		return mDb.rawQuery(QUERY, null);
 	}
 	
-	public long getNumTrackPoints(long trackId) {
-		long numPoints;
+	static class PackedSegment {
+		final long number;
+		final long firstAcquired;
+		final int numPoints;
+		final byte[] data;
+		
+		PackedSegment(long number, long firstAcquired, int numPoints, byte[] data) {
+			this.number = number;
+			this.firstAcquired = firstAcquired;
+			this.numPoints = numPoints;
+			this.data = data;
+		}
+	}
+	
+	// The track's packed segments with points acquired after afterTime,
+	// oldest first.  Must be called with COMMIT_LOCK held.
+	private List<PackedSegment> getPackedSegments(long trackId, long afterTime) {
+		final String QUERY =
+			"select "
+				+ KEY_SEGMENT_NUMBER + ", "
+				+ KEY_SEGMENT_FIRST_ACQUIRED + ", "
+				+ KEY_SEGMENT_NUM_POINTS + ", "
+				+ KEY_SEGMENT_DATA
+			+ " from " + TABLE_SEGMENTS
+			+ " where " + KEY_SEGMENT_TRACK_ID + "=" + Long.toString(trackId)
+				+ " and " + KEY_SEGMENT_LAST_ACQUIRED + ">" + Long.toString(afterTime)
+			+ " order by " + KEY_SEGMENT_FIRST_ACQUIRED + " asc";
 		
-		Cursor c = getTrackPoints(trackId);
-		numPoints = c.getCount();
+		List<PackedSegment> segments = new ArrayList<PackedSegment>();
+		Cursor c = mDb.rawQuery(QUERY, null);
+		while (c.moveToNext()) {
+			segments.add(new PackedSegment(c.getLong(0), c.getLong(1), c.getInt(2), c.getBlob(3)));
+		}
+		c.close();
+		return segments;
+	}
+	
+	// Pack the stored points of the track's segments before beforeSegment
+	// into one row each (see TrackSegmentCodec), and delete the points.
+	// Only for segments that are finished, and whose points have all been
+	// committed; GpsLogWriter.packSegments() waits for that.  Each segment
+	// is packed in its own transaction, holding COMMIT_LOCK so readers
+	// never see a segment both packed and unpacked.  Returns the number of
+	// points packed.
+	int packTrackSegments(long trackId, long beforeSegment) {
+		final String SEGMENTS_QUERY =
+			"select distinct " + KEY_POINT_TRACK_SEGMENT
+			+ " from " + TABLE_POINTS
+			+ " where " + KEY_POINT_TRACK_ID + "=" + Long.toString(trackId)
+				+ " and " + KEY_POINT_TRACK_SEGMENT + "<" + Long.toString(beforeSegment);
+		
+		List<Long> segments = new ArrayList<Long>();
+		Cursor c = mDb.rawQuery(SEGMENTS_QUERY, null);
+		while (c.moveToNext()) {
+			segments.add(c.getLong(0));
+		}
 		c.close();
 		
+		int packed = 0;
+		for (long segment : segments) {
+			synchronized (GpsLogWriter.COMMIT_LOCK) {
+				packed += packTrackSegment(trackId, segment);
+			}
+		}
+		return packed;
+	}
+	
+	private int packTrackSegment(long trackId, long segment) {
+		final String WHERE =
+			KEY_POINT_TRACK_ID + "=" + Long.toString(trackId)
+			+ " and " + KEY_POINT_TRACK_SEGMENT + "=" + Long.toString(segment);
+		final String POINTS_QUERY =
+			"select "
+				+ KEY_POINT_LATITUDE + ", "
+				+ KEY_POINT_LONGITUDE + ", "
+				+ KEY_POINT_ALTITUDE + ", "
+				+ KEY_POINT_ACQUIRED
+			+ " from " + TABLE_POINTS
+			+ " where " + WHERE
+			+ " order by " + KEY_POINT_ACQUIRED + " asc";
+		final String PACKED_QUERY =
+			"select " + KEY_SEGMENT_DATA
+			+ " from " + TABLE_SEGMENTS
+			+ " where " + KEY_SEGMENT_TRACK_ID + "=" + Long.toString(trackId)
+				+ " and " + KEY_SEGMENT_NUMBER + "=" + Long.toString(segment);
+		
+		TrackSegmentCodec.Encoder encoder = new TrackSegmentCodec.Encoder();
+		int packed = 0;
+		mDb.beginTransaction();
+		try {
+			// Points that came in after the segment was packed go on the end
+			Cursor c = mDb.rawQuery(PACKED_QUERY, null);
+			try {
+				if (c.moveToFirst()) {
+					TrackSegmentCodec.Decoder points = new TrackSegmentCodec.Decoder(c.getBlob(0));
+					while (points.next()) {
+						encoder.add(points.latitude, points.longitude, points.altitude, points.time);
+					}
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "Error reading segment " + segment + " of track " + trackId + ", leaving it: " + e);
+				return 0;
+			} finally {
+				c.close();
+			}
+			
+			c = mDb.rawQuery(POINTS_QUERY, null);
+			while (c.moveToNext()) {
+				encoder.add(c.getDouble(0), c.getDouble(1), c.getDouble(2), c.getLong(3));
+				packed++;
+			}
+			c.close();
+			
+			ContentValues values = new ContentValues();
+			values.put(KEY_SEGMENT_TRACK_ID, trackId);
+			values.put(KEY_SEGMENT_NUMBER, segment);
+			values.put(KEY_SEGMENT_FIRST_ACQUIRED, encoder.getFirstTime());
+			values.put(KEY_SEGMENT_LAST_ACQUIRED, encoder.getLastTime());
+			values.put(KEY_SEGMENT_NUM_POINTS, encoder.getCount());
+			values.put(KEY_SEGMENT_DATA, encoder.toByteArray());
+			mDb.replace(TABLE_SEGMENTS, null, values);
+			mDb.delete(TABLE_POINTS, WHERE, null);
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+		return packed;
+	}
+	
+	// Packed, stored and buffered points of the track, without reading them
+	public long getNumTrackPoints(long trackId) {
+		final String QUERY =
+			"select "
+				+ "coalesce((select sum(" + KEY_SEGMENT_NUM_POINTS + ")"
+					+ " from " + TABLE_SEGMENTS
+					+ " where " + KEY_SEGMENT_TRACK_ID + "=" + Long.toString(trackId) + "), 0)"
+				+ " + (select count(*)"
+					+ " from " + TABLE_POINTS
+					+ " where " + KEY_POINT_TRACK_ID + "=" + Long.toString(trackId) + ")";
+		
+		long numPoints = 0;
+		List<PendingPoint> pending;
+		synchronized (GpsLogWriter.COMMIT_LOCK) {
+			Cursor c = mDb.rawQuery(QUERY, null);
+			if (c.moveToFirst()) {
+				numPoints = c.getLong(0);
+			}
+			c.close();
+			pending = GpsLogWriter.pendingPoints();
+		}
+		
+		for (PendingPoint point : pending) {
+			if (point.trackId == trackId)
+				numPoints++;
+		}
 		return numPoints;
 	}
 	
@@ -414,6 +896,145 @@ public class GpsDbAdapter {
 		return mDb.rawQuery(QUERY, null);
 	}
 	
+	// Thin out the next stretch of untracked points acquired before
+	// cutoff to the first point in each interval, in one short transaction
+	// of about maxRows points.  Tracked points are left alone.  Call it
+	// again until it returns -1, which means everything before cutoff has
+	// been rolled up; otherwise it returns the number of points deleted.
+	// Where it got to is kept in the database, so each point is only
+	// looked at once.
+	public int rollUpPoints(long cutoff, long interval, int maxRows) {
+		long until = (cutoff / interval) * interval;
+		long from = getState(STATE_ROLLED_UP_UNTIL, 0);
+		if (from >= until)
+			return -1;
+		
+		// Stop short of the point maxRows on, at an interval boundary
+		final String END_QUERY =
+			"select " + KEY_POINT_ACQUIRED
+			+ " from " + TABLE_POINTS
+			+ " where " + KEY_POINT_TRACK_ID + " is null"
+				+ " and " + KEY_POINT_ACQUIRED + ">=" + Long.toString(from)
+			+ " order by " + KEY_POINT_ACQUIRED + " asc"
+			+ " limit 1 offset " + Integer.toString(maxRows);
+		long to = until;
+		Cursor c = mDb.rawQuery(END_QUERY, null);
+		if (c.moveToFirst()) {
+			to = Math.min(until, (c.getLong(0) / interval) * interval);
+		}
+		c.close();
+		if (to <= from) {
+			to = Math.min(until, (from / interval) * interval + interval);
+		}
+		
+		final String RANGE =
+			KEY_POINT_TRACK_ID + " is null"
+			+ " and " + KEY_POINT_ACQUIRED + ">=" + Long.toString(from)
+			+ " and " + KEY_POINT_ACQUIRED + "<" + Long.toString(to);
+		final String WHERE =
+			RANGE + " and " + KEY_POINT_ROWID + " not in ("
+				+ "select min(" + KEY_POINT_ROWID + ")"
+				+ " from " + TABLE_POINTS
+				+ " where " + RANGE
+				+ " group by " + KEY_POINT_ACQUIRED + " / " + Long.toString(interval) + ")";
+		
+		int deleted;
+		mDb.beginTransaction();
+		try {
+			deleted = mDb.delete(TABLE_POINTS, WHERE, null);
+			setState(STATE_ROLLED_UP_UNTIL, to);
+			mDb.setTransactionSuccessful();
+		} finally {
+			mDb.endTransaction();
+		}
+		return deleted;
+	}
+	
+	// Delete up to maxRows untracked points acquired before time, oldest
+	// first.  Returns the number deleted.
+	public int deletePointsBefore(long time, int maxRows) {
+		final String WHERE =
+			KEY_POINT_ROWID + " in ("
+				+ "select " + KEY_POINT_ROWID
+				+ " from " + TABLE_POINTS
+				+ " where " + KEY_POINT_TRACK_ID + " is null"
+					+ " and " + KEY_POINT_ACQUIRED + "<" + Long.toString(time)
+				+ " order by " + KEY_POINT_ACQUIRED + " asc"
+				+ " limit " + Integer.toString(maxRows) + ")";
+		return mDb.delete(TABLE_POINTS, WHERE, null);
+	}
+	
+	// Sizes of the points table and the database file, for the logs
+	public String getStorageReport() {
+		long rolledUpUntil = getState(STATE_ROLLED_UP_UNTIL, 0);
+		final String COUNT_QUERY =
+			"select"
+				+ " count(" + KEY_POINT_TRACK_ID + "),"
+				+ " sum(" + KEY_POINT_TRACK_ID + " is null and "
+					+ KEY_POINT_ACQUIRED + ">=" + Long.toString(rolledUpUntil) + "),"
+				+ " sum(" + KEY_POINT_TRACK_ID + " is null and "
+					+ KEY_POINT_ACQUIRED + "<" + Long.toString(rolledUpUntil) + ")"
+			+ " from " + TABLE_POINTS;
+		
+		long tracked = 0, raw = 0, rolledUp = 0;
+		Cursor c = mDb.rawQuery(COUNT_QUERY, null);
+		if (c.moveToFirst()) {
+			tracked = c.getLong(0);
+			raw = c.getLong(1);
+			rolledUp = c.getLong(2);
+		}
+		c.close();
+		
+		final String PACKED_QUERY =
+			"select count(*), sum(" + KEY_SEGMENT_NUM_POINTS + "), sum(length(" + KEY_SEGMENT_DATA + "))"
+			+ " from " + TABLE_SEGMENTS;
+		
+		long segments = 0, packed = 0, packedBytes = 0;
+		c = mDb.rawQuery(PACKED_QUERY, null);
+		if (c.moveToFirst()) {
+			segments = c.getLong(0);
+			packed = c.getLong(1);
+			packedBytes = c.getLong(2);
+		}
+		c.close();
+		
+		long pageSize = getPragma("page_size");
+		return "gps.db: " + (getPragma("page_count") * pageSize / 1024) + " KB ("
+			+ (getPragma("freelist_count") * pageSize / 1024) + " KB free), "
+			+ tracked + " track points, " + raw + " raw points, "
+			+ rolledUp + " rolled-up points, "
+			+ packed + " track points packed in " + segments + " segments ("
+			+ (packedBytes / 1024) + " KB)";
+	}
+	
+	private long getPragma(String name) {
+		long value = 0;
+		Cursor c = mDb.rawQuery("pragma " + name, null);
+		if (c.moveToFirst()) {
+			value = c.getLong(0);
+		}
+		c.close();
+		return value;
+	}
+	
+	private long getState(String name, long defaultValue) {
+		long value = defaultValue;
+		Cursor c = mDb.query(TABLE_STATE, new String[] {KEY_STATE_VALUE}, 
+				KEY_STATE_NAME + "=?", new String[] {name}, null, null, null);
+		if (c.moveToFirst()) {
+			value = c.getLong(0);
+		}
+		c.close();
+		return value;
+	}
+	
+	private void setState(String name, long value) {
+		ContentValues values = new ContentValues();
+		values.put(KEY_STATE_NAME, name);
+		values.put(KEY_STATE_VALUE, value);
+		mDb.replace(TABLE_STATE, null, values);
+	}
+	
 	public List<Location> getBoundingLocations(long time) {
 		return getBoundingLocations(time, 1);
 	}
@@ -428,57 +1049,145 @@ public class GpsDbAdapter {
 				+ KEY_POINT_PROVIDER
 				+ " from " + TABLE_POINTS;
 		
+		// Both halves of the bracket in one statement.  Each half is a
+		// short walk of the acquired index from the photo time outwards.
+		String bracketQuery =
+			"select * from (" + SELECT_QUERY
+				+ " where " + KEY_POINT_ACQUIRED + " <= " + Long.toString(time)
+				+ " order by " + KEY_POINT_ACQUIRED + " desc limit " + Integer.toString(bracket) + ")"
+			+ " union all "
+			+ "select * from (" + SELECT_QUERY
+				+ " where " + KEY_POINT_ACQUIRED + " > " + Long.toString(time)
+				+ " order by " + KEY_POINT_ACQUIRED + " asc limit " + Integer.toString(bracket) + ")";
+		
+		List<Location> stored = new ArrayList<Location>(bracket * 2);
+		List<PendingPoint> pending;
+		synchronized (GpsLogWriter.COMMIT_LOCK) {
+			readLocations(mDb.rawQuery(bracketQuery, null), stored);
+			readPackedLocations(time, bracket, stored);
+			pending = GpsLogWriter.pendingPoints();
+		}
+		
+		// Points still in the write-behind buffer compete with the stored ones
+		List<Location> previous = new ArrayList<Location>(bracket * 2);
+		List<Location> next = new ArrayList<Location>(bracket * 2);
+		for (Location l : stored) {
+			if (l.getTime() <= time) {
+				previous.add(l);
+			} else {
+				next.add(l);
+			}
+		}
+		for (PendingPoint point : pending) {
+			if (point.location.getTime() <= time) {
+				previous.add(point.location);
+			} else {
+				next.add(point.location);
+			}
+		}
+		
+		Collections.sort(previous, Collections.reverseOrder(LOCATION_TIME_ORDER));
+		Collections.sort(next, LOCATION_TIME_ORDER);
+		
 		ArrayList<Location> points = new ArrayList<Location>((bracket * 2) + 1);
-		int latIdx, lonIdx, altIdx, acqIdx, provIdx;
-		
-		String previousQuery =
-			SELECT_QUERY
-			+ " where " + KEY_POINT_ACQUIRED + " <= " + Long.toString(time)
-			+ " order by " + KEY_POINT_ACQUIRED + " desc limit " + Integer.toString(bracket);
-		Cursor previous = mDb.rawQuery(previousQuery, null);
-		if (previous.getCount() > 0) {
-			latIdx = previous.getColumnIndex(KEY_POINT_LATITUDE);
-			lonIdx = previous.getColumnIndex(KEY_POINT_LONGITUDE);
-			altIdx = previous.getColumnIndex(KEY_POINT_ALTITUDE);
-			acqIdx = previous.getColumnIndex(KEY_POINT_ACQUIRED);
-			provIdx = previous.getColumnIndex(KEY_POINT_PROVIDER);
+		points.addAll(previous.subList(0, Math.min(bracket, previous.size())));
+		points.addAll(next.subList(0, Math.min(bracket, next.size())));
+		return points;
+	}
+	
+	private static final Comparator<Location> LOCATION_TIME_ORDER = new Comparator<Location>() {
+		public int compare(Location a, Location b) {
+			if (a.getTime() < b.getTime())
+				return -1;
+			if (a.getTime() > b.getTime())
+				return 1;
+			return 0;
+		}
+	};
+	
+	// Add the points of packed segments nearest time, up to bracket on
+	// each side.  Must be called with COMMIT_LOCK held.
+	private void readPackedLocations(long time, int bracket, List<Location> locations) {
+		final String SELECT_QUERY =
+			"select " + KEY_SEGMENT_DATA
+			+ " from " + TABLE_SEGMENTS;
+		final String BEFORE_QUERY = SELECT_QUERY
+			+ " where " + KEY_SEGMENT_FIRST_ACQUIRED + " <= " + Long.toString(time)
+			+ " order by " + KEY_SEGMENT_FIRST_ACQUIRED + " desc";
+		final String AFTER_QUERY = SELECT_QUERY
+			+ " where " + KEY_SEGMENT_LAST_ACQUIRED + " > " + Long.toString(time)
+			+ " order by " + KEY_SEGMENT_FIRST_ACQUIRED + " asc";
+		
+		Cursor c = mDb.rawQuery(BEFORE_QUERY, null);
+		try {
+			int found = 0;
+			while (found < bracket && c.moveToNext()) {
+				byte[] data = c.getBlob(0);
+				
+				// The last few points at or before time, so count them first
+				int before = 0;
+				TrackSegmentCodec.Decoder points = new TrackSegmentCodec.Decoder(data);
+				while (points.next() && points.time <= time)
+					before++;
+				
+				int skip = before - (bracket - found);
+				points = new TrackSegmentCodec.Decoder(data);
+				for (int i = 0; i < before && points.next(); i++) {
+					if (i >= skip) {
+						locations.add(packedLocation(points));
+						found++;
+					}
+				}
+			}
+			c.close();
 			
-			previous.moveToFirst();
-			do {
-				Location l = new Location(previous.getString(provIdx));
-				l.setTime(previous.getLong(acqIdx));
-				l.setLatitude(previous.getDouble(latIdx));
-				l.setLongitude(previous.getDouble(lonIdx));
-				l.setAltitude(previous.getDouble(altIdx));
-				points.add(l);
-			} while(previous.moveToNext());
-		}
-		previous.close();
-		
-		String nextQuery =
-			SELECT_QUERY
-			+ " where " + KEY_POINT_ACQUIRED + " > " + Long.toString(time)
-			+ " order by " + KEY_POINT_ACQUIRED + " asc limit " + Integer.toString(bracket);
-		Cursor next = mDb.rawQuery(nextQuery, null);
-		if (next.getCount() > 0) {
-			latIdx = next.getColumnIndex(KEY_POINT_LATITUDE);
-			lonIdx = next.getColumnIndex(KEY_POINT_LONGITUDE);
-			altIdx = next.getColumnIndex(KEY_POINT_ALTITUDE);
-			acqIdx = next.getColumnIndex(KEY_POINT_ACQUIRED);
-			provIdx = next.getColumnIndex(KEY_POINT_PROVIDER);
+			c = mDb.rawQuery(AFTER_QUERY, null);
+			found = 0;
+			while (found < bracket && c.moveToNext()) {
+				TrackSegmentCodec.Decoder points = new TrackSegmentCodec.Decoder(c.getBlob(0));
+				while (found < bracket && points.next()) {
+					if (points.time > time) {
+						locations.add(packedLocation(points));
+						found++;
+					}
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading packed segment: " + e);
+		} finally {
+			c.close();
+		}
+	}
+	
+	// Only GPS fixes are logged to tracks
+	private static Location packedLocation(TrackSegmentCodec.Decoder points) {
+		Location l = new Location(LocationManager.GPS_PROVIDER);
+		l.setTime(points.time);
+		l.setLatitude(points.latitude);
+		l.setLongitude(points.longitude);
+		l.setAltitude(points.altitude);
+		return l;
+	}
+	
+	// Read (and close) a cursor from the bounding location queries
+	private void readLocations(Cursor cursor, List<Location> locations) {
+		if (cursor.getCount() > 0) {
+			int latIdx = cursor.getColumnIndex(KEY_POINT_LATITUDE);
+			int lonIdx = cursor.getColumnIndex(KEY_POINT_LONGITUDE);
+			int altIdx = cursor.getColumnIndex(KEY_POINT_ALTITUDE);
+			int acqIdx = cursor.getColumnIndex(KEY_POINT_ACQUIRED);
+			int provIdx = cursor.getColumnIndex(KEY_POINT_PROVIDER);
 			
-			next.moveToFirst();
+			cursor.moveToFirst();
 			do {
-				Location l = new Location(next.getString(provIdx));
-				l.setTime(next.getLong(acqIdx));
-				l.setLatitude(next.getDouble(latIdx));
-				l.setLongitude(next.getDouble(lonIdx));
-				l.setAltitude(next.getDouble(altIdx));
-				points.add(l);
-			} while(next.moveToNext());
+				Location l = new Location(cursor.getString(provIdx));
+				l.setTime(cursor.getLong(acqIdx));
+				l.setLatitude(cursor.getDouble(latIdx));
+				l.setLongitude(cursor.getDouble(lonIdx));
+				l.setAltitude(cursor.getDouble(altIdx));
+				locations.add(l);
+			} while(cursor.moveToNext());
 		}
-		next.close();
-		
-		return points;
+		cursor.close();
 	}
 }
@@ -0,0 +1,299 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.location.Location;
+import android.os.SystemClock;
+import android.util.Log;
+
+// Write-behind logger for GPS fixes.  Fixes are buffered in memory and
+// committed to the points table by a dedicated thread, in one transaction
+// per batch, so the location listener never touches sqlite.
+//
+// The pending buffer is shared by the whole process so any GpsDbAdapter
+// (including the ones opened by the activities) can merge not-yet-committed
+// points into its query results.  See GpsDbAdapter.getTrackPoints().
+//
+// The same thread packs finished track segments when asked, once their
+// points are committed, so packing is never racing the commits.
+public class GpsLogWriter {
+	private static final String TAG = "GpsLogWriter";
+
+	// Commit once this many points are waiting...
+	public static final int FLUSH_SIZE = 30;
+	// ...or once the oldest waiting point is this old
+	public static final long FLUSH_AGE_MSECS = 15000;
+	// Hard bound on the buffer if the database can't keep up
+	public static final int MAX_PENDING = 600;
+
+	public static final long NO_TRACK = -1;
+
+	// Guards sPending.  Only ever held briefly.
+	private static final Object sPendingLock = new Object();
+
+	// Held for the duration of a commit, and by readers while they
+	// run a query and snapshot the buffer, so a reader never sees a
+	// point both in the database and in the buffer (or in neither).
+	static final Object COMMIT_LOCK = new Object();
+
+	private static final LinkedList<PendingPoint> sPending = new LinkedList<PendingPoint>();
+	// Points dropped off the head of the buffer because it was full, so a
+	// commit knows how much of its batch is still at the head
+	private static long sDroppedCount = 0;
+
+	public static class PendingPoint {
+		public final Location location;
+		public final long trackId;
+		public final long segment;
+		// SystemClock.elapsedRealtime() when it was buffered
+		public final long queuedAt;
+
+		public PendingPoint(Location location, long trackId, long segment) {
+			this.location = location;
+			this.trackId = trackId;
+			this.segment = segment;
+			this.queuedAt = SystemClock.elapsedRealtime();
+		}
+
+		public boolean isTracked() {
+			return trackId != NO_TRACK;
+		}
+	}
+
+	// A track whose segments before beforeSegment are to be packed
+	private static class PackRequest {
+		final long trackId;
+		final long beforeSegment;
+
+		PackRequest(long trackId, long beforeSegment) {
+			this.trackId = trackId;
+			this.beforeSegment = beforeSegment;
+		}
+	}
+
+	private final GpsDbAdapter mDb;
+	private Thread mThread;
+	// Guarded by sPendingLock
+	private final List<PackRequest> mPackRequests = new ArrayList<PackRequest>();
+	private boolean mFlushRequested = false;
+	private boolean mStopping = false;
+	private long mFlushGeneration = 0;
+
+	public GpsLogWriter(GpsDbAdapter db) {
+		mDb = db;
+	}
+
+	public void start() {
+		synchronized (sPendingLock) {
+			mStopping = false;
+		}
+		mThread = new Thread(null, mWriteTask, "GpsLogWriter");
+		mThread.start();
+	}
+
+	// Commit everything still buffered and stop the writer thread
+	public void close() {
+		synchronized (sPendingLock) {
+			mStopping = true;
+			sPendingLock.notifyAll();
+		}
+
+		if (mThread == null)
+			return;
+
+		try {
+			mThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		mThread = null;
+	}
+
+	public void logPoint(Location location) {
+		enqueue(new PendingPoint(new Location(location), NO_TRACK, 0));
+	}
+
+	public void logPointToTrack(long trackId, long segment, Location location) {
+		enqueue(new PendingPoint(new Location(location), trackId, segment));
+	}
+
+	// Ask the writer to commit whatever is buffered without waiting
+	public void flush() {
+		synchronized (sPendingLock) {
+			mFlushRequested = true;
+			sPendingLock.notifyAll();
+		}
+	}
+
+	// Pack the finished segments of a track, those before beforeSegment,
+	// into one row each once their points are committed.  See
+	// GpsDbAdapter.packTrackSegments().
+	public void packSegments(long trackId, long beforeSegment) {
+		synchronized (sPendingLock) {
+			mPackRequests.add(new PackRequest(trackId, beforeSegment));
+			mFlushRequested = true;
+			sPendingLock.notifyAll();
+		}
+	}
+
+	// Commit whatever is buffered and wait until it is in the database
+	public void flushAndWait() {
+		synchronized (sPendingLock) {
+			if (sPending.isEmpty())
+				return;
+
+			long generation = mFlushGeneration;
+			mFlushRequested = true;
+			sPendingLock.notifyAll();
+
+			while (generation == mFlushGeneration && !sPending.isEmpty() && mThread != null) {
+				try {
+					sPendingLock.wait(1000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	// Snapshot of the points that have not been committed yet, oldest first.
+	// Callers that merge these into a query must hold COMMIT_LOCK.
+	static List<PendingPoint> pendingPoints() {
+		synchronized (sPendingLock) {
+			return new ArrayList<PendingPoint>(sPending);
+		}
+	}
+
+	private void enqueue(PendingPoint point) {
+		synchronized (sPendingLock) {
+			if (sPending.size() >= MAX_PENDING) {
+				Log.w(TAG, "Write-behind buffer full, dropping oldest point");
+				sPending.removeFirst();
+				sDroppedCount++;
+			}
+
+			boolean wasEmpty = sPending.isEmpty();
+			sPending.add(point);
+
+			// Wake the writer so it can start the age timer, or commit
+			if (wasEmpty || sPending.size() >= FLUSH_SIZE)
+				sPendingLock.notifyAll();
+		}
+	}
+
+	private Runnable mWriteTask = new Runnable() {
+		public void run() {
+			while (true) {
+				packReadySegments();
+
+				synchronized (sPendingLock) {
+					waitUntilFlushDue();
+
+					mFlushRequested = false;
+					if (sPending.isEmpty()) {
+						mFlushGeneration++;
+						sPendingLock.notifyAll();
+						if (mStopping)
+							return;
+						continue;
+					}
+				}
+
+				boolean committed = false;
+				synchronized (COMMIT_LOCK) {
+					List<PendingPoint> batch;
+					long droppedBefore;
+					synchronized (sPendingLock) {
+						batch = new ArrayList<PendingPoint>(sPending);
+						droppedBefore = sDroppedCount;
+					}
+					try {
+						committed = mDb.addPoints(batch);
+					} catch (RuntimeException e) {
+						Log.e(TAG, "Error committing " + batch.size() + " points: " + e);
+					}
+
+					synchronized (sPendingLock) {
+						if (committed) {
+							// The batch was the head of the buffer, less any
+							// of it dropped since because the buffer was full
+							long left = batch.size() - (sDroppedCount - droppedBefore);
+							for (long i = 0; i < left; i++)
+								sPending.removeFirst();
+						}
+						mFlushGeneration++;
+						sPendingLock.notifyAll();
+
+						if (!committed && mStopping) {
+							Log.e(TAG, "Giving up on " + sPending.size() + " uncommitted points");
+							return;
+						}
+					}
+				}
+
+				// Don't spin on a database that keeps failing
+				if (!committed)
+					SystemClock.sleep(1000);
+			}
+		}
+
+		// Pack the segments asked for that have no points left to commit
+		private void packReadySegments() {
+			List<PackRequest> ready = new ArrayList<PackRequest>();
+			synchronized (sPendingLock) {
+				Iterator<PackRequest> requests = mPackRequests.iterator();
+				while (requests.hasNext()) {
+					PackRequest request = requests.next();
+					boolean waiting = false;
+					for (PendingPoint point : sPending) {
+						if (point.trackId == request.trackId && point.segment < request.beforeSegment) {
+							waiting = true;
+							break;
+						}
+					}
+					if (!waiting) {
+						ready.add(request);
+						requests.remove();
+					}
+				}
+			}
+
+			for (PackRequest request : ready) {
+				try {
+					int packed = mDb.packTrackSegments(request.trackId, request.beforeSegment);
+					Log.d(TAG, "Packed " + packed + " points of track " + request.trackId);
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Error packing track " + request.trackId + ": " + e);
+				}
+			}
+		}
+
+		// Must be called with sPendingLock held
+		private void waitUntilFlushDue() {
+			while (!mStopping && !mFlushRequested && sPending.size() < FLUSH_SIZE) {
+				long waitMsecs = 0;
+				if (!sPending.isEmpty()) {
+					waitMsecs = FLUSH_AGE_MSECS - (SystemClock.elapsedRealtime() - sPending.getFirst().queuedAt);
+					if (waitMsecs <= 0)
+						return;
+				}
+
+				try {
+					sPendingLock.wait(waitMsecs);
+				} catch (InterruptedException e) {
+					mStopping = true;
+				}
+			}
+		}
+	};
+}
@@ -0,0 +1,69 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+// Decides from recent fixes whether the phone is standing still, so the
+// service can ask the GPS for fixes less often while it is.
+//
+// The two directions are deliberately lopsided.  The phone only counts as
+// still once every fix for stillMsecs has been slower than stillSpeed, but
+// a single fix faster than movingSpeed makes it moving again, so a crew
+// that sets off gets full-rate fixes at once.  A speed between the two
+// leaves the phone as it was, but starts the wait to count as still over.
+// Fixes worse than maxAccuracy, or without a speed, say nothing either way.
+public class GpsRateController {
+    private final float mStillSpeed;
+    private final float mMovingSpeed;
+    private final long mStillMsecs;
+    private final float mMaxAccuracy;
+
+    private boolean mStill = false;
+    // Time of the first of the run of slow fixes, or -1
+    private long mSlowSince = -1;
+
+    public GpsRateController(float stillSpeed, float movingSpeed, long stillMsecs, float maxAccuracy) {
+        mStillSpeed = stillSpeed;
+        mMovingSpeed = movingSpeed;
+        mStillMsecs = stillMsecs;
+        mMaxAccuracy = maxAccuracy;
+    }
+
+    // Take in a fix.  Returns true if the phone went from moving to still
+    // or back.
+    public boolean update(boolean hasSpeed, float speed, float accuracy, long time) {
+        if (!hasSpeed || accuracy > mMaxAccuracy)
+            return false;
+
+        if (speed > mMovingSpeed) {
+            mSlowSince = -1;
+            if (mStill) {
+                mStill = false;
+                return true;
+            }
+        } else if (speed < mStillSpeed) {
+            if (mSlowSince < 0 || time < mSlowSince)
+                mSlowSince = time;
+            if (!mStill && time - mSlowSince >= mStillMsecs) {
+                mStill = true;
+                return true;
+            }
+        } else {
+            mSlowSince = -1;
+        }
+        return false;
+    }
+
+    public boolean isStill() {
+        return mStill;
+    }
+
+    // Back to moving, e.g. when the user starts recording a track
+    public void reset() {
+        mStill = false;
+        mSlowSince = -1;
+    }
+}
@@ -0,0 +1,140 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import android.util.Log;
+
+// Keeps the untracked points from growing without bound.  Every fix is
+// logged whether or not a track is being recorded, for geotagging photos,
+// but after a few days a fix a minute is plenty for that.  So once points
+// are retentionDays old they are rolled up to the first in each
+// ROLLUP_INTERVAL_MSECS, and after ROLLUP_MAX_DAYS they are deleted.
+// Points in tracks are never touched.
+//
+// The work is done from a background thread in chunks of CHUNK_ROWS
+// points, each its own short transaction, with a pause between them, so
+// GpsLogWriter is never held up for long.
+public class GpsRetention {
+	private static final String TAG = "GpsRetention";
+
+	private static final long DAY_MSECS = 24 * 60 * 60 * 1000L;
+
+	// Old points are thinned to one per this long...
+	public static final long ROLLUP_INTERVAL_MSECS = 60 * 1000;
+	// ...and deleted after this many days
+	public static final int ROLLUP_MAX_DAYS = 365;
+
+	public static final int CHUNK_ROWS = 500;
+	public static final long CHUNK_PAUSE_MSECS = 200;
+
+	// First run a while after the service starts, then every few hours
+	public static final long START_DELAY_MSECS = 2 * 60 * 1000;
+	public static final long PERIOD_MSECS = 6 * 60 * 60 * 1000;
+
+	private final GpsDbAdapter mDb;
+	private volatile int mRetentionDays;
+	private final Object mLock = new Object();
+	private boolean mStopping = false;
+	private Thread mThread;
+
+	public GpsRetention(GpsDbAdapter db, int retentionDays) {
+		mDb = db;
+		mRetentionDays = retentionDays;
+	}
+
+	// Takes effect from the next run
+	public void setRetentionDays(int retentionDays) {
+		mRetentionDays = retentionDays;
+	}
+
+	public void start() {
+		synchronized (mLock) {
+			mStopping = false;
+		}
+		mThread = new Thread(null, mMaintainTask, "GpsRetention");
+		mThread.setPriority(Thread.MIN_PRIORITY);
+		mThread.start();
+	}
+
+	// Stop after the chunk in progress, if any
+	public void close() {
+		synchronized (mLock) {
+			mStopping = true;
+			mLock.notifyAll();
+		}
+
+		if (mThread == null)
+			return;
+
+		try {
+			mThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		mThread = null;
+	}
+
+	private Runnable mMaintainTask = new Runnable() {
+		public void run() {
+			if (!pause(START_DELAY_MSECS))
+				return;
+
+			do {
+				try {
+					if (!maintain())
+						return;
+					Log.i(TAG, mDb.getStorageReport());
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Error maintaining points: " + e);
+				}
+			} while (pause(PERIOD_MSECS));
+		}
+
+		// Returns false if asked to stop part way
+		private boolean maintain() {
+			long now = System.currentTimeMillis();
+
+			long rollUpBefore = now - mRetentionDays * DAY_MSECS;
+			int rolledUp = 0;
+			int deleted;
+			while ((deleted = mDb.rollUpPoints(rollUpBefore, ROLLUP_INTERVAL_MSECS, CHUNK_ROWS)) >= 0) {
+				rolledUp += deleted;
+				if (!pause(CHUNK_PAUSE_MSECS))
+					return false;
+			}
+
+			long deleteBefore = now - ROLLUP_MAX_DAYS * DAY_MSECS;
+			int expired = 0;
+			do {
+				deleted = mDb.deletePointsBefore(deleteBefore, CHUNK_ROWS);
+				expired += deleted;
+				if (!pause(CHUNK_PAUSE_MSECS))
+					return false;
+			} while (deleted == CHUNK_ROWS);
+
+			Log.d(TAG, "Rolled up " + rolledUp + " points, deleted " + expired + " expired points");
+			return true;
+		}
+
+		// Returns false if asked to stop
+		private boolean pause(long msecs) {
+			synchronized (mLock) {
+				long until = System.currentTimeMillis() + msecs;
+				long left = msecs;
+				while (!mStopping && left > 0) {
+					try {
+						mLock.wait(left);
+					} catch (InterruptedException e) {
+						mStopping = true;
+					}
+					left = until - System.currentTimeMillis();
+				}
+				return !mStopping;
+			}
+		}
+	};
+}
@@ -6,12 +6,12 @@
 
 package gov.nasa.arc.geocam.geocam;
 
-import java.io.StringWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.TimeZone;
+import java.io.IOException;
+import java.io.Writer;
 
-public class GpxWriter extends StringWriter {
+// Writes a GPX document to a Writer as it goes, so a track of any length
+// takes the same memory.  Call finish() once everything has been appended.
+public class GpxWriter {
 	private static final String PREAMBLE =
 		"<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" +
 		"<gpx " +
@@ -31,85 +31,160 @@ public class GpxWriter extends StringWriter {
 	private static final String TRACK_SEG_START = "<trkseg>";
 	private static final String TRACK_SEG_END = "</trkseg>";
 	
-	public GpxWriter() {
-		super();
+	// Default digits after the decimal point.  7 digits of latitude or
+	// longitude is about a centimeter, well under GPS accuracy.
+	public static final int COORDINATE_DIGITS = 7;
+	public static final int ELEVATION_DIGITS = 1;
+	
+	private static final long[] POWERS_OF_TEN = {
+		1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+	};
+	
+	private final Writer mOut;
+	private final int mCoordinateDigits;
+	private final int mElevationDigits;
+	private final char[] mNumber = new char[32];
+	
+	public GpxWriter(Writer out) throws IOException {
+		this(out, COORDINATE_DIGITS, ELEVATION_DIGITS);
+	}
+	
+	// Write latitudes and longitudes with up to coordinateDigits digits
+	// after the decimal point, and elevations with up to elevationDigits
+	public GpxWriter(Writer out, int coordinateDigits, int elevationDigits) throws IOException {
+		if (coordinateDigits < 0 || coordinateDigits >= POWERS_OF_TEN.length
+			|| elevationDigits < 0 || elevationDigits >= POWERS_OF_TEN.length)
+			throw new IllegalArgumentException("Digits must be 0 to " + (POWERS_OF_TEN.length - 1));
+		mOut = out;
+		mCoordinateDigits = coordinateDigits;
+		mElevationDigits = elevationDigits;
 		
-		this.append(PREAMBLE);
+		mOut.append(PREAMBLE);
 	}
 	
-	public void startTrack(String notes) {
-		this.append(TRACK_START)
+	public void startTrack(String notes) throws IOException {
+		mOut.append(TRACK_START)
 			.append("<desc>").append(notes).append("</desc>");
 	}
 	
-	public void startSegment() {
-		this.append(TRACK_SEG_START);
+	public void startSegment() throws IOException {
+		mOut.append(TRACK_SEG_START);
+	}
+	
+	public void append(double lat, double lon, double alt, long time) throws IOException {
+		mOut.append("<trkpt lat=\"");
+		mOut.write(mNumber, 0, formatFixed(lat, mCoordinateDigits, mNumber, 0));
+		mOut.append("\" lon=\"");
+		mOut.write(mNumber, 0, formatFixed(lon, mCoordinateDigits, mNumber, 0));
+		mOut.append("\">");
+		mOut.append("<time>");
+		Iso8601.format(time, mOut);
+		mOut.append("</time>");
+		mOut.append("<ele>");
+		mOut.write(mNumber, 0, formatFixed(alt, mElevationDigits, mNumber, 0));
+		mOut.append("</ele>");
+		mOut.append("</trkpt>");
 	}
 	
-	public void append(double lat, double lon, double alt, long time) {
-		this.append("<trkpt")
-			.append(" lat=\"").append(Double.toString(lat)).append("\"")
-			.append(" lon=\"").append(Double.toString(lon)).append("\"")
-			.append(">");
-		this.append("<time>").append(dateToISO8601(time)).append("</time>");
-		this.append("<ele>").append(Double.toString(alt)).append("</ele>");
-		this.append("</trkpt>");
+	// Tag the current segment with its number in the track
+	public void appendSegmentNumber(long segment) throws IOException {
+		mOut.append("<extensions><geocam:segment>")
+			.append(Long.toString(segment))
+			.append("</geocam:segment></extensions>");
 	}
 	
-	public void endSegment() {
-		this.append(TRACK_SEG_END);
+	public void endSegment() throws IOException {
+		mOut.append(TRACK_SEG_END);
 	}
 	
-	public void endTrack() {
-		this.append(TRACK_END);
+	public void endTrack() throws IOException {
+		mOut.append(TRACK_END);
 	}
 	
-	public void startTrackExtensions() {
-		this.append("<extensions>");
+	public void startTrackExtensions() throws IOException {
+		mOut.append("<extensions>");
 	}
 	
-	public void appendIcon(String icon) {
-		this.append("<geocam:icon>" + icon + "</geocam:icon>");
+	public void appendIcon(String icon) throws IOException {
+		mOut.append("<geocam:icon>" + icon + "</geocam:icon>");
 	}
 
-	public void appendSolidDashed(boolean dashed) {
-		this.append("<geocam:lineStyle>");
+	public void appendSolidDashed(boolean dashed) throws IOException {
+		mOut.append("<geocam:lineStyle>");
 		if (dashed) {
-			this.append("dashed");
+			mOut.append("dashed");
 		} else {
-			this.append("solid");
+			mOut.append("solid");
 		}
 		
-		this.append("</geocam:lineStyle>");
+		mOut.append("</geocam:lineStyle>");
 	}
 	
-	public void appendColor(int argbColor) {
+	public void appendColor(int argbColor) throws IOException {
 		// This will be in ARGB (android color), convert to RGBA (html-ish)
 		int rgbaColor = Integer.rotateLeft(argbColor, 8);
-		this.append("<geocam:lineColor>#" + Integer.toHexString(rgbaColor) + "</geocam:lineColor>");
+		mOut.append("<geocam:lineColor>#" + Integer.toHexString(rgbaColor) + "</geocam:lineColor>");
 	}
 	
-	public void appendUID(String uid) {
-		this.append("<geocam:uid>" + uid + "</geocam:uid>");
+	public void appendUID(String uid) throws IOException {
+		mOut.append("<geocam:uid>" + uid + "</geocam:uid>");
 	}
 	
-	public void endTrackExtensions() {
-		this.append("</extensions>");
+	public void endTrackExtensions() throws IOException {
+		mOut.append("</extensions>");
 	}
 	
-	public String toString() {
-		return super.toString() + POSTAMBLE;
+	// End the document and flush it to the underlying Writer, which is
+	// left open
+	public void finish() throws IOException {
+		mOut.append(POSTAMBLE);
+		mOut.flush();
 	}
 	
-	private static final SimpleDateFormat ISO_DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.S'Z'");
-	static {
-		ISO_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
+	// Write value into buf at offset as a plain decimal (an xsd:decimal,
+	// as GPX wants) rounded to at most digits digits after the point, with
+	// trailing zeros dropped: 37.4193712, -122.0657, 10.  buf needs 32
+	// chars of room.  Returns the offset just past the number.
+	static int formatFixed(double value, int digits, char[] buf, int offset) {
+		double scaled = Math.abs(value) * POWERS_OF_TEN[digits];
+		if (Double.isNaN(scaled) || scaled >= Long.MAX_VALUE / 10) {
+			// Not a position; also not valid GPX, but don't hide it
+			String s = Double.toString(value);
+			s.getChars(0, s.length(), buf, offset);
+			return offset + s.length();
+		}
+		
+		long n = Math.round(scaled);
+		// Drop trailing zeros of the fraction
+		while (digits > 0 && n % 10 == 0) {
+			n /= 10;
+			digits--;
+		}
+		
+		int pos = offset + 31;
+		int end = pos;
+		for (int i = 0; i < digits; i++) {
+			buf[--pos] = (char) ('0' + n % 10);
+			n /= 10;
+		}
+		if (digits > 0)
+			buf[--pos] = '.';
+		do {
+			buf[--pos] = (char) ('0' + n % 10);
+			n /= 10;
+		} while (n > 0);
+		if (value < 0 && !(pos == end - 1 && buf[pos] == '0'))
+			buf[--pos] = '-';
+		
+		int length = end - pos;
+		System.arraycopy(buf, pos, buf, offset, length);
+		return offset + length;
 	}
 	
 	// Convert a system-given millisecond timestamp to
 	// a string that I can dump into sqlite. (UTC)
 	public static String dateToISO8601(long time) {
-		return ISO_DATE_FORMAT.format(new Date(time));
+		return Iso8601.format(time);
 	}
 	
 }
@@ -7,18 +7,20 @@
 package gov.nasa.arc.geocam.geocam;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.security.GeneralSecurityException;
 import java.util.Map;
-import javax.net.ssl.HttpsURLConnection;
+import java.util.zip.GZIPOutputStream;
+import android.os.SystemClock;
 import android.util.Log;
 import org.xmlBlaster.util.Base64;
 
@@ -29,6 +31,15 @@ public class HttpPost {
     public static final String BOUNDARY = "--------multipart_formdata_boundary$--------";
     public static final String CRLF = "\r\n";
 
+    // Size of the buffer used to stream request bodies.  One per upload
+    // thread, reused for every request that thread makes.
+    public static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> sStreamBuffer = new ThreadLocal<byte[]>() {
+        protected byte[] initialValue() {
+            return new byte[STREAM_BUFFER_SIZE];
+        }
+    };
+
     // unused for a while, may not work anymore
     public static String postFiles(String url, Map<String,String> vars, Map<String,File> files) {
         try {
@@ -103,49 +114,53 @@ public class HttpPost {
     
     // ---------------------------------------------------------------------------------------
     
-    protected static void assembleMultipart(DataOutputStream out, Map<String,String> vars, String fileKey, String fileName, InputStream istream) 
-        throws IOException {
-        
+    // Everything in the multipart body that comes before the file data
+    protected static byte[] multipartPreamble(Map<String,String> vars, String fileKey, String fileName)
+        throws UnsupportedEncodingException {
+        StringBuilder sb = new StringBuilder();
         for (String key : vars.keySet()) {
-            out.writeBytes("--" + BOUNDARY + CRLF);
-            out.writeBytes("Content-Disposition: form-data; name=\"" + key + "\"" + CRLF);
-            out.writeBytes(CRLF);
-            out.writeBytes(vars.get(key) + CRLF); 
+            sb.append("--" + BOUNDARY + CRLF);
+            sb.append("Content-Disposition: form-data; name=\"" + key + "\"" + CRLF);
+            sb.append(CRLF);
+            sb.append(vars.get(key) + CRLF); 
         }
 
-        out.writeBytes("--" + BOUNDARY + CRLF);
-        out.writeBytes("Content-Disposition: form-data; name=\"" + fileKey
+        sb.append("--" + BOUNDARY + CRLF);
+        sb.append("Content-Disposition: form-data; name=\"" + fileKey
                 + "\"; filename=\"" + fileName + "\"" + CRLF);
-        out.writeBytes("Content-Type: application/octet-stream" + CRLF);
-        out.writeBytes(CRLF);
+        sb.append("Content-Type: application/octet-stream" + CRLF);
+        sb.append(CRLF);
+        return sb.toString().getBytes("UTF-8");
+    }
 
-        // write stream
-        //http://getablogger.blogspot.com/2008/01/android-how-to-post-file-to-php-server.html
-        int maxBufferSize = 1024;
-        int bytesAvailable = istream.available();
-        int bufferSize = Math.min(maxBufferSize, bytesAvailable);
-        byte[] buffer = new byte[bufferSize];
-
-        int bytesRead = istream.read(buffer, 0, bufferSize);
-        while (bytesRead > 0) {
-            out.write(buffer, 0, bufferSize);
-            out.flush();
-            bytesAvailable = istream.available();
-            bufferSize = Math.min(maxBufferSize, bytesAvailable);
-            bytesRead = istream.read(buffer, 0, bufferSize);
-        }
+    // Everything in the multipart body that comes after the file data
+    protected static byte[] multipartEpilogue() throws UnsupportedEncodingException {
+        return (CRLF + "--" + BOUNDARY + "--" + CRLF + CRLF).getBytes("UTF-8");
+    }
 
-        out.writeBytes(CRLF);
-        out.writeBytes("--" + BOUNDARY + "--" + CRLF);
-        out.writeBytes(CRLF);
+    // Copy a stream through the calling thread's transfer buffer.  No
+    // flushing here -- the connection decides when to put bytes on the wire.
+    protected static long copyStream(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = sStreamBuffer.get();
+        long total = 0;
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            out.write(buffer, 0, bytesRead);
+            total += bytesRead;
+        }
+        return total;
     }
 
+    // Open a connection for a POST, authenticated if there is a password.
+    // With Basic authentication the request is forced over SSL; with
+    // Digest (see DigestAuth) the URL is used as given.
     public static HttpURLConnection createConnection(String url, String username, String password) 
         throws IOException 
     {
         boolean useAuth = !password.equals("");
-        // force SSL if useAuth=true (would send password unencrypted otherwise)
-        boolean useSSL = useAuth || url.startsWith("https");
+        boolean useDigest = useAuth && DigestAuth.isEnabled();
+        // force SSL if using basic auth (would send password unencrypted otherwise)
+        boolean useSSL = (useAuth && !useDigest) || url.startsWith("https");
 
         Log.d("HttpPost", "password: " + password);
         Log.d("HttpPost", "useSSL: " + useSSL);
@@ -156,29 +171,19 @@ public class HttpPost {
                 // up if input is something other than http so don't do that :)
                 url = "https:" + url.substring(5);
             }
-
-            // would rather not do this, need to check if there's still a problem
-            // with our ssl certificates on NASA servers.
-            try {
-                DisableSSLCertificateCheckUtil.disableChecks();
-            } catch (GeneralSecurityException e) {
-                throw new IOException("HttpPost - disable ssl: " + e);
-            }
         }
 
         HttpURLConnection conn;
         try {
-            if (useSSL) {
-                conn = (HttpsURLConnection)(new URL(url)).openConnection();
-            }
-            else {
-                conn = (HttpURLConnection)(new URL(url)).openConnection();
-            }
+            // TLS setup is shared with every other request, see ConnectionManager
+            conn = ConnectionManager.open(url);
         } catch (IOException e) {
             throw new IOException("HttpPost - IOException: " + e);
         } 
 
-        if (useAuth) {
+        if (useDigest) {
+            DigestAuth.authorize(conn, username, password);
+        } else if (useAuth) {
             // add pre-emptive http basic authentication.  using
             // homebrew version -- early versions of android
             // authenticator have problems and this is easy.
@@ -195,40 +200,152 @@ public class HttpPost {
 
         return conn;
     }
+
+    // The status of a finished request, or DigestAuth.STATUS_RENEWED if
+    // it was turned down only because the server wanted a new nonce
+    protected static int getStatus(HttpURLConnection conn) throws IOException {
+        int status = conn.getResponseCode();
+        if (DigestAuth.update(conn, status))
+            return DigestAuth.STATUS_RENEWED;
+        return status;
+    }
     
     // Post a bit of json to the server
     public static int post(String url, JSONObject json, String username, String password) 
         throws IOException
+    {
+        return post(url, json, username, password, false);
+    }
+
+    // Post json, gzipped with Content-Encoding: gzip if compress is set,
+    // the body is big enough to be worth it and the server hasn't turned
+    // gzip down before.  A server that answers 400 or 415 to a gzipped
+    // body gets it again uncompressed (see RequestCompression).
+    public static int post(String url, JSONObject json, String username, String password, boolean compress) 
+        throws IOException
+    {
+        byte[] jsonBytes = json.toString().getBytes("UTF-8");
+        boolean gzip = compress && jsonBytes.length >= RequestCompression.MIN_BYTES
+            && RequestCompression.isAccepted(url);
+        byte[] body = jsonBytes;
+        if (gzip) {
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream(jsonBytes.length / 4);
+            GZIPOutputStream gzipOut = new GZIPOutputStream(gzipped);
+            gzipOut.write(jsonBytes);
+            gzipOut.close();
+            body = gzipped.toByteArray();
+            RequestCompression.record(jsonBytes.length, body.length);
+        }
+
+        int status = postJson(url, body, gzip, username, password);
+        if (status == DigestAuth.STATUS_RENEWED) {
+            // we still have the body, so just send it again
+            status = postJson(url, body, gzip, username, password);
+        }
+        if (gzip && RequestCompression.isRefusal(status)) {
+            RequestCompression.refused(url);
+            return post(url, json, username, password, false);
+        }
+        return status;
+    }
+
+    private static int postJson(String url, byte[] jsonBytes, boolean compressed, String username, String password)
+        throws IOException
     {
         HttpURLConnection conn = createConnection(url, username, password);
         
         conn.setRequestMethod("POST");
         conn.setRequestProperty("Connection", "Keep-Alive");
         conn.setRequestProperty("Content-Type", "application/json");
+        if (compressed) {
+            conn.setRequestProperty("Content-Encoding", "gzip");
+        }
 
-        byte[] jsonBytes = json.toString().getBytes("UTF-8");
-
-        conn.setRequestProperty("Content-Length", Integer.toString(jsonBytes.length));
+        conn.setFixedLengthStreamingMode(jsonBytes.length);
 
-        DataOutputStream out = new DataOutputStream(conn.getOutputStream());
+        long sendStart = SystemClock.elapsedRealtime();
+        OutputStream out = conn.getOutputStream();
         out.write(jsonBytes);
         out.flush();
+        long sendEnd = SystemClock.elapsedRealtime();
 
-        InputStream in = conn.getInputStream();
+        InputStream in;
+        try {
+            in = conn.getInputStream();
+        } catch (IOException e) {
+            // Error statuses end up here; getResponseCode throws in turn
+            // if there was no response at all
+            int status = getStatus(conn);
+            ConnectionManager.finish(conn);
+            return status;
+        }
+        ThroughputEstimator.record(jsonBytes.length, sendEnd - sendStart, SystemClock.elapsedRealtime() - sendEnd);
         BufferedReader reader = new BufferedReader(new InputStreamReader(in), 2048);
             
         for (String line = reader.readLine(); line != null; line = reader.readLine()) { }
+        reader.close();
         out.close();
             
         int responseCode = 0;
-        responseCode = conn.getResponseCode();
+        responseCode = getStatus(conn);
         return responseCode;
     }
     
-    // Post a file to the server
+    // Post a file from disk to the server, with its length known up front
+    public static int post(String url, Map<String,String> vars, String fileKey, File file,
+                           String username, String password) throws IOException {
+        return post(url, vars, fileKey, file.getName(), new FileInputStream(file), file.length(),
+                    username, password);
+    }
+
+    // Post a file of unknown length to the server
     public static int post(String url, Map<String,String> vars, String fileKey, String fileName,
                            InputStream istream, String username, String password) throws IOException {
+        return post(url, vars, fileKey, fileName, istream, -1, username, password);
+    }
+
+    // Post a file to the server, uncompressed
+    public static int post(String url, Map<String,String> vars, String fileKey, String fileName,
+                           InputStream istream, long streamLength, String username, String password) throws IOException {
+        return post(url, vars, fileKey, fileName, istream, streamLength, username, password, false);
+    }
+
+    // Post a file to the server, streamed straight from istream, which is
+    // closed afterwards
+    public static int post(String url, Map<String,String> vars, String fileKey, String fileName,
+                           final InputStream istream, long streamLength, String username, String password,
+                           boolean compress) throws IOException {
+        BodyWriter body = new BodyWriter() {
+            public void writeTo(OutputStream out) throws IOException {
+                try {
+                    copyStream(istream, out);
+                } finally {
+                    istream.close();
+                }
+            }
+        };
+        return post(url, vars, fileKey, fileName, body, streamLength, username, password, compress);
+    }
+
+    // Writes the file part of a multipart body as it is sent
+    public interface BodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    // Post a file to the server.  The file is written straight into the
+    // request by body.  If bodyLength is known (>= 0) the request is sent
+    // with a fixed Content-Length, otherwise it is sent chunked.  Either way
+    // HttpURLConnection never buffers the body.
+    //
+    // If compress is set and the server hasn't turned gzip down before, the
+    // body is gzipped on the way out and sent chunked with Content-Encoding:
+    // gzip.  If the server answers that with 400 or 415, it won't get gzip
+    // again, and it is up to the caller to post the file again.
+    public static int post(String url, Map<String,String> vars, String fileKey, String fileName,
+                           BodyWriter body, long bodyLength, String username, String password,
+                           boolean compress) throws IOException {
         HttpURLConnection conn = createConnection(url, username, password);
+        boolean gzip = compress && RequestCompression.isAccepted(url);
 
         try {
             conn.setRequestMethod("POST");
@@ -237,12 +354,40 @@ public class HttpPost {
 
             Log.d("HttpPost", vars.toString());
 
-            DataOutputStream out = new DataOutputStream(conn.getOutputStream());
-            assembleMultipart(out, vars, fileKey, fileName, istream);
-            istream.close();
-            out.flush();
+            byte[] preamble = multipartPreamble(vars, fileKey, fileName);
+            byte[] epilogue = multipartEpilogue();
+            long contentLength = preamble.length + bodyLength + epilogue.length;
+            if (gzip) {
+                conn.setRequestProperty("Content-Encoding", "gzip");
+                conn.setChunkedStreamingMode(STREAM_BUFFER_SIZE);
+            } else if (bodyLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+                conn.setFixedLengthStreamingMode((int) contentLength);
+            } else {
+                conn.setChunkedStreamingMode(STREAM_BUFFER_SIZE);
+            }
+
+            long sendStart = SystemClock.elapsedRealtime();
+            OutputStream connOut = conn.getOutputStream();
+            // bytes on the wire, and bytes before any compression
+            RequestCompression.CountingOutputStream wire = new RequestCompression.CountingOutputStream(connOut);
+            RequestCompression.CountingOutputStream out =
+                new RequestCompression.CountingOutputStream(gzip ? new GZIPOutputStream(wire) : wire);
+            out.write(preamble);
+            body.writeTo(out);
+            out.write(epilogue);
+            if (gzip) {
+                // writes the gzip trailer and frees the deflater
+                out.close();
+                RequestCompression.record(out.getCount(), wire.getCount());
+            } else {
+                out.flush();
+            }
+            long bytesSent = wire.getCount();
+            long sendEnd = SystemClock.elapsedRealtime();
             
             InputStream in = conn.getInputStream();
+            ThroughputEstimator.record(bytesSent, sendEnd - sendStart, SystemClock.elapsedRealtime() - sendEnd);
+            TrackTolerance.set(url, conn.getHeaderField(TrackTolerance.TOLERANCE_HEADER));
             BufferedReader reader = new BufferedReader(new InputStreamReader(in), 2048);
             
             // Set postedSuccess to true if there is a line in the HTTP response in
@@ -264,10 +409,11 @@ public class HttpPost {
                     }
                 }
             }
-            out.close();
+            reader.close();
+            connOut.close();
             
             int responseCode = 0;
-            responseCode = conn.getResponseCode();
+            responseCode = getStatus(conn);
             if (responseCode == 200 && !postedSuccess) {
                 // our code for when we got value 200 but no confirmation
                 responseCode = -3;
@@ -285,7 +431,13 @@ public class HttpPost {
         
         catch (IOException e) {
             try {
-                return conn.getResponseCode();
+                // a body we have already streamed can't be sent again
+                // here; on STATUS_RENEWED the caller retries later
+                int status = getStatus(conn);
+                ConnectionManager.finish(conn);
+                if (gzip && RequestCompression.isRefusal(status))
+                    RequestCompression.refused(url);
+                return status;
             } catch(IOException f) {
                 throw new IOException("HttpPost - IOException: " + e);
             }
@@ -0,0 +1,165 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Debug;
+import android.util.Log;
+
+// Downscales photos without ever holding a full-resolution frame in memory.
+//
+// The JPEG decoder is asked to subsample by the largest power of two in the
+// downsample factor, which it does scanline by scanline, so the only large
+// allocation is the (already reduced) output bitmap.  Any remaining integer
+// factor is applied by a box filter (BoxFilter) that walks the source in
+// horizontal bands through small pixel buffers that are reused from call to
+// call.
+// Bitmaps are RGB_565, half the size of the default ARGB_8888; JPEGs have
+// no alpha to lose.
+//
+// If the decoded bitmap would not fit in the memory budget the image is
+// subsampled further, so the result may be smaller than asked for.
+//
+// Not thread safe: the pixel buffers are shared between calls.
+public class ImageScaler {
+    private static final String TAG = "ImageScaler";
+
+    private static final int BYTES_PER_PIXEL = 2;           // RGB_565
+    private static final int DECODE_TEMP_BYTES = 16 * 1024;
+
+    private final long mBudgetBytes;
+
+    // Reused between calls
+    private int[] mSrcBand = new int[0];
+    private int[] mDstBand = new int[0];
+    private final byte[] mDecodeTemp = new byte[DECODE_TEMP_BYTES];
+
+    // For reporting
+    private int mSourceWidth = 0;
+    private int mSourceHeight = 0;
+    private long mHeapBaseline = 0;
+    private long mPeakHeapBytes = 0;
+
+    public ImageScaler(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    // Decode the image at uri reduced by factor in each dimension
+    public Bitmap decode(ContentResolver resolver, Uri uri, int factor) throws IOException {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        InputStream in = resolver.openInputStream(uri);
+        try {
+            BitmapFactory.decodeStream(in, null, opts);
+        } finally {
+            in.close();
+        }
+        if (opts.outWidth <= 0 || opts.outHeight <= 0)
+            throw new FileNotFoundException("Could not read the size of " + uri);
+        mSourceWidth = opts.outWidth;
+        mSourceHeight = opts.outHeight;
+
+        // Let the decoder do the power-of-two part of the factor, and the
+        // box filter whatever is left
+        int sample = Math.max(factor, 1) & -Math.max(factor, 1);
+        while (bitmapBytes(mSourceWidth / sample, mSourceHeight / sample) > mBudgetBytes) {
+            sample *= 2;
+        }
+        // Round up, so a bigger sample gives a smaller image, never a larger one
+        int remaining = Math.max((factor + sample - 1) / sample, 1);
+        if (sample * remaining != factor) {
+            Log.w(TAG, mSourceWidth + "x" + mSourceHeight + " image doesn't fit in " + mBudgetBytes
+                  + " bytes at 1/" + factor + ", using 1/" + (sample * remaining));
+        }
+
+        opts = new BitmapFactory.Options();
+        opts.inSampleSize = sample;
+        opts.inPreferredConfig = Bitmap.Config.RGB_565;
+        opts.inDither = false;
+        opts.inTempStorage = mDecodeTemp;
+        in = resolver.openInputStream(uri);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeStream(in, null, opts);
+        } finally {
+            in.close();
+        }
+        if (bitmap == null)
+            throw new FileNotFoundException("Could not decode " + uri);
+        notePeak();
+
+        if (remaining > 1) {
+            Bitmap smaller = downscale(bitmap, remaining);
+            bitmap.recycle();
+            bitmap = smaller;
+        }
+        return bitmap;
+    }
+
+    // Reduce src by an integer factor in each dimension with a box filter,
+    // reading src in bands of rows.  src is left as it is.
+    public Bitmap downscale(Bitmap src, int scale) {
+        int srcWidth = src.getWidth();
+        scale = Math.max(Math.min(scale, Math.min(srcWidth, src.getHeight())), 1);
+        int dstWidth = srcWidth / scale;
+        int dstHeight = src.getHeight() / scale;
+
+        Bitmap dst = Bitmap.createBitmap(dstWidth, dstHeight, Bitmap.Config.RGB_565);
+        notePeak();
+
+        int bandRows = BoxFilter.bandRows(srcWidth, scale, dstHeight);
+        if (mSrcBand.length < srcWidth * scale * bandRows)
+            mSrcBand = new int[srcWidth * scale * bandRows];
+        if (mDstBand.length < dstWidth * bandRows)
+            mDstBand = new int[dstWidth * bandRows];
+
+        for (int y = 0; y < dstHeight; y += bandRows) {
+            int rows = Math.min(bandRows, dstHeight - y);
+            src.getPixels(mSrcBand, 0, srcWidth, 0, y * scale, srcWidth, rows * scale);
+            BoxFilter.downscaleBand(mSrcBand, srcWidth, scale, mDstBand, dstWidth, rows);
+            dst.setPixels(mDstBand, 0, dstWidth, 0, y, dstWidth, rows);
+        }
+        return dst;
+    }
+
+    // Start measuring peak native heap (where bitmaps live) from here
+    public void resetPeak() {
+        mHeapBaseline = Debug.getNativeHeapAllocatedSize();
+        mPeakHeapBytes = 0;
+    }
+
+    // Most native heap in use above the baseline since resetPeak()
+    public long getPeakHeapBytes() {
+        return mPeakHeapBytes;
+    }
+
+    // Size of the source image of the last decode()
+    public int getSourceWidth() {
+        return mSourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return mSourceHeight;
+    }
+
+    private void notePeak() {
+        long used = Debug.getNativeHeapAllocatedSize() - mHeapBaseline;
+        if (used > mPeakHeapBytes)
+            mPeakHeapBytes = used;
+    }
+
+    private static long bitmapBytes(int width, int height) {
+        return (long) width * height * BYTES_PER_PIXEL;
+    }
+}
@@ -0,0 +1,121 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import java.io.IOException;
+import java.io.Writer;
+
+// Formats millisecond timestamps as UTC ISO-8601, "2010-11-17T13:33:46.250Z",
+// without SimpleDateFormat.  Safe to call from any thread, and doesn't
+// allocate once a thread has made its first call: each thread keeps its own
+// buffer, which also holds on to the date part, so consecutive timestamps
+// on the same day (every point of a track, say) only redo the time of day.
+//
+// See scripts/Iso8601Benchmark.java for a comparison with SimpleDateFormat.
+public final class Iso8601 {
+    // Characters in a formatted timestamp
+    public static final int LENGTH = 24;
+
+    private static final long MSECS_PER_DAY = 24 * 60 * 60 * 1000;
+
+    private static class Buffer {
+        final char[] chars = new char[LENGTH];
+        long day = Long.MIN_VALUE;
+    }
+
+    private static final ThreadLocal<Buffer> sBuffer = new ThreadLocal<Buffer>() {
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    private Iso8601() {
+    }
+
+    public static String format(long time) {
+        return new String(format(time, sBuffer.get()), 0, LENGTH);
+    }
+
+    // Write the timestamp to out
+    public static void format(long time, Appendable out) throws IOException {
+        char[] chars = format(time, sBuffer.get());
+        if (out instanceof Writer) {
+            ((Writer) out).write(chars, 0, LENGTH);
+        } else if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(chars, 0, LENGTH);
+        } else {
+            for (int i = 0; i < LENGTH; i++)
+                out.append(chars[i]);
+        }
+    }
+
+    // Write the timestamp into buf at offset, which needs LENGTH chars of
+    // room.  Returns the offset just past it.
+    public static int format(long time, char[] buf, int offset) {
+        System.arraycopy(format(time, sBuffer.get()), 0, buf, offset, LENGTH);
+        return offset + LENGTH;
+    }
+
+    private static char[] format(long time, Buffer buffer) {
+        char[] c = buffer.chars;
+        long day = time / MSECS_PER_DAY;
+        int msecOfDay = (int) (time % MSECS_PER_DAY);
+        if (msecOfDay < 0) {
+            day--;
+            msecOfDay += MSECS_PER_DAY;
+        }
+
+        if (day != buffer.day) {
+            formatDate(day, c);
+            buffer.day = day;
+        }
+
+        int msecs = msecOfDay % 1000;
+        int secs = msecOfDay / 1000;
+        put2(c, 11, secs / 3600);
+        c[13] = ':';
+        put2(c, 14, (secs / 60) % 60);
+        c[16] = ':';
+        put2(c, 17, secs % 60);
+        c[19] = '.';
+        c[20] = (char) ('0' + msecs / 100);
+        put2(c, 21, msecs % 100);
+        c[23] = 'Z';
+        return c;
+    }
+
+    // "yyyy-MM-ddT" for a count of days since 1970-01-01, using the
+    // proleptic Gregorian calendar like SimpleDateFormat does for any date
+    // a phone will see
+    private static void formatDate(long day, char[] c) {
+        // Shift the epoch to 0000-03-01 so leap days come last in each
+        // 400-year era; see http://howardhinnant.github.io/date_algorithms.html
+        long z = day + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int dayOfMonth = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        int y = (int) year;
+        put2(c, 0, (y / 100) % 100);
+        put2(c, 2, y % 100);
+        c[4] = '-';
+        put2(c, 5, month);
+        c[7] = '-';
+        put2(c, 8, dayOfMonth);
+        c[10] = 'T';
+    }
+
+    private static void put2(char[] c, int offset, int value) {
+        c[offset] = (char) ('0' + value / 10);
+        c[offset + 1] = (char) ('0' + value % 10);
+    }
+}
@@ -0,0 +1,134 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+// Smooths fixes with a constant-velocity Kalman filter, and drops those
+// too far from where it expects the phone to be.
+//
+// Positions are tracked in meters east and north of the first fix, each
+// axis with its own position and velocity.  The phone's acceleration is
+// taken as noise of accelerationNoise (m/s^2) and each fix's error as its
+// accuracy, so a good fix pulls the estimate most of the way to it and a
+// poor one only a little.  The fix is replaced by the estimate, with the
+// estimate's accuracy.
+//
+// A fix more than gateSigmas standard deviations from the prediction is
+// dropped.  If maxDropped fixes in a row are, the phone really has moved
+// (or the estimate was wrong) and the filter starts again from the next
+// one.  It also starts again after a gap of maxGapMsecs.
+//
+// Both axes see the same fix accuracies and noise, so they share one
+// covariance, and a fix costs a few dozen floating point operations.
+public class KalmanLocationFilter implements LocationFilter {
+    private static final double METERS_PER_DEGREE = 6371009.0 * Math.PI / 180;
+
+    // Accuracy assumed for fixes that don't give one
+    private static final float DEFAULT_ACCURACY = 10;
+
+    // Velocity variance to start with, (m/s)^2
+    private static final double INITIAL_VELOCITY_VARIANCE = 10 * 10;
+
+    private final double mAccelerationVariance;
+    private final double mGateSquared;
+    private final int mMaxDropped;
+    private final long mMaxGapMsecs;
+
+    private boolean mStarted = false;
+    private int mDropped = 0;
+    private long mTime;
+
+    // Projection around the first fix
+    private double mLatitude0;
+    private double mLongitude0;
+    private double mMetersPerDegreeLongitude;
+
+    // Position (m) and velocity (m/s), east and north
+    private double mX, mVx;
+    private double mY, mVy;
+
+    // Covariance of position and velocity, the same on both axes
+    private double mP00, mP01, mP11;
+
+    public KalmanLocationFilter(double accelerationNoise, double gateSigmas, int maxDropped,
+                                long maxGapMsecs) {
+        mAccelerationVariance = accelerationNoise * accelerationNoise;
+        mGateSquared = gateSigmas * gateSigmas;
+        mMaxDropped = maxDropped;
+        mMaxGapMsecs = maxGapMsecs;
+    }
+
+    public boolean filter(Fix fix) {
+        float accuracy = (fix.accuracy > 0) ? fix.accuracy : DEFAULT_ACCURACY;
+        double r = (double) accuracy * accuracy;
+
+        if (!mStarted || fix.time - mTime > mMaxGapMsecs || mDropped >= mMaxDropped) {
+            start(fix, r);
+            return true;
+        }
+
+        // Predict
+        double p00 = mP00, p01 = mP01, p11 = mP11;
+        double x = mX, y = mY;
+        if (fix.time > mTime) {
+            double dt = (fix.time - mTime) / 1000.0;
+            double dt2 = dt * dt;
+            x += mVx * dt;
+            y += mVy * dt;
+            p00 += dt * (2 * p01 + dt * p11) + mAccelerationVariance * dt2 * dt2 / 4;
+            p01 += dt * p11 + mAccelerationVariance * dt2 * dt / 2;
+            p11 += mAccelerationVariance * dt2;
+        }
+
+        // Gate
+        double zx = (fix.longitude - mLongitude0) * mMetersPerDegreeLongitude;
+        double zy = (fix.latitude - mLatitude0) * METERS_PER_DEGREE;
+        double ex = zx - x;
+        double ey = zy - y;
+        double s = p00 + r;
+        if ((ex * ex + ey * ey) / s > mGateSquared) {
+            mDropped++;
+            return false;
+        }
+        mDropped = 0;
+
+        // Update
+        double k0 = p00 / s;
+        double k1 = p01 / s;
+        mX = x + k0 * ex;
+        mY = y + k0 * ey;
+        mVx += k1 * ex;
+        mVy += k1 * ey;
+        mP00 = (1 - k0) * p00;
+        mP01 = (1 - k0) * p01;
+        mP11 = p11 - k1 * p01;
+        mTime = Math.max(mTime, fix.time);
+
+        fix.longitude = mLongitude0 + mX / mMetersPerDegreeLongitude;
+        fix.latitude = mLatitude0 + mY / METERS_PER_DEGREE;
+        fix.accuracy = (float) Math.sqrt(mP00);
+        return true;
+    }
+
+    public void reset() {
+        mStarted = false;
+        mDropped = 0;
+    }
+
+    private void start(Fix fix, double r) {
+        mStarted = true;
+        mDropped = 0;
+        mTime = fix.time;
+        mLatitude0 = fix.latitude;
+        mLongitude0 = fix.longitude;
+        mMetersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(fix.latitude));
+        mX = mY = 0;
+        mVx = mVy = 0;
+        mP00 = r;
+        mP01 = 0;
+        mP11 = INITIAL_VELOCITY_VARIANCE;
+    }
+}
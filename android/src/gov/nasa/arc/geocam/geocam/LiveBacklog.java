@@ -0,0 +1,168 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.location.Location;
+import android.util.Log;
+
+// Bounded on-disk ring buffer of live positions that couldn't be sent.
+//
+// The file is a small header followed by a fixed number of fixed-size
+// records, so it never grows past (HEADER_BYTES + capacity * RECORD_BYTES).
+// When it is full the oldest position is overwritten.  Positions survive
+// the service being killed; a corrupt or foreign file is simply started
+// over.  Only LiveLocationSender uses it, from its sender thread, which
+// also closes it.
+public class LiveBacklog {
+    private static final String TAG = "LiveBacklog";
+
+    // Files from before bearings were kept start with "LIVE" and are
+    // started over
+    private static final int MAGIC = 0x4c495632; // "LIV2"
+    private static final int HEADER_BYTES = 16;  // magic, head, count, capacity
+    private static final int RECORD_BYTES = 44;  // see write()
+
+    private static final int HAS_ALTITUDE = 1;
+    private static final int HAS_ACCURACY = 2;
+    private static final int HAS_SPEED = 4;
+    private static final int HAS_BEARING = 8;
+
+    private final RandomAccessFile mFile;
+    private final int mCapacity;
+    private int mHead = 0;   // index of the oldest record
+    private int mCount = 0;
+
+    public LiveBacklog(File file, int capacity) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mCapacity = capacity;
+
+        if (mFile.length() >= HEADER_BYTES) {
+            mFile.seek(0);
+            int magic = mFile.readInt();
+            int head = mFile.readInt();
+            int count = mFile.readInt();
+            int fileCapacity = mFile.readInt();
+            if (magic == MAGIC && fileCapacity == capacity && head >= 0 && head < capacity
+                && count >= 0 && count <= capacity
+                && mFile.length() >= HEADER_BYTES + (long) capacity * RECORD_BYTES) {
+                mHead = head;
+                mCount = count;
+                Log.d(TAG, "Found " + mCount + " unsent live positions");
+                return;
+            }
+            Log.w(TAG, "Starting over with unrecognized backlog file " + file);
+        }
+        mFile.setLength(HEADER_BYTES + (long) capacity * RECORD_BYTES);
+        writeHeader();
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    public synchronized boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    // Append positions, oldest first, overwriting the oldest ones if full
+    public synchronized void addAll(List<Location> locations) throws IOException {
+        for (Location location : locations) {
+            int index = (mHead + mCount) % mCapacity;
+            write(index, location);
+            if (mCount < mCapacity) {
+                mCount++;
+            } else {
+                mHead = (mHead + 1) % mCapacity;
+            }
+        }
+        writeHeader();
+    }
+
+    // Every position in the backlog, oldest first
+    public synchronized List<Location> readAll() throws IOException {
+        List<Location> result = new ArrayList<Location>(mCount);
+        for (int i = 0; i < mCount; i++) {
+            result.add(read((mHead + i) % mCapacity));
+        }
+        return result;
+    }
+
+    // Replace the contents with these positions, oldest first
+    public synchronized void replaceAll(List<Location> locations) throws IOException {
+        mHead = 0;
+        mCount = 0;
+        addAll(locations);
+    }
+
+    public synchronized void clear() throws IOException {
+        mHead = 0;
+        mCount = 0;
+        writeHeader();
+    }
+
+    public synchronized void close() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing backlog: " + e);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        mFile.seek(0);
+        mFile.writeInt(MAGIC);
+        mFile.writeInt(mHead);
+        mFile.writeInt(mCount);
+        mFile.writeInt(mCapacity);
+    }
+
+    // time (8), latitude (8), longitude (8), altitude (4), accuracy (4),
+    // speed (4), bearing (4), flags (4)
+    private void write(int index, Location location) throws IOException {
+        int flags = (location.hasAltitude() ? HAS_ALTITUDE : 0)
+            | (location.hasAccuracy() ? HAS_ACCURACY : 0)
+            | (location.hasSpeed() ? HAS_SPEED : 0)
+            | (location.hasBearing() ? HAS_BEARING : 0);
+        mFile.seek(HEADER_BYTES + (long) index * RECORD_BYTES);
+        mFile.writeLong(location.getTime());
+        mFile.writeDouble(location.getLatitude());
+        mFile.writeDouble(location.getLongitude());
+        mFile.writeFloat((float) location.getAltitude());
+        mFile.writeFloat(location.getAccuracy());
+        mFile.writeFloat(location.getSpeed());
+        mFile.writeFloat(location.getBearing());
+        mFile.writeInt(flags);
+    }
+
+    private Location read(int index) throws IOException {
+        mFile.seek(HEADER_BYTES + (long) index * RECORD_BYTES);
+        Location location = new Location("backlog");
+        location.setTime(mFile.readLong());
+        location.setLatitude(mFile.readDouble());
+        location.setLongitude(mFile.readDouble());
+        float altitude = mFile.readFloat();
+        float accuracy = mFile.readFloat();
+        float speed = mFile.readFloat();
+        float bearing = mFile.readFloat();
+        int flags = mFile.readInt();
+        if ((flags & HAS_ALTITUDE) != 0)
+            location.setAltitude(altitude);
+        if ((flags & HAS_ACCURACY) != 0)
+            location.setAccuracy(accuracy);
+        if ((flags & HAS_SPEED) != 0)
+            location.setSpeed(speed);
+        if ((flags & HAS_BEARING) != 0)
+            location.setBearing(bearing);
+        return location;
+    }
+}
@@ -0,0 +1,376 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+// Sends live positions to the server from a single long-lived thread.
+//
+// Fixes handed to send() wait in a short queue.  Whenever the previous
+// request has finished, everything still waiting goes out together in one
+// request, so there is never more than one request in flight and a slow
+// network makes batches bigger rather than piling up threads.
+//
+// Fixes that can't be sent, or that have waited longer than
+// GeoCamMobile.LIVE_STALE_MSECS, go to an on-disk LiveBacklog instead of
+// being lost.  Once a request gets through again the backlog is sent too,
+// but no sooner than GeoCamMobile.LIVE_RETRY_MSECS after a failed try at it:
+// newest first, thinned to the spacing set in the settings, gzipped if the
+// server takes it, in batches of GeoCamMobile.LIVE_BACKLOG_BATCH.  See "Live Position" in
+// docs/protocol.rst.
+public class LiveLocationSender {
+    private static final String TAG = "LiveLocationSender";
+    private static final String BACKLOG_FILE = "live_backlog";
+
+    private final Context mContext;
+    private final LinkedList<Location> mPending = new LinkedList<Location>();
+    private LiveBacklog mBacklog;
+    private Thread mThread;
+    private boolean mStopping = false;
+
+    // Guarded by mPending
+    private long mBacklogRetryTime = 0;
+
+    public LiveLocationSender(Context context) {
+        mContext = context;
+        try {
+            mBacklog = new LiveBacklog(new File(context.getFilesDir(), BACKLOG_FILE),
+                                       GeoCamMobile.LIVE_BACKLOG_CAPACITY);
+        } catch (IOException e) {
+            Log.e(TAG, "No backlog, unsent live positions will be lost: " + e);
+            mBacklog = null;
+        }
+    }
+
+    public void start() {
+        synchronized (mPending) {
+            mStopping = false;
+        }
+        mThread = new Thread(null, mSendTask, "LiveLocationSender");
+        mThread.start();
+    }
+
+    // Stop the sender thread.  The thread itself saves what is still
+    // waiting to the backlog and closes it on its way out, once any request
+    // in flight has finished, so the backlog is never closed under it.  We
+    // wait a second for that but don't block on the network.  A stopped
+    // sender isn't started again.
+    public void stop() {
+        synchronized (mPending) {
+            mStopping = true;
+            mPending.notifyAll();
+        }
+        if (mThread == null) {
+            if (mBacklog != null)
+                mBacklog.close();
+            return;
+        }
+
+        mThread.interrupt();
+        try {
+            mThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    // Try the backlog now rather than waiting, e.g. when the network is back
+    public void retryNow() {
+        synchronized (mPending) {
+            mBacklogRetryTime = 0;
+            mPending.notifyAll();
+        }
+    }
+
+    public void send(Location location) {
+        synchronized (mPending) {
+            if (mPending.size() >= GeoCamMobile.LIVE_MAX_BATCH)
+                mPending.removeFirst();
+            mPending.add(new Location(location));
+            mPending.notifyAll();
+        }
+    }
+
+    private Runnable mSendTask = new Runnable() {
+        public void run() {
+            while (true) {
+                List<Location> batch;
+                synchronized (mPending) {
+                    while (!mStopping && mPending.isEmpty() && !isBacklogDue()) {
+                        long waitMsecs = 0;
+                        if (mBacklog != null && !mBacklog.isEmpty())
+                            waitMsecs = Math.max(mBacklogRetryTime - SystemClock.elapsedRealtime(), 1);
+                        try {
+                            mPending.wait(waitMsecs);
+                        } catch (InterruptedException e) {
+                            mStopping = true;
+                        }
+                    }
+                    if (mStopping)
+                        break;
+
+                    saveToBacklog(removeStale());
+                    batch = new ArrayList<Location>(mPending);
+                    mPending.clear();
+                }
+
+                // Current positions first, then catch up on the backlog,
+                // unless the last try at it failed too recently
+                boolean sent = batch.isEmpty() || post(batch, false);
+                if (!sent)
+                    saveToBacklog(batch);
+
+                boolean backlogDue;
+                synchronized (mPending) {
+                    backlogDue = sent && !mStopping && isBacklogDue();
+                }
+                if (!sent || (backlogDue && !sendBacklog())) {
+                    synchronized (mPending) {
+                        mBacklogRetryTime = SystemClock.elapsedRealtime() + GeoCamMobile.LIVE_RETRY_MSECS;
+                    }
+                }
+            }
+
+            // Whatever is still waiting stays in the backlog for next time
+            synchronized (mPending) {
+                saveToBacklog(new ArrayList<Location>(mPending));
+                mPending.clear();
+            }
+            if (mBacklog != null)
+                mBacklog.close();
+        }
+    };
+
+    private boolean isStopping() {
+        synchronized (mPending) {
+            return mStopping;
+        }
+    }
+
+    // Must be called with mPending held
+    private boolean isBacklogDue() {
+        return mBacklog != null && !mBacklog.isEmpty()
+            && SystemClock.elapsedRealtime() >= mBacklogRetryTime;
+    }
+
+    // Must be called with mPending held.  Location times are UTC from the
+    // GPS, so compare them with the wall clock.
+    private List<Location> removeStale() {
+        List<Location> stale = new ArrayList<Location>();
+        long cutoff = System.currentTimeMillis() - GeoCamMobile.LIVE_STALE_MSECS;
+        for (Iterator<Location> it = mPending.iterator(); it.hasNext(); ) {
+            Location location = it.next();
+            if (location.getTime() < cutoff) {
+                stale.add(location);
+                it.remove();
+            }
+        }
+        return stale;
+    }
+
+    private void saveToBacklog(List<Location> locations) {
+        if (mBacklog == null || locations.isEmpty())
+            return;
+        try {
+            mBacklog.addAll(locations);
+            Log.d(TAG, "Saved " + locations.size() + " live positions, " + mBacklog.size() + " unsent");
+        } catch (IOException e) {
+            Log.e(TAG, "Lost " + locations.size() + " live positions: " + e);
+        }
+    }
+
+    // Send the backlog newest first, so the server fills in the most
+    // recent part of the path soonest.  Returns false if a batch failed;
+    // what wasn't sent stays in the backlog.
+    private boolean sendBacklog() {
+        if (mBacklog == null || mBacklog.isEmpty())
+            return true;
+
+        List<Location> backlog;
+        try {
+            backlog = thin(mBacklog.readAll(), getBacklogSpacingMsecs());
+        } catch (IOException e) {
+            Log.e(TAG, "Can't read backlog, dropping it: " + e);
+            clearBacklog();
+            return true;
+        }
+        Log.i(TAG, "Sending " + backlog.size() + " backlogged live positions");
+
+        int end = backlog.size();
+        while (end > 0) {
+            int start = Math.max(end - GeoCamMobile.LIVE_BACKLOG_BATCH, 0);
+            if (isStopping() || !post(backlog.subList(start, end), true)) {
+                try {
+                    mBacklog.replaceAll(backlog.subList(0, end));
+                } catch (IOException e) {
+                    Log.e(TAG, "Can't update backlog: " + e);
+                }
+                return false;
+            }
+            end = start;
+        }
+        clearBacklog();
+        return true;
+    }
+
+    private void clearBacklog() {
+        try {
+            mBacklog.clear();
+        } catch (IOException e) {
+            Log.e(TAG, "Can't clear backlog: " + e);
+        }
+    }
+
+    private long getBacklogSpacingMsecs() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mContext);
+        try {
+            return Long.parseLong(settings.getString(GeoCamMobile.SETTINGS_LIVE_BACKLOG_SPACING_KEY,
+                                                     GeoCamMobile.LIVE_BACKLOG_SPACING_DEFAULT)) * 1000;
+        } catch (NumberFormatException e) {
+            return Long.parseLong(GeoCamMobile.LIVE_BACKLOG_SPACING_DEFAULT) * 1000;
+        }
+    }
+
+    private static final Comparator<Location> LOCATION_TIME_ORDER = new Comparator<Location>() {
+        public int compare(Location a, Location b) {
+            if (a.getTime() < b.getTime())
+                return -1;
+            if (a.getTime() > b.getTime())
+                return 1;
+            return 0;
+        }
+    };
+
+    // Keep every position from the last LIVE_STALE_MSECS of the backlog,
+    // and older ones only if they are at least spacingMsecs apart.
+    // Returned oldest first.  The backlog is in the order things failed,
+    // stale fixes and failed batches mixed, so it is sorted here first.
+    static List<Location> thin(List<Location> locations, long spacingMsecs) {
+        locations = new ArrayList<Location>(locations);
+        Collections.sort(locations, LOCATION_TIME_ORDER);
+        if (spacingMsecs <= 0 || locations.isEmpty())
+            return locations;
+
+        long newest = locations.get(locations.size() - 1).getTime();
+        LinkedList<Location> kept = new LinkedList<Location>();
+        long lastKept = Long.MAX_VALUE;
+        for (int i = locations.size() - 1; i >= 0; i--) {
+            Location location = locations.get(i);
+            long time = location.getTime();
+            if (newest - time <= GeoCamMobile.LIVE_STALE_MSECS || lastKept - time >= spacingMsecs) {
+                kept.addFirst(location);
+                lastKept = time;
+            }
+        }
+        return new ArrayList<Location>(kept);
+    }
+
+    private boolean post(List<Location> batch, boolean isBacklog) {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(mContext);
+        String serverUrl = settings.getString(GeoCamMobile.SETTINGS_SERVER_URL_KEY, "BOGUS");
+        String username = settings.getString(GeoCamMobile.SETTINGS_SERVER_USERNAME_KEY, "BOGUS");
+        String password = settings.getString(GeoCamMobile.SETTINGS_SERVER_PASSWORD_KEY, "BOGUS");
+        String phoneUid = settings.getString(GeoCamMobile.SETTINGS_UNIQUE_ID, "BOGUS");
+        boolean compress = settings.getBoolean(GeoCamMobile.SETTINGS_SERVER_COMPRESS_KEY, true);
+
+        JSONObject json;
+        try {
+            if (batch.size() == 1 && !isBacklog) {
+                // A lone fix goes as a plain Feature, which every server takes
+                json = toFeature(batch.get(0), username, phoneUid);
+            } else {
+                JSONArray features = new JSONArray();
+                for (Location location : batch) {
+                    features.put(toFeature(location, username, phoneUid));
+                }
+                json = new JSONObject();
+                json.put("type", "FeatureCollection");
+                json.put("features", features);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Error creating json " + e);
+            return true; // retrying won't help
+        }
+
+        Log.i(TAG, "Sending " + batch.size() + (isBacklog ? " backlogged" : "") + " live positions");
+
+        String postUrl = serverUrl + "tracking/post/";
+        long start = SystemClock.elapsedRealtime();
+        try {
+            // Only backlog batches are big enough to be worth compressing.
+            // HttpPost falls back to plain if the server won't take gzip.
+            int out = HttpPost.post(postUrl, json, username, password, compress && isBacklog);
+            Log.d(TAG, "POST response " + out + " after " + (SystemClock.elapsedRealtime() - start) + " ms");
+            return (out == 200);
+        } catch (IOException e) {
+            Log.w(TAG, "Sending live positions: " + e);
+            return false;
+        }
+    }
+
+    private static JSONObject toFeature(Location location, String username, String phoneUid)
+        throws JSONException {
+        // Create the coordinates array .. x, y and z
+        JSONArray coordinates = new JSONArray();
+        coordinates.put(location.getLongitude());
+        coordinates.put(location.getLatitude());
+        if (location.hasAltitude()) {
+            coordinates.put(location.getAltitude());
+        }
+
+        // Create the point geometry
+        JSONObject geometry = new JSONObject();
+        geometry.put("type", "Point");
+        geometry.put("coordinates", coordinates);
+
+        // Create the properties object
+        JSONObject properties = new JSONObject();
+        properties.put("name", username);
+        properties.put("userName", username);
+
+        if (location.hasAccuracy()) {
+            properties.put("accuracyMeters", location.getAccuracy());
+        }
+
+        if (location.hasSpeed()) {
+            properties.put("speedMetersPerSecond", location.getSpeed());
+        }
+
+        if (location.hasBearing()) {
+            properties.put("bearingDegrees", location.getBearing());
+        }
+
+        properties.put("timestamp", GpxWriter.dateToISO8601(location.getTime()));
+
+        // Create a GeoJson feature for this
+        JSONObject feature = new JSONObject();
+        feature.put("type", "Feature");
+        feature.put("id", phoneUid);
+        feature.put("geometry", geometry);
+        feature.put("properties", properties);
+        return feature;
+    }
+}
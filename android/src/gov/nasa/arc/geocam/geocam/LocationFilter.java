@@ -0,0 +1,68 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+// A stage that GPS fixes go through before they are stored, broadcast or
+// sent live.  A stage can drop a fix or adjust it in place.  Fixes are
+// plain Fix objects rather than Locations, so filters can be replayed
+// against recorded tracks off the phone (see scripts/LocationFilterReplay.java).
+//
+// Filters keep state between fixes and are called from one thread.
+public interface LocationFilter {
+    // Returns false to drop the fix
+    boolean filter(Fix fix);
+
+    // Forget earlier fixes, e.g. after the GPS has been off
+    void reset();
+
+    // The parts of a Location the filters look at
+    public static class Fix {
+        public double latitude;
+        public double longitude;
+        public float accuracy;  // meters, 0 if unknown
+        public long time;       // msecs
+
+        public void set(double latitude, double longitude, float accuracy, long time) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.accuracy = accuracy;
+            this.time = time;
+        }
+    }
+
+    // Runs a fix through each filter in turn, stopping at the first that
+    // drops it
+    public static class Chain implements LocationFilter {
+        private final LocationFilter[] mFilters;
+        private final int[] mDropped;
+
+        public Chain(LocationFilter... filters) {
+            mFilters = filters;
+            mDropped = new int[filters.length];
+        }
+
+        public boolean filter(Fix fix) {
+            for (int i = 0; i < mFilters.length; i++) {
+                if (!mFilters[i].filter(fix)) {
+                    mDropped[i]++;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public void reset() {
+            for (LocationFilter filter : mFilters)
+                filter.reset();
+        }
+
+        // Fixes dropped by the filter at index so far
+        public int getDropped(int index) {
+            return mDropped[index];
+        }
+    }
+}
@@ -0,0 +1,186 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import java.io.IOException;
+import java.util.List;
+
+import android.database.AbstractCursor;
+import android.util.Log;
+
+// A cursor over the points of packed track segments acquired after
+// afterTime, with the columns of GpsDbAdapter.TRACK_POINT_COLUMNS.  Only
+// the segment under the cursor is decoded, into plain arrays, so a long
+// track costs one segment's worth of memory however it is read.  Points
+// have no row id or orientation.
+class PackedSegmentCursor extends AbstractCursor {
+	private static final String TAG = "PackedSegmentCursor";
+
+	// Columns, in the order of GpsDbAdapter.TRACK_POINT_COLUMNS
+	private static final int COLUMN_ROWID = 0;
+	private static final int COLUMN_LATITUDE = 1;
+	private static final int COLUMN_LONGITUDE = 2;
+	private static final int COLUMN_ALTITUDE = 3;
+	private static final int COLUMN_ORIENTATION = 4;
+	private static final int COLUMN_ACQUIRED = 5;
+	private static final int COLUMN_SEGMENT = 6;
+
+	private final List<GpsDbAdapter.PackedSegment> mSegments;
+	private final long mAfterTime;
+	// Position of each segment's first point, and the count at the end
+	private final int[] mStarts;
+
+	// The segment decoded, and the row within it
+	private int mDecoded = -1;
+	private double[] mLatitude;
+	private double[] mLongitude;
+	private double[] mAltitude;
+	private long[] mTime;
+	private int mRow;
+
+	public PackedSegmentCursor(List<GpsDbAdapter.PackedSegment> segments, long afterTime) {
+		mSegments = segments;
+		mAfterTime = afterTime;
+		mStarts = new int[segments.size() + 1];
+		for (int i = 0; i < segments.size(); i++) {
+			mStarts[i + 1] = mStarts[i] + countAfter(segments.get(i));
+		}
+	}
+
+	// Only a segment that starts before afterTime needs decoding to count
+	private int countAfter(GpsDbAdapter.PackedSegment segment) {
+		if (segment.firstAcquired > mAfterTime)
+			return segment.numPoints;
+
+		int count = 0;
+		try {
+			TrackSegmentCodec.Decoder points = new TrackSegmentCodec.Decoder(segment.data);
+			while (points.next()) {
+				if (points.time > mAfterTime)
+					count++;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading segment " + segment.number + ": " + e);
+		}
+		return count;
+	}
+
+	@Override
+	public int getCount() {
+		return mStarts[mSegments.size()];
+	}
+
+	@Override
+	public String[] getColumnNames() {
+		return GpsDbAdapter.TRACK_POINT_COLUMNS;
+	}
+
+	@Override
+	public boolean onMove(int oldPosition, int newPosition) {
+		int segment = mDecoded;
+		if (segment < 0 || newPosition < mStarts[segment] || newPosition >= mStarts[segment + 1]) {
+			segment = 0;
+			while (newPosition >= mStarts[segment + 1])
+				segment++;
+			if (!decode(segment))
+				return false;
+		}
+		mRow = newPosition - mStarts[segment];
+		return true;
+	}
+
+	private boolean decode(int segment) {
+		int count = mStarts[segment + 1] - mStarts[segment];
+		if (mTime == null || mTime.length < count) {
+			mLatitude = new double[count];
+			mLongitude = new double[count];
+			mAltitude = new double[count];
+			mTime = new long[count];
+		}
+
+		mDecoded = -1;
+		try {
+			TrackSegmentCodec.Decoder points = new TrackSegmentCodec.Decoder(mSegments.get(segment).data);
+			int i = 0;
+			while (i < count && points.next()) {
+				if (points.time <= mAfterTime)
+					continue;
+				mLatitude[i] = points.latitude;
+				mLongitude[i] = points.longitude;
+				mAltitude[i] = points.altitude;
+				mTime[i] = points.time;
+				i++;
+			}
+			if (i < count)
+				throw new IOException("Segment shorter than its count");
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading segment " + mSegments.get(segment).number + ": " + e);
+			return false;
+		}
+		mDecoded = segment;
+		return true;
+	}
+
+	@Override
+	public double getDouble(int column) {
+		switch (column) {
+		case COLUMN_LATITUDE:
+			return mLatitude[mRow];
+		case COLUMN_LONGITUDE:
+			return mLongitude[mRow];
+		case COLUMN_ALTITUDE:
+			return mAltitude[mRow];
+		case COLUMN_ACQUIRED:
+			return mTime[mRow];
+		case COLUMN_SEGMENT:
+			return mSegments.get(mDecoded).number;
+		default:
+			return 0;
+		}
+	}
+
+	@Override
+	public long getLong(int column) {
+		switch (column) {
+		case COLUMN_ACQUIRED:
+			return mTime[mRow];
+		case COLUMN_SEGMENT:
+			return mSegments.get(mDecoded).number;
+		default:
+			return (long) getDouble(column);
+		}
+	}
+
+	@Override
+	public float getFloat(int column) {
+		return (float) getDouble(column);
+	}
+
+	@Override
+	public int getInt(int column) {
+		return (int) getLong(column);
+	}
+
+	@Override
+	public short getShort(int column) {
+		return (short) getLong(column);
+	}
+
+	@Override
+	public String getString(int column) {
+		if (isNull(column))
+			return null;
+		if (column == COLUMN_ACQUIRED || column == COLUMN_SEGMENT)
+			return Long.toString(getLong(column));
+		return Double.toString(getDouble(column));
+	}
+
+	@Override
+	public boolean isNull(int column) {
+		return column == COLUMN_ROWID || column == COLUMN_ORIENTATION;
+	}
+}
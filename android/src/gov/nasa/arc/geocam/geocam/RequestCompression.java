@@ -0,0 +1,111 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.util.Log;
+
+// Which servers take request bodies sent with Content-Encoding: gzip, and
+// how much that has saved.  Shared by the whole process.
+//
+// Every server is assumed to take gzip until it answers a gzipped request
+// with 400 or 415; after that its requests go uncompressed until the
+// process restarts.  HttpPost does the compressing and the fallback.
+public class RequestCompression {
+    private static final String TAG = "RequestCompression";
+
+    // Bodies smaller than this aren't worth compressing
+    public static final int MIN_BYTES = 1024;
+
+    private static final Object sLock = new Object();
+    private static final Set<String> sRefused = new HashSet<String>();
+    private static long sUncompressedBytes = 0;
+    private static long sCompressedBytes = 0;
+
+    private RequestCompression() {
+    }
+
+    public static boolean isAccepted(String url) {
+        synchronized (sLock) {
+            return !sRefused.contains(ConnectionManager.getServer(url));
+        }
+    }
+
+    // Whether status is a server turning down a gzipped body
+    public static boolean isRefusal(int status) {
+        return status == 400 || status == 415;
+    }
+
+    public static void refused(String url) {
+        String server = ConnectionManager.getServer(url);
+        Log.w(TAG, server + " won't take gzipped requests, sending them plain from now on");
+        synchronized (sLock) {
+            sRefused.add(server);
+        }
+    }
+
+    // Record one gzipped body
+    public static void record(long uncompressedBytes, long compressedBytes) {
+        synchronized (sLock) {
+            sUncompressedBytes += uncompressedBytes;
+            sCompressedBytes += compressedBytes;
+            Log.d(TAG, "Gzipped " + uncompressedBytes + " bytes to " + compressedBytes
+                  + " (" + formatRatio(uncompressedBytes, compressedBytes) + "), "
+                  + getBytesSaved() + " bytes saved in all");
+        }
+    }
+
+    public static long getBytesSaved() {
+        synchronized (sLock) {
+            return sUncompressedBytes - sCompressedBytes;
+        }
+    }
+
+    // Uncompressed size over compressed size of everything gzipped so far,
+    // or -1 if nothing has been
+    public static double getRatio() {
+        synchronized (sLock) {
+            if (sCompressedBytes == 0)
+                return -1;
+            return sUncompressedBytes / (double) sCompressedBytes;
+        }
+    }
+
+    private static String formatRatio(long uncompressedBytes, long compressedBytes) {
+        if (compressedBytes == 0)
+            return "-";
+        return Math.round(10.0 * uncompressedBytes / compressedBytes) / 10.0 + "x";
+    }
+
+    // Counts the bytes written through it
+    public static class CountingOutputStream extends FilterOutputStream {
+        private long mCount = 0;
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// Uploads a large file as a series of numbered chunks, each one its own
+// multipart POST.  The server answers every chunk with the number of bytes
+// it holds for the file, so after a dropped connection the upload picks up
+// from the last acknowledged chunk instead of from byte zero.
+//
+// See docs/protocol.rst ("Resumable Photo Uploads") for the wire format and
+// scripts/resumable_upload_server.py for a stand-in server.
+public class ResumableUpload {
+    private static final String TAG = "ResumableUpload";
+
+    public static final String CHUNK_TOKEN = "GEOCAM_SHARE_CHUNK";
+    public static final String POSTED_TOKEN = "GEOCAM_SHARE_POSTED";
+
+    // Our code for when the server holds a different number of bytes than
+    // we expected.  The confirmed offset has been reported through
+    // Listener.onChunkConfirmed, so the next attempt resumes from there.
+    public static final int STATUS_RESYNC = -4;
+
+    public interface Listener {
+        // Called after the server confirms it holds the first offset bytes
+        void onChunkConfirmed(long offset);
+    }
+
+    private static final ThreadLocal<byte[]> sChunkBuffer = new ThreadLocal<byte[]>();
+
+    private ResumableUpload() {
+    }
+
+    // Send istream, which must already be positioned at offset, in chunks
+    // of chunkSize bytes.  vars are sent with the final chunk only.  Returns
+    // 200 once the server has confirmed the whole file, otherwise the HTTP
+    // status (or one of our negative codes) of the chunk that failed.
+    public static int upload(String url, Map<String,String> vars, String fileName,
+                             InputStream istream, long offset, long totalSize, int chunkSize,
+                             String username, String password, Listener listener) throws IOException {
+        byte[] buffer = sChunkBuffer.get();
+        if (buffer == null || buffer.length != chunkSize) {
+            buffer = new byte[chunkSize];
+            sChunkBuffer.set(buffer);
+        }
+
+        try {
+            while (true) {
+                int length = readFully(istream, buffer, (int) Math.min(chunkSize, totalSize - offset));
+                boolean isLast = (offset + length >= totalSize);
+
+                Map<String,String> chunkVars = new HashMap<String,String>();
+                if (isLast)
+                    chunkVars.putAll(vars);
+                chunkVars.put("uuid", vars.get("uuid"));
+                chunkVars.put("chunkIndex", String.valueOf(offset / chunkSize));
+                chunkVars.put("offset", String.valueOf(offset));
+                chunkVars.put("totalSize", String.valueOf(totalSize));
+
+                ChunkResponse response = postChunk(url, chunkVars, fileName, buffer, length,
+                                                   username, password);
+                if (response.status == DigestAuth.STATUS_RENEWED) {
+                    // the chunk is still in the buffer, send it again
+                    response = postChunk(url, chunkVars, fileName, buffer, length,
+                                         username, password);
+                }
+                if (response.status != 200)
+                    return response.status;
+
+                if (response.confirmedOffset != offset + length) {
+                    // The server lost or already has part of the file
+                    Log.w(TAG, "Server holds " + response.confirmedOffset + " bytes of "
+                          + fileName + ", expected " + (offset + length));
+                    if (response.confirmedOffset >= 0)
+                        listener.onChunkConfirmed(response.confirmedOffset);
+                    return STATUS_RESYNC;
+                }
+
+                offset = response.confirmedOffset;
+                listener.onChunkConfirmed(offset);
+
+                if (isLast) {
+                    // our code for when we got value 200 but no confirmation
+                    return response.posted ? 200 : -3;
+                }
+            }
+        } finally {
+            istream.close();
+        }
+    }
+
+    // Skip exactly count bytes of in, which InputStream.skip doesn't promise
+    public static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1)
+                    throw new IOException("End of stream while skipping to resume offset");
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int bytesRead = in.read(buffer, total, length - total);
+            if (bytesRead == -1)
+                throw new IOException("File ended after " + total + " of " + length + " chunk bytes");
+            total += bytesRead;
+        }
+        return total;
+    }
+
+    private static class ChunkResponse {
+        int status = 0;
+        long confirmedOffset = -1;
+        boolean posted = false;
+    }
+
+    private static ChunkResponse postChunk(String url, Map<String,String> vars, String fileName,
+                                           byte[] data, int length,
+                                           String username, String password) throws IOException {
+        HttpURLConnection conn = HttpPost.createConnection(url, username, password);
+        ChunkResponse response = new ChunkResponse();
+
+        try {
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Connection", "Keep-Alive");
+            conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + HttpPost.BOUNDARY);
+
+            byte[] preamble = HttpPost.multipartPreamble(vars, "chunk", fileName);
+            byte[] epilogue = HttpPost.multipartEpilogue();
+            conn.setFixedLengthStreamingMode(preamble.length + length + epilogue.length);
+
+            long sendStart = SystemClock.elapsedRealtime();
+            OutputStream out = conn.getOutputStream();
+            out.write(preamble);
+            out.write(data, 0, length);
+            out.write(epilogue);
+            out.flush();
+            long sendEnd = SystemClock.elapsedRealtime();
+
+            // Look for "GEOCAM_SHARE_CHUNK <uuid> <bytes held>" and, on the
+            // final chunk, "GEOCAM_SHARE_POSTED <file>"
+            BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()), 2048);
+            ThroughputEstimator.record(preamble.length + length + epilogue.length, sendEnd - sendStart,
+                                       SystemClock.elapsedRealtime() - sendEnd);
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] vals = line.trim().split("\\s+");
+                for (int i = 0; i < vals.length; ++i) {
+                    if (vals[i].equals(CHUNK_TOKEN) && i + 2 < vals.length) {
+                        try {
+                            response.confirmedOffset = Long.parseLong(vals[i + 2]);
+                        } catch (NumberFormatException e) {
+                            Log.w(TAG, "Bad chunk confirmation: " + line);
+                        }
+                    } else if (vals[i].equals(POSTED_TOKEN) && i + 1 < vals.length
+                               && vals[i + 1].equals(fileName)) {
+                        response.posted = true;
+                    }
+                }
+            }
+            reader.close();
+            out.close();
+
+            response.status = HttpPost.getStatus(conn);
+            if (response.status == 200 && response.confirmedOffset < 0) {
+                // our code for when we got value 200 but no confirmation
+                response.status = -3;
+            }
+            return response;
+        }
+        catch (IOException e) {
+            try {
+                response.status = HttpPost.getStatus(conn);
+                ConnectionManager.finish(conn);
+                return response;
+            } catch (IOException f) {
+                throw new IOException("ResumableUpload - IOException: " + e);
+            }
+        }
+    }
+}
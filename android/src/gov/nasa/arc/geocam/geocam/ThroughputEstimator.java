@@ -0,0 +1,90 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// Running estimate of upload throughput and round trip time, fed by every
+// POST that HttpPost and ResumableUpload make.  Shared by the whole process.
+//
+// For each request we time sending the body (from opening the connection
+// until the last byte is handed to the socket) and waiting for the response
+// headers after that.  The wait is our round trip time sample; it includes
+// the server's processing time, which is fine for deciding what to send.
+// The body only counts towards throughput if it is big enough that the
+// transfer, not the round trip, dominates.  Both are exponentially weighted
+// moving averages, and are forgotten once they are too old to describe the
+// link we are on now.
+public class ThroughputEstimator {
+    private static final String TAG = "ThroughputEstimator";
+
+    // Weight of each new sample
+    public static final double ALPHA = 0.3;
+    // Bodies smaller than this only give an RTT sample
+    public static final long MIN_THROUGHPUT_SAMPLE_BYTES = 16 * 1024;
+    // Estimates older than this are unknown again
+    public static final long STALE_MSECS = 10 * 60 * 1000;
+
+    private static final Object sLock = new Object();
+    private static double sBytesPerSec = -1;
+    private static double sRttMsecs = -1;
+    private static long sLastSampleTime = 0;
+
+    private ThroughputEstimator() {
+    }
+
+    // Record one request: bytes of body sent, msecs to send them and msecs
+    // then spent waiting for the response
+    public static void record(long bytes, long sendMsecs, long waitMsecs) {
+        synchronized (sLock) {
+            sRttMsecs = average(sRttMsecs, Math.max(waitMsecs, 0));
+
+            if (bytes >= MIN_THROUGHPUT_SAMPLE_BYTES) {
+                // The tail of the body may still have been in flight while
+                // we waited, and the wait includes a round trip
+                long transferMsecs = Math.max(sendMsecs + waitMsecs - (long) sRttMsecs, 1);
+                sBytesPerSec = average(sBytesPerSec, bytes * 1000.0 / transferMsecs);
+            }
+            sLastSampleTime = SystemClock.elapsedRealtime();
+
+            Log.d(TAG, "Sent " + bytes + " bytes in " + sendMsecs + "+" + waitMsecs + " ms, estimate now "
+                  + Math.round(sBytesPerSec / 1024) + " KB/s, rtt " + Math.round(sRttMsecs) + " ms");
+        }
+    }
+
+    // Estimated upload throughput in bytes per second, or -1 if unknown
+    public static double getBytesPerSec() {
+        synchronized (sLock) {
+            return isStale() ? -1 : sBytesPerSec;
+        }
+    }
+
+    // Estimated round trip time in msecs, or -1 if unknown
+    public static double getRttMsecs() {
+        synchronized (sLock) {
+            return isStale() ? -1 : sRttMsecs;
+        }
+    }
+
+    public static void reset() {
+        synchronized (sLock) {
+            sBytesPerSec = -1;
+            sRttMsecs = -1;
+            sLastSampleTime = 0;
+        }
+    }
+
+    // Must be called with sLock held
+    private static boolean isStale() {
+        return sLastSampleTime == 0 || SystemClock.elapsedRealtime() - sLastSampleTime > STALE_MSECS;
+    }
+
+    private static double average(double current, double sample) {
+        return (current < 0) ? sample : ALPHA * sample + (1 - ALPHA) * current;
+    }
+}
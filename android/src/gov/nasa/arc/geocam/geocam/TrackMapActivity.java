@@ -8,6 +8,7 @@ package gov.nasa.arc.geocam.geocam;
 
 import gov.nasa.arc.geocam.geocam.util.ForegroundTracker;
 
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
@@ -21,7 +22,6 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
-import android.database.Cursor;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Point;
@@ -250,39 +250,38 @@ public class TrackMapActivity extends MapActivity {
 				}
 			}
 			
-			Cursor points = mDb.getTrackPoints(mTrackId);
-			
-			Log.d(TAG, "displaying track " + mTrackId + " with " + points.getCount() + " points");
+			// Points that wouldn't show on the map are left out
+			final TrackSimplifier simplifier = new TrackSimplifier(GeoCamMobile.TRACK_DISPLAY_TOLERANCE_METERS,
+					new TrackSimplifier.Sink() {
+						public void point(double lat, double lon, double alt, long time) {
+							GeoPoint currPoint = new GeoPoint((int) (lat * 1000000), (int) (lon * 1000000));
+							mSegments.getLast().addPoint(currPoint);
+							mBounds.add(currPoint);
+						}
+					});
+			final long[] prevSegment = { -1 };
 			
-			if (points.getCount() == 0) {
-				points.close();
-				mDb.close();
-				return;
+			try {
+				mDb.readTrackPoints(mTrackId, Long.MIN_VALUE, new GpsDbAdapter.TrackPointSink() {
+					public void point(long segment, double lat, double lon, double alt, long time)
+							throws IOException {
+						if (segment != prevSegment[0]) {
+							simplifier.finish();
+							prevSegment[0] = segment;
+							mSegments.add(new PolyLineOverlay());
+						}
+						
+						simplifier.add(lat, lon, 0, 0);
+					}
+				});
+				simplifier.finish();
+			} catch (IOException e) {
+				Log.e(TAG, "Error reading track " + mTrackId + ": " + e);
 			}
 			
-			int latIndex = points.getColumnIndex(GpsDbAdapter.KEY_POINT_LATITUDE);
-			int lonIndex = points.getColumnIndex(GpsDbAdapter.KEY_POINT_LONGITUDE);
-			int segIndex = points.getColumnIndex(GpsDbAdapter.KEY_POINT_TRACK_SEGMENT);
-			
-			long prevSegment = -1;
-			PolyLineOverlay currSegment = null;
-			
-			points.moveToFirst();
-			do {
-				long segment = points.getLong(segIndex);
-				if (segment != prevSegment) {
-					prevSegment = segment;
-					currSegment = new PolyLineOverlay();
-					mSegments.add(currSegment);
-				}
-				
-				GeoPoint currPoint = new GeoPoint((int) (points.getFloat(latIndex) * 1000000),
-			              						  (int) (points.getFloat(lonIndex) * 1000000));
-				currSegment.addPoint(currPoint);
-				mBounds.add(currPoint);
-			} while(points.moveToNext());
+			Log.d(TAG, "displaying track " + mTrackId + ", drawing " + simplifier.getPointsOut()
+					+ " of " + simplifier.getPointsIn() + " points");
 			
-			points.close();
 			mDb.close();
 		}
 		
@@ -0,0 +1,221 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import java.io.IOException;
+
+// Packs the points of a finished track segment into one blob, and reads
+// them back.
+//
+// Latitude and longitude are stored as integer degrees * 10^7 (about a
+// centimeter, the same as GpxWriter writes), altitude as integer
+// centimeters, and time in msecs.  Each point is stored as the difference
+// from the one before, zigzag-encoded so small negative steps stay small,
+// as a varint of 7 bits a byte.  A fix a second at walking speed takes
+// 6-8 bytes, against 50 and up for a row of the points table.
+//
+// The blob starts with a small header:
+//   version       1 byte
+//   count         varint
+//   bounds        zigzag varints: min lat, min lon, max lat, max lon (E7)
+// followed by count points of time, lat, lon, alt deltas, the first from 0.
+//
+// See scripts/TrackSegmentCodecBenchmark.java for size and speed.
+public class TrackSegmentCodec {
+    public static final int VERSION = 1;
+
+    private static final double E7 = 1e7;
+    private static final double CENTIMETERS = 100;
+    private static final double FROM_E7 = 1e-7;
+    private static final double FROM_CENTIMETERS = 0.01;
+
+    private TrackSegmentCodec() {
+    }
+
+    // Collects points, in time order, and encodes them
+    public static class Encoder {
+        private byte[] mBuf = new byte[256];
+        private int mLength = 0;
+        private int mCount = 0;
+
+        private long mTime = 0, mLat = 0, mLon = 0, mAlt = 0;
+        private long mFirstTime = 0;
+        private long mMinLat = Long.MAX_VALUE, mMinLon = Long.MAX_VALUE;
+        private long mMaxLat = Long.MIN_VALUE, mMaxLon = Long.MIN_VALUE;
+
+        public void add(double latitude, double longitude, double altitude, long time) {
+            long lat = Math.round(latitude * E7);
+            long lon = Math.round(longitude * E7);
+            long alt = Math.round(altitude * CENTIMETERS);
+
+            ensure(4 * 10);
+            mLength = putSigned(mBuf, mLength, time - mTime);
+            mLength = putSigned(mBuf, mLength, lat - mLat);
+            mLength = putSigned(mBuf, mLength, lon - mLon);
+            mLength = putSigned(mBuf, mLength, alt - mAlt);
+
+            if (mCount == 0)
+                mFirstTime = time;
+            mCount++;
+            mTime = time;
+            mLat = lat;
+            mLon = lon;
+            mAlt = alt;
+
+            mMinLat = Math.min(mMinLat, lat);
+            mMinLon = Math.min(mMinLon, lon);
+            mMaxLat = Math.max(mMaxLat, lat);
+            mMaxLon = Math.max(mMaxLon, lon);
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        // Times of the first and last points added
+        public long getFirstTime() {
+            return mFirstTime;
+        }
+
+        public long getLastTime() {
+            return mTime;
+        }
+
+        public byte[] toByteArray() {
+            byte[] header = new byte[1 + 5 * 10];
+            int n = 0;
+            header[n++] = (byte) VERSION;
+            n = putUnsigned(header, n, mCount);
+            if (mCount > 0) {
+                n = putSigned(header, n, mMinLat);
+                n = putSigned(header, n, mMinLon);
+                n = putSigned(header, n, mMaxLat);
+                n = putSigned(header, n, mMaxLon);
+            } else {
+                for (int i = 0; i < 4; i++)
+                    n = putSigned(header, n, 0);
+            }
+
+            byte[] data = new byte[n + mLength];
+            System.arraycopy(header, 0, data, 0, n);
+            System.arraycopy(mBuf, 0, data, n, mLength);
+            return data;
+        }
+
+        private void ensure(int room) {
+            if (mLength + room > mBuf.length) {
+                byte[] buf = new byte[Math.max(mBuf.length * 2, mLength + room)];
+                System.arraycopy(mBuf, 0, buf, 0, mLength);
+                mBuf = buf;
+            }
+        }
+    }
+
+    // Reads the points back, oldest first:
+    //
+    //   Decoder d = new Decoder(data);
+    //   while (d.next())
+    //       ... d.latitude, d.longitude, d.altitude, d.time ...
+    public static class Decoder {
+        public double latitude;
+        public double longitude;
+        public double altitude;
+        public long time;
+
+        private final byte[] mData;
+        private final int mCount;
+        private final long mMinLat, mMinLon, mMaxLat, mMaxLon;
+        private int mPos;
+        private int mRead = 0;
+        private long mLat = 0, mLon = 0, mAlt = 0;
+
+        public Decoder(byte[] data) throws IOException {
+            mData = data;
+            if (data.length < 1 || data[0] != VERSION)
+                throw new IOException("Unknown track segment version");
+            mPos = 1;
+            mCount = (int) getUnsigned();
+            mMinLat = getSigned();
+            mMinLon = getSigned();
+            mMaxLat = getSigned();
+            mMaxLon = getSigned();
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        // Bounds of the segment, in degrees
+        public double getMinLatitude() {
+            return mMinLat / E7;
+        }
+
+        public double getMinLongitude() {
+            return mMinLon / E7;
+        }
+
+        public double getMaxLatitude() {
+            return mMaxLat / E7;
+        }
+
+        public double getMaxLongitude() {
+            return mMaxLon / E7;
+        }
+
+        // Move to the next point.  Returns false after the last.
+        public boolean next() throws IOException {
+            if (mRead >= mCount)
+                return false;
+            mRead++;
+
+            time += getSigned();
+            mLat += getSigned();
+            mLon += getSigned();
+            mAlt += getSigned();
+            latitude = mLat * FROM_E7;
+            longitude = mLon * FROM_E7;
+            altitude = mAlt * FROM_CENTIMETERS;
+            return true;
+        }
+
+        private long getSigned() throws IOException {
+            long zigzag = getUnsigned();
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        private long getUnsigned() throws IOException {
+            long value = 0;
+            int shift = 0;
+            byte[] data = mData;
+            int pos = mPos;
+            while (true) {
+                if (pos >= data.length || shift > 63)
+                    throw new IOException("Truncated track segment");
+                byte b = data[pos++];
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0)
+                    break;
+                shift += 7;
+            }
+            mPos = pos;
+            return value;
+        }
+    }
+
+    private static int putSigned(byte[] buf, int pos, long value) {
+        return putUnsigned(buf, pos, (value << 1) ^ (value >> 63));
+    }
+
+    private static int putUnsigned(byte[] buf, int pos, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+        return pos;
+    }
+}
@@ -0,0 +1,222 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import java.io.IOException;
+
+// Drops the points of a track that lie within a tolerance of the line
+// through the points it keeps (Douglas-Peucker), as they are read, and
+// passes the rest on to a Sink.
+//
+// Douglas-Peucker needs the whole line, so points are buffered up to a
+// window's worth.  When the window fills it is simplified, the points kept
+// are passed on, and the tail after the last but one kept point starts the
+// next window, so the cut doesn't force a point of its own.  Memory is
+// bounded by the window whatever the length of the track, and every point
+// dropped is within the tolerance of the line kept.  Call finish() at the
+// end of each segment.
+//
+// Distances are measured on a flat projection around the segment's first
+// point, which is plenty for tolerances of meters.
+//
+// See scripts/TrackSimplifierBenchmark.java for points kept against error.
+public class TrackSimplifier {
+    public static final int DEFAULT_WINDOW = 512;
+
+    private static final double METERS_PER_DEGREE = 6371009.0 * Math.PI / 180;
+
+    // Receives the points kept, in order
+    public interface Sink {
+        void point(double lat, double lon, double alt, long time) throws IOException;
+    }
+
+    private final double mToleranceSquared;
+    private final Sink mSink;
+    private final int mWindow;
+
+    // The window; point 0 has been passed on already
+    private final double[] mLat;
+    private final double[] mLon;
+    private final double[] mAlt;
+    private final long[] mTime;
+    private final double[] mX;
+    private final double[] mY;
+    private int mCount = 0;
+
+    // Scratch for simplify()
+    private final boolean[] mKeep;
+    private final int[] mStack;
+
+    // Projection for the current segment
+    private double mLat0;
+    private double mLon0;
+    private double mLonScale;
+
+    private long mPointsIn = 0;
+    private long mPointsOut = 0;
+
+    public TrackSimplifier(double toleranceMeters, Sink sink) {
+        this(toleranceMeters, DEFAULT_WINDOW, sink);
+    }
+
+    public TrackSimplifier(double toleranceMeters, int window, Sink sink) {
+        if (window < 3)
+            throw new IllegalArgumentException("Window must hold at least 3 points");
+        mToleranceSquared = toleranceMeters * toleranceMeters;
+        mSink = sink;
+        mWindow = window;
+        mLat = new double[window];
+        mLon = new double[window];
+        mAlt = new double[window];
+        mTime = new long[window];
+        mX = new double[window];
+        mY = new double[window];
+        mKeep = new boolean[window];
+        mStack = new int[2 * window];
+    }
+
+    public void add(double lat, double lon, double alt, long time) throws IOException {
+        mPointsIn++;
+        if (mCount == 0) {
+            // The first point of a segment is always kept
+            mLat0 = lat;
+            mLon0 = lon;
+            mLonScale = Math.cos(Math.toRadians(lat));
+            put(0, lat, lon, alt, time);
+            mCount = 1;
+            emit(0);
+            return;
+        }
+
+        put(mCount++, lat, lon, alt, time);
+        if (mCount == mWindow)
+            flushWindow();
+    }
+
+    // End the segment: pass on what is kept of the points still buffered.
+    // The next point added starts a new line.
+    public void finish() throws IOException {
+        if (mCount > 1) {
+            simplify(mCount);
+            for (int i = 1; i < mCount; i++) {
+                if (mKeep[i])
+                    emit(i);
+            }
+        }
+        mCount = 0;
+    }
+
+    public long getPointsIn() {
+        return mPointsIn;
+    }
+
+    public long getPointsOut() {
+        return mPointsOut;
+    }
+
+    private void put(int i, double lat, double lon, double alt, long time) {
+        mLat[i] = lat;
+        mLon[i] = lon;
+        mAlt[i] = alt;
+        mTime[i] = time;
+        mX[i] = (lon - mLon0) * mLonScale * METERS_PER_DEGREE;
+        mY[i] = (lat - mLat0) * METERS_PER_DEGREE;
+    }
+
+    private void emit(int i) throws IOException {
+        mPointsOut++;
+        mSink.point(mLat[i], mLon[i], mAlt[i], mTime[i]);
+    }
+
+    private void flushWindow() throws IOException {
+        simplify(mCount);
+
+        // Pass on everything kept before the last but one kept point, which
+        // becomes the new point 0.  If that would leave most of the window
+        // to do again, cut at the end instead.
+        int last = mCount - 1;
+        int cut = last;
+        for (int i = last - 1; i > 0; i--) {
+            if (mKeep[i]) {
+                cut = i;
+                break;
+            }
+        }
+        if (mCount - cut > mWindow / 2)
+            cut = last;
+
+        for (int i = 1; i <= cut; i++) {
+            if (mKeep[i])
+                emit(i);
+        }
+
+        int remaining = mCount - cut;
+        System.arraycopy(mLat, cut, mLat, 0, remaining);
+        System.arraycopy(mLon, cut, mLon, 0, remaining);
+        System.arraycopy(mAlt, cut, mAlt, 0, remaining);
+        System.arraycopy(mTime, cut, mTime, 0, remaining);
+        System.arraycopy(mX, cut, mX, 0, remaining);
+        System.arraycopy(mY, cut, mY, 0, remaining);
+        mCount = remaining;
+    }
+
+    // Mark the points of the first count in the window that Douglas-Peucker
+    // keeps.  Uses an explicit stack rather than recursing, so a long
+    // straight stretch can't run out of stack.
+    private void simplify(int count) {
+        for (int i = 0; i < count; i++)
+            mKeep[i] = false;
+        mKeep[0] = true;
+        mKeep[count - 1] = true;
+
+        int top = 0;
+        mStack[top++] = 0;
+        mStack[top++] = count - 1;
+        while (top > 0) {
+            int last = mStack[--top];
+            int first = mStack[--top];
+
+            double maxDistance = -1;
+            int farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                double d = distanceSquared(i, first, last);
+                if (d > maxDistance) {
+                    maxDistance = d;
+                    farthest = i;
+                }
+            }
+
+            if (farthest >= 0 && maxDistance > mToleranceSquared) {
+                mKeep[farthest] = true;
+                mStack[top++] = first;
+                mStack[top++] = farthest;
+                mStack[top++] = farthest;
+                mStack[top++] = last;
+            }
+        }
+    }
+
+    // Squared distance in meters from point i to the segment from a to b
+    private double distanceSquared(int i, int a, int b) {
+        double dx = mX[b] - mX[a];
+        double dy = mY[b] - mY[a];
+        double px = mX[i] - mX[a];
+        double py = mY[i] - mY[a];
+        double lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared > 0) {
+            double t = (px * dx + py * dy) / lengthSquared;
+            if (t >= 1) {
+                px = mX[i] - mX[b];
+                py = mY[i] - mY[b];
+            } else if (t > 0) {
+                px -= t * dx;
+                py -= t * dy;
+            }
+        }
+        return px * px + py * py;
+    }
+}
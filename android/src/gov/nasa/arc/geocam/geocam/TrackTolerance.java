@@ -0,0 +1,56 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+package gov.nasa.arc.geocam.geocam;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+// How closely each server wants the tracks it is sent to follow the
+// points recorded.  Shared by the whole process.
+//
+// A server asks for simplified tracks by setting TOLERANCE_HEADER, in
+// meters, on its responses; HttpPost passes every response's header on to
+// set().  Tracks go up with every point until a server says otherwise, and
+// uploads after that are simplified to its tolerance with TrackSimplifier.
+public class TrackTolerance {
+    private static final String TAG = "TrackTolerance";
+
+    public static final String TOLERANCE_HEADER = "X-GeoCam-Track-Tolerance";
+
+    private static final Map<String,Double> sTolerance = new HashMap<String,Double>();
+
+    private TrackTolerance() {
+    }
+
+    // Meters to simplify tracks sent to url to, 0 to send every point
+    public static double get(String url) {
+        synchronized (sTolerance) {
+            Double tolerance = sTolerance.get(ConnectionManager.getServer(url));
+            return (tolerance == null) ? 0 : tolerance.doubleValue();
+        }
+    }
+
+    // Note the TOLERANCE_HEADER of a response from url, if it had one
+    public static void set(String url, String header) {
+        if (header == null)
+            return;
+        double tolerance;
+        try {
+            tolerance = Math.max(0, Double.parseDouble(header.trim()));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Bad " + TOLERANCE_HEADER + " from " + url + ": " + header);
+            return;
+        }
+        synchronized (sTolerance) {
+            Double old = sTolerance.put(ConnectionManager.getServer(url), tolerance);
+            if (old == null || old.doubleValue() != tolerance)
+                Log.d(TAG, "Simplifying tracks for " + url + " to " + tolerance + " m");
+        }
+    }
+}
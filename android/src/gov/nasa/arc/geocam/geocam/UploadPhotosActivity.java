@@ -115,6 +115,10 @@ public class UploadPhotosActivity extends Activity {
         String tips;
 
         switch (statusCode) {
+        case -5:
+            shortText = "Server asked to sign in again";
+            tips = "Upload will be retried shortly.  Problem should go away on its own.";
+            break;
         case -3:
             shortText = "Can't verify upload";
             tips = "Try to improve wireless reception.  Problem may go away on its own.";
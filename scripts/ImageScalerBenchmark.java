@@ -0,0 +1,179 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+// Time and heap for the box filter behind ImageScaler.downscale(), on a
+// desktop JVM:
+//
+//   javac -d /tmp/scale android/src/gov/nasa/arc/geocam/geocam/BoxFilter.java scripts/ImageScalerBenchmark.java
+//   java -XX:+UseSerialGC -XX:-UseTLAB -Xms512m -Xmx512m -cp /tmp/scale ImageScalerBenchmark
+//
+// (Without thread-local allocation buffers, and with a heap that needn't
+// grow, the heap pools' peak usage is exact enough to count the buffers.)
+//
+// The JPEG decode is native on the phone and isn't measured here.  We
+// start from the frame it hands over: a 5 and an 8 megapixel photo
+// subsampled by 2, as ImageScaler.decode() does for a factor of 6 within
+// PHOTO_DOWNSCALE_BUDGET_BYTES, held as RGB_565 like the real bitmap.
+// Each frame is reduced by the box filter at scales 2 to 5, once walking
+// it in bands as downscale() does (getPixels/setPixels become 565 <-> ARGB
+// copies) and once the simple way, reading the whole frame into one ARGB
+// array first.  For each we report the time per megapixel of frame read
+// and the peak heap above the source frame: output bitmap plus working
+// buffers.
+
+import gov.nasa.arc.geocam.geocam.BoxFilter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Random;
+
+public class ImageScalerBenchmark {
+    private static final int[][] PHOTOS = { { 2592, 1944 }, { 3264, 2448 } };
+    private static final int DECODER_SAMPLE = 2;
+    private static final int RUNS = 5;
+
+    // A downscale() that keeps its buffers between calls, like ImageScaler
+    private static class BandScaler {
+        int[] mSrcBand = new int[0];
+        int[] mDstBand = new int[0];
+
+        short[] downscale(short[] src, int srcWidth, int srcHeight, int scale) {
+            int dstWidth = srcWidth / scale;
+            int dstHeight = srcHeight / scale;
+            short[] dst = new short[dstWidth * dstHeight];
+
+            int bandRows = BoxFilter.bandRows(srcWidth, scale, dstHeight);
+            if (mSrcBand.length < srcWidth * scale * bandRows)
+                mSrcBand = new int[srcWidth * scale * bandRows];
+            if (mDstBand.length < dstWidth * bandRows)
+                mDstBand = new int[dstWidth * bandRows];
+
+            for (int y = 0; y < dstHeight; y += bandRows) {
+                int rows = Math.min(bandRows, dstHeight - y);
+                getPixels(src, srcWidth * y * scale, mSrcBand, srcWidth * rows * scale);
+                BoxFilter.downscaleBand(mSrcBand, srcWidth, scale, mDstBand, dstWidth, rows);
+                setPixels(mDstBand, dst, dstWidth * y, dstWidth * rows);
+            }
+            return dst;
+        }
+    }
+
+    // The same filter over the whole frame read into one array at once
+    private static short[] downscaleWhole(short[] src, int srcWidth, int srcHeight, int scale) {
+        int dstWidth = srcWidth / scale;
+        int dstHeight = srcHeight / scale;
+        int[] pixels = new int[srcWidth * srcHeight];
+        getPixels(src, 0, pixels, pixels.length);
+        int[] out = new int[dstWidth * dstHeight];
+        BoxFilter.downscaleBand(pixels, srcWidth, scale, out, dstWidth, dstHeight);
+        short[] dst = new short[out.length];
+        setPixels(out, dst, 0, out.length);
+        return dst;
+    }
+
+    // Bitmap.getPixels() on an RGB_565 bitmap
+    private static void getPixels(short[] src, int offset, int[] dst, int count) {
+        for (int i = 0; i < count; i++) {
+            int c = src[offset + i] & 0xffff;
+            int r = (c >> 11) & 0x1f, g = (c >> 5) & 0x3f, b = c & 0x1f;
+            dst[i] = 0xff000000 | (((r << 3) | (r >> 2)) << 16)
+                | (((g << 2) | (g >> 4)) << 8) | ((b << 3) | (b >> 2));
+        }
+    }
+
+    // Bitmap.setPixels() on an RGB_565 bitmap
+    private static void setPixels(int[] src, short[] dst, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            int c = src[i];
+            dst[offset + i] = (short) (((c >> 8) & 0xf800) | ((c >> 5) & 0x07e0) | ((c >> 3) & 0x001f));
+        }
+    }
+
+    // A photo-like frame: smooth gradients with sensor noise on top
+    private static short[] makeFrame(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] row = new int[width];
+        short[] frame = new short[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(16) - 8;
+                int r = clamp(255 * x / width + noise);
+                int g = clamp(255 * y / height + noise);
+                int b = clamp(128 + (int) (100 * Math.sin((x + y) / 50.0)) + noise);
+                row[x] = (r << 16) | (g << 8) | b;
+            }
+            setPixels(row, frame, y * width, width);
+        }
+        return frame;
+    }
+
+    private static int clamp(int v) {
+        return Math.max(0, Math.min(255, v));
+    }
+
+    private static long heapUsed(boolean peak) {
+        long total = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                total += peak ? pool.getPeakUsage().getUsed() : pool.getUsage().getUsed();
+        }
+        return total;
+    }
+
+    private static void resetPeaks() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+        }
+    }
+
+    public static void main(String[] args) {
+        BandScaler bands = new BandScaler();
+        System.out.println("photo     frame       scale  method   ms/MP    peak heap KB");
+
+        for (int[] photo : PHOTOS) {
+            int width = photo[0] / DECODER_SAMPLE;
+            int height = photo[1] / DECODER_SAMPLE;
+            short[] frame = makeFrame(width, height, 1L);
+            double megapixels = width * height / 1e6;
+
+            for (int scale = 2; scale <= 5; scale++) {
+                for (int whole = 0; whole < 2; whole++) {
+                    // Warm up, then keep the best of a few runs
+                    long best = Long.MAX_VALUE;
+                    for (int run = 0; run < RUNS + 2; run++) {
+                        long start = System.nanoTime();
+                        if (whole == 1)
+                            downscaleWhole(frame, width, height, scale);
+                        else
+                            bands.downscale(frame, width, height, scale);
+                        long elapsed = System.nanoTime() - start;
+                        if (run >= 2)
+                            best = Math.min(best, elapsed);
+                    }
+
+                    // Heap from a fresh start, so the band buffers count
+                    bands = new BandScaler();
+                    resetPeaks();
+                    long baseline = heapUsed(false);
+                    short[] result = (whole == 1)
+                        ? downscaleWhole(frame, width, height, scale)
+                        : bands.downscale(frame, width, height, scale);
+                    long peak = heapUsed(true) - baseline;
+                    if (result.length != (width / scale) * (height / scale))
+                        throw new AssertionError("wrong output size");
+
+                    System.out.println(String.format("%4.1f MP  %4dx%-4d  %5d  %-7s %6.2f  %10d",
+                                                     photo[0] * photo[1] / 1e6, width, height, scale,
+                                                     whole == 1 ? "whole" : "bands",
+                                                     best / 1e6 / megapixels, peak / 1024));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+// Microbenchmark of the app's Iso8601 timestamp formatter against the
+// SimpleDateFormat it replaced, on a desktop JVM:
+//
+//   javac -d /tmp/iso android/src/gov/nasa/arc/geocam/geocam/Iso8601.java scripts/Iso8601Benchmark.java
+//   java -cp /tmp/iso Iso8601Benchmark [threads]
+//
+// First checks that both give the same text for a spread of timestamps,
+// then times formatting one GPS fix per second (as a track would) into a
+// Writer, on one thread and then on several.  The SimpleDateFormat runs
+// have to synchronize on the shared instance to give correct output; the
+// old code didn't, which is the bug being fixed.
+
+import gov.nasa.arc.geocam.geocam.Iso8601;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+public class Iso8601Benchmark {
+    private static final int POINTS = 2000000;
+    private static final long START = 1287322426000L; // 2010-10-17
+
+    private static final SimpleDateFormat FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    static {
+        FORMAT.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    // Discards what it is given, so only the formatting is timed
+    private static class NullWriter extends Writer {
+        long count = 0;
+        public void write(char[] c, int off, int len) { count += len; }
+        public void write(String s) { count += s.length(); }
+        public void flush() { }
+        public void close() { }
+    }
+
+    private interface Formatter {
+        void format(long time, Writer out) throws IOException;
+    }
+
+    private static final Formatter OLD = new Formatter() {
+        public void format(long time, Writer out) throws IOException {
+            String s;
+            synchronized (FORMAT) {
+                s = FORMAT.format(new Date(time));
+            }
+            out.write(s);
+        }
+    };
+
+    private static final Formatter NEW = new Formatter() {
+        public void format(long time, Writer out) throws IOException {
+            Iso8601.format(time, out);
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+
+        check();
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + (round + 1));
+            report("  SimpleDateFormat, 1 thread", OLD, 1);
+            report("  Iso8601,          1 thread", NEW, 1);
+            report("  SimpleDateFormat, " + threads + " threads", OLD, threads);
+            report("  Iso8601,          " + threads + " threads", NEW, threads);
+        }
+    }
+
+    private static void check() {
+        Random random = new Random(42);
+        char[] buf = new char[Iso8601.LENGTH];
+        for (int i = 0; i < 1000000; i++) {
+            // 1900 to 2100, and each side of midnight
+            long time = (long) ((random.nextDouble() * 200 - 70) * 365.25 * 86400000L);
+            if (i % 2 == 1)
+                time = time / 86400000L * 86400000L - (i % 4);
+            String expected = FORMAT.format(new Date(time));
+            Iso8601.format(time, buf, 0);
+            if (!expected.equals(new String(buf)) || !expected.equals(Iso8601.format(time)))
+                throw new AssertionError(time + ": " + expected + " != " + new String(buf));
+        }
+        System.out.println("1000000 random timestamps match SimpleDateFormat");
+    }
+
+    private static void report(String name, final Formatter formatter, int threadCount) throws Exception {
+        System.gc();
+        final long[] allocated = new long[threadCount];
+        Thread[] workers = new Thread[threadCount];
+        long start = System.nanoTime();
+        for (int t = 0; t < threadCount; t++) {
+            final int index = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    long before = allocatedBytes();
+                    NullWriter out = new NullWriter();
+                    try {
+                        for (int i = 0; i < POINTS; i++)
+                            formatter.format(START + i * 1000L + index, out);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    allocated[index] = allocatedBytes() - before;
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        long nanos = System.nanoTime() - start;
+
+        long total = 0;
+        for (long a : allocated)
+            total += a;
+        long calls = (long) POINTS * threadCount;
+        System.out.printf("%s: %6.1f ns/call, %5.1f bytes allocated/call%n",
+                          name, (double) nanos / calls, (double) total / calls);
+    }
+
+    // Bytes the current thread has allocated, where the JVM can tell us
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+        return 0;
+    }
+}
@@ -0,0 +1,316 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+// Replays recorded fixes through the app's GPS fix filters on a desktop JVM:
+//
+//   S=android/src/gov/nasa/arc/geocam/geocam
+//   javac -d /tmp/filter $S/LocationFilter.java $S/FixGates.java $S/KalmanLocationFilter.java scripts/LocationFilterReplay.java
+//   java -cp /tmp/filter LocationFilterReplay [-o filtered.gpx] [track.gpx ...]
+//
+// Each GPX file (android/example.gpx by default) is run through the same
+// chain GeoCamService uses, with the same settings.  Fixes take their
+// accuracy from <hdop> (times 5 meters) where there is one, or 10 meters.
+// With -o the fixes let through are written out as GPX, to compare with
+// the original on a map.
+//
+// Then a synthetic hour at 2 fixes a second, a walk with drifting GPS
+// error, a few multipath spikes and a bad cold start, is run through, to
+// show how many bad fixes are caught, how many good ones are lost, and how
+// much closer to the true path the filtered fixes are.  Both report the
+// time per fix.
+
+import gov.nasa.arc.geocam.geocam.FixGates;
+import gov.nasa.arc.geocam.geocam.KalmanLocationFilter;
+import gov.nasa.arc.geocam.geocam.LocationFilter;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class LocationFilterReplay {
+    // As in GeoCamMobile
+    private static final float FIX_MAX_ACCURACY_METERS = 100;
+    private static final double FIX_MAX_SPEED_METERS_PER_SEC = 70;
+    private static final int FIX_MAX_DROPPED = 3;
+    private static final double FIX_ACCELERATION_NOISE = 5;
+    private static final double FIX_GATE_SIGMAS = 5;
+    private static final long FIX_MAX_GAP_MSECS = 60000;
+
+    private static final String[] STAGES = { "accuracy gate", "speed gate", "Kalman gate" };
+
+    private static final double METERS_PER_DEGREE = 6371009.0 * Math.PI / 180;
+    private static final float DEFAULT_ACCURACY = 10;
+
+    private static final Pattern TRKPT = Pattern.compile(
+        "<trkpt\\s+lat=\"([-0-9.]+)\"\\s+lon=\"([-0-9.]+)\"(.*?)</trkpt>", Pattern.DOTALL);
+    private static final Pattern TIME = Pattern.compile("<time>([^<]+)</time>");
+    private static final Pattern HDOP = Pattern.compile("<hdop>([^<]+)</hdop>");
+
+    private static class Fixes {
+        double[] lat;
+        double[] lon;
+        float[] accuracy;
+        long[] time;
+        boolean[] spike;
+
+        Fixes(int n) {
+            lat = new double[n];
+            lon = new double[n];
+            accuracy = new float[n];
+            time = new long[n];
+            spike = new boolean[n];
+        }
+
+        int size() {
+            return lat.length;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String output = null;
+        List<String> files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o"))
+                output = args[++i];
+            else
+                files.add(args[i]);
+        }
+        if (files.isEmpty())
+            files.add("android/example.gpx");
+
+        for (String file : files) {
+            Fixes fixes = readGpx(file);
+            System.out.println(file + ": " + fixes.size() + " fixes");
+            Fixes filtered = replay(fixes, null);
+            if (output != null) {
+                writeGpx(filtered, output);
+                System.out.println("  wrote " + output);
+            }
+        }
+
+        System.out.println("synthetic hour at 2 fixes/s:");
+        Fixes truth = new Fixes(2 * 60 * 60);
+        Fixes fixes = makeHour(truth);
+        replay(fixes, truth);
+    }
+
+    private static LocationFilter.Chain newChain() {
+        return new LocationFilter.Chain(
+            new FixGates.Accuracy(FIX_MAX_ACCURACY_METERS),
+            new FixGates.Speed(FIX_MAX_SPEED_METERS_PER_SEC, FIX_MAX_DROPPED),
+            new KalmanLocationFilter(FIX_ACCELERATION_NOISE, FIX_GATE_SIGMAS,
+                                     FIX_MAX_DROPPED, FIX_MAX_GAP_MSECS));
+    }
+
+    // Run the fixes through a new chain and report on it.  If truth is
+    // given, also how far the raw and filtered fixes are from it.
+    private static Fixes replay(Fixes fixes, Fixes truth) {
+        int n = fixes.size();
+        LocationFilter.Chain chain = newChain();
+        LocationFilter.Fix fix = new LocationFilter.Fix();
+        List<Integer> kept = new ArrayList<Integer>();
+        Fixes out = new Fixes(n);
+        double shift = 0;
+        double rawError = 0;
+        double filteredError = 0;
+        int spikes = 0;
+        int spikesDropped = 0;
+        int goodDropped = 0;
+        for (int i = 0; i < n; i++) {
+            fix.set(fixes.lat[i], fixes.lon[i], fixes.accuracy[i], fixes.time[i]);
+            boolean keep = chain.filter(fix);
+            if (fixes.spike[i]) {
+                spikes++;
+                if (!keep)
+                    spikesDropped++;
+            } else if (!keep) {
+                goodDropped++;
+            }
+            if (!keep)
+                continue;
+            int k = kept.size();
+            kept.add(i);
+            out.lat[k] = fix.latitude;
+            out.lon[k] = fix.longitude;
+            out.accuracy[k] = fix.accuracy;
+            out.time[k] = fix.time;
+            shift += distance(fixes.lat[i], fixes.lon[i], fix.latitude, fix.longitude);
+            if (truth != null) {
+                rawError += distance(truth.lat[i], truth.lon[i], fixes.lat[i], fixes.lon[i]);
+                filteredError += distance(truth.lat[i], truth.lon[i], fix.latitude, fix.longitude);
+            }
+        }
+        Fixes filtered = truncate(out, kept.size());
+
+        for (int s = 0; s < STAGES.length; s++)
+            System.out.printf("  dropped by %-13s %6d%n", STAGES[s] + ":", chain.getDropped(s));
+        System.out.printf("  kept %d, moved %.2f m on average by smoothing%n",
+                          kept.size(), shift / Math.max(1, kept.size()));
+        System.out.printf("  path length %.0f m raw, %.0f m filtered%n",
+                          pathLength(fixes), pathLength(filtered));
+        if (truth != null) {
+            System.out.printf("  dropped %d of %d bad fixes, and %d good ones%n",
+                              spikesDropped, spikes, goodDropped);
+            System.out.printf("  mean distance from the true path: %.2f m raw, %.2f m filtered%n",
+                              rawError / kept.size(), filteredError / kept.size());
+        }
+
+        // time it
+        int rounds = Math.max(1, 2000000 / n);
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            chain = newChain();
+            for (int i = 0; i < n; i++) {
+                fix.set(fixes.lat[i], fixes.lon[i], fixes.accuracy[i], fixes.time[i]);
+                chain.filter(fix);
+            }
+        }
+        System.out.printf("  %.1f ns/fix%n", (System.nanoTime() - start) / ((double) rounds * n));
+        return filtered;
+    }
+
+    // A walk at 1.4 m/s that turns now and then, sampled at 2 Hz, with
+    // error of a few meters that drifts plus a meter or two of jitter,
+    // about 20 multipath spikes of 50 to 300 meters, and a cold start that
+    // is 500 meters off for 5 seconds
+    private static Fixes makeHour(Fixes truth) {
+        int n = truth.size();
+        Fixes fixes = new Fixes(n);
+        Random random = new Random(42);
+        double lat0 = 37.4196;
+        double lon0 = -122.0639;
+        double scale = Math.cos(Math.toRadians(lat0)) * METERS_PER_DEGREE;
+        double x = 0, y = 0;
+        double heading = 0;
+        double errorX = 0, errorY = 0;
+        long start = 1271094840000L;
+        for (int i = 0; i < n; i++) {
+            if (random.nextInt(120) == 0)
+                heading += (random.nextDouble() - 0.5) * Math.PI;
+            x += 0.7 * Math.sin(heading);
+            y += 0.7 * Math.cos(heading);
+            truth.lat[i] = lat0 + y / METERS_PER_DEGREE;
+            truth.lon[i] = lon0 + x / scale;
+            truth.time[i] = start + i * 500L;
+
+            errorX = 0.99 * errorX + 0.3 * random.nextGaussian();
+            errorY = 0.99 * errorY + 0.3 * random.nextGaussian();
+            double ex = errorX, ey = errorY;
+            float accuracy = 5 + (float) Math.abs(random.nextGaussian());
+            // white jitter on top of the drift
+            ex += 1.5 * random.nextGaussian();
+            ey += 1.5 * random.nextGaussian();
+            if (i < 10) {
+                ex += 500;
+                accuracy = 30;
+                fixes.spike[i] = true;
+            } else if (random.nextInt(n / 20) == 0) {
+                double spike = 50 + 250 * random.nextDouble();
+                double angle = 2 * Math.PI * random.nextDouble();
+                ex += spike * Math.sin(angle);
+                ey += spike * Math.cos(angle);
+                fixes.spike[i] = true;
+            }
+            fixes.lat[i] = truth.lat[i] + ey / METERS_PER_DEGREE;
+            fixes.lon[i] = truth.lon[i] + ex / scale;
+            fixes.accuracy[i] = accuracy;
+            fixes.time[i] = truth.time[i];
+        }
+        return fixes;
+    }
+
+    private static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double dy = (lat2 - lat1) * METERS_PER_DEGREE;
+        double dx = (lon2 - lon1) * METERS_PER_DEGREE * Math.cos(Math.toRadians(lat1));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static double pathLength(Fixes fixes) {
+        double length = 0;
+        for (int i = 1; i < fixes.size(); i++)
+            length += distance(fixes.lat[i - 1], fixes.lon[i - 1], fixes.lat[i], fixes.lon[i]);
+        return length;
+    }
+
+    private static Fixes truncate(Fixes fixes, int n) {
+        Fixes result = new Fixes(n);
+        System.arraycopy(fixes.lat, 0, result.lat, 0, n);
+        System.arraycopy(fixes.lon, 0, result.lon, 0, n);
+        System.arraycopy(fixes.accuracy, 0, result.accuracy, 0, n);
+        System.arraycopy(fixes.time, 0, result.time, 0, n);
+        return result;
+    }
+
+    private static Fixes readGpx(String file) throws IOException, ParseException {
+        StringBuilder text = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine())
+                text.append(line).append('\n');
+        } finally {
+            reader.close();
+        }
+
+        List<double[]> points = new ArrayList<double[]>();
+        Matcher m = TRKPT.matcher(text);
+        while (m.find()) {
+            Matcher time = TIME.matcher(m.group(3));
+            Matcher hdop = HDOP.matcher(m.group(3));
+            points.add(new double[] {
+                Double.parseDouble(m.group(1)),
+                Double.parseDouble(m.group(2)),
+                hdop.find() ? 5 * Double.parseDouble(hdop.group(1)) : DEFAULT_ACCURACY,
+                time.find() ? parseTime(time.group(1)) : 1000L * points.size(),
+            });
+        }
+
+        Fixes fixes = new Fixes(points.size());
+        for (int i = 0; i < points.size(); i++) {
+            double[] p = points.get(i);
+            fixes.lat[i] = p[0];
+            fixes.lon[i] = p[1];
+            fixes.accuracy[i] = (float) p[2];
+            fixes.time[i] = (long) p[3];
+        }
+        return fixes;
+    }
+
+    private static long parseTime(String text) throws ParseException {
+        String pattern = text.contains(".") ? "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'" : "yyyy-MM-dd'T'HH:mm:ss'Z'";
+        SimpleDateFormat format = new SimpleDateFormat(pattern);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.parse(text.trim()).getTime();
+    }
+
+    private static void writeGpx(Fixes fixes, String file) throws IOException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+            out.println("<gpx version=\"1.1\" creator=\"LocationFilterReplay\" xmlns=\"http://www.topografix.com/GPX/1/1\">");
+            out.println("<trk><trkseg>");
+            for (int i = 0; i < fixes.size(); i++) {
+                out.printf("<trkpt lat=\"%.7f\" lon=\"%.7f\"><time>%s</time></trkpt>%n",
+                           fixes.lat[i], fixes.lon[i], format.format(new java.util.Date(fixes.time[i])));
+            }
+            out.println("</trkseg></trk>");
+            out.println("</gpx>");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+// Size and speed of the app's TrackSegmentCodec, on a desktop JVM:
+//
+//   javac -d /tmp/codec android/src/gov/nasa/arc/geocam/geocam/TrackSegmentCodec.java scripts/TrackSegmentCodecBenchmark.java
+//   java -cp /tmp/codec TrackSegmentCodecBenchmark
+//
+// Packs a day of recording at one fix a second, walking at 1.4 m/s with
+// a wandering GPS error and altitude, and the same at one fix every five
+// seconds.  For each we report bytes per point, encode and decode time
+// per point, and the largest error in position and altitude after the
+// round trip.  It also checks a segment that crosses the antimeridian.
+
+import gov.nasa.arc.geocam.geocam.TrackSegmentCodec;
+
+import java.io.IOException;
+import java.util.Random;
+
+public class TrackSegmentCodecBenchmark {
+    private static final int DAY_SECS = 24 * 60 * 60;
+    private static final double WALK_METERS_PER_SEC = 1.4;
+    private static final double METERS_PER_DEGREE = 6371009.0 * Math.PI / 180;
+    private static final int RUNS = 20;
+
+    public static void main(String[] args) throws IOException {
+        report("1 s fixes", makeDay(37.41, -122.06, 1000));
+        report("5 s fixes", makeDay(37.41, -122.06, 5000));
+        report("antimeridian", makeDay(-16.5, 179.99, 1000));
+    }
+
+    private static void report(String name, double[][] day) throws IOException {
+        int n = day[0].length;
+        long[] time = new long[n];
+        for (int i = 0; i < n; i++)
+            time[i] = (long) day[3][i];
+
+        byte[] data = null;
+        long start = System.nanoTime();
+        for (int run = 0; run < RUNS; run++) {
+            TrackSegmentCodec.Encoder encoder = new TrackSegmentCodec.Encoder();
+            for (int i = 0; i < n; i++)
+                encoder.add(day[0][i], day[1][i], day[2][i], time[i]);
+            data = encoder.toByteArray();
+        }
+        double encodeNanos = (System.nanoTime() - start) / (double) RUNS / n;
+
+        double sum = 0;
+        start = System.nanoTime();
+        for (int run = 0; run < RUNS; run++) {
+            TrackSegmentCodec.Decoder points = new TrackSegmentCodec.Decoder(data);
+            while (points.next())
+                sum += points.latitude + points.longitude;
+        }
+        double decodeNanos = (System.nanoTime() - start) / (double) RUNS / n;
+
+        double maxMeters = 0;
+        double maxAltitude = 0;
+        TrackSegmentCodec.Decoder points = new TrackSegmentCodec.Decoder(data);
+        int i = 0;
+        while (points.next()) {
+            if (points.time != time[i])
+                throw new AssertionError("time " + i);
+            double dy = (points.latitude - day[0][i]) * METERS_PER_DEGREE;
+            double dx = (points.longitude - day[1][i]) * METERS_PER_DEGREE
+                * Math.cos(Math.toRadians(day[0][i]));
+            maxMeters = Math.max(maxMeters, Math.hypot(dx, dy));
+            maxAltitude = Math.max(maxAltitude, Math.abs(points.altitude - day[2][i]));
+            i++;
+        }
+        if (i != n || points.getCount() != n)
+            throw new AssertionError("count " + i);
+
+        System.out.printf("%-13s %6d points, %8d bytes, %.2f bytes/point, encode %.0f ns/point, "
+                          + "decode %.0f ns/point, max error %.4f m, %.3f m altitude (%s)%n",
+                          name, n, data.length, data.length / (double) n, encodeNanos, decodeNanos,
+                          maxMeters, maxAltitude, (sum != 0) ? "ok" : "?");
+    }
+
+    // A day's walk in random directions, one fix every intervalMsecs,
+    // with an error that drifts a few meters the way GPS error does
+    private static double[][] makeDay(double lat0, double lon0, long intervalMsecs) {
+        int n = (int) (DAY_SECS * 1000L / intervalMsecs);
+        double[][] day = new double[4][n];
+        Random random = new Random(42);
+        double scale = Math.cos(Math.toRadians(lat0)) * METERS_PER_DEGREE;
+        double x = 0, y = 0, heading = 0;
+        double errorX = 0, errorY = 0, altitude = 30;
+        long time = 1262304000000L;
+        double step = WALK_METERS_PER_SEC * intervalMsecs / 1000.0;
+        for (int i = 0; i < n; i++) {
+            heading += 0.2 * random.nextGaussian();
+            x += step * Math.sin(heading);
+            y += step * Math.cos(heading);
+            errorX = 0.98 * errorX + 0.3 * random.nextGaussian();
+            errorY = 0.98 * errorY + 0.3 * random.nextGaussian();
+            altitude += 0.5 * random.nextGaussian();
+
+            day[0][i] = lat0 + (y + errorY) / METERS_PER_DEGREE;
+            double lon = lon0 + (x + errorX) / scale;
+            day[1][i] = (lon > 180) ? lon - 360 : (lon < -180) ? lon + 360 : lon;
+            day[2][i] = altitude;
+            day[3][i] = time + i * intervalMsecs + random.nextInt(20);
+        }
+        return day;
+    }
+}
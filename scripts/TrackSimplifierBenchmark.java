@@ -0,0 +1,184 @@
+// __BEGIN_LICENSE__
+// Copyright (C) 2008-2010 United States Government as represented by
+// the Administrator of the National Aeronautics and Space Administration.
+// All Rights Reserved.
+// __END_LICENSE__
+
+// Points kept against error for the app's TrackSimplifier, on a desktop JVM:
+//
+//   javac -d /tmp/simplify android/src/gov/nasa/arc/geocam/geocam/TrackSimplifier.java scripts/TrackSimplifierBenchmark.java
+//   java -cp /tmp/simplify TrackSimplifierBenchmark [track.gpx ...]
+//
+// Each GPX file given (android/example.gpx by default) is simplified at a
+// range of tolerances, and so is a day of recording made from it: its
+// path walked over and over at 1.4 m/s, one fix a second as
+// POS_UPDATE_MSECS_RECORDING gives, with a wandering GPS error added.
+// For each tolerance we report the points kept, the largest and mean
+// distance from a recorded point to the line kept, and the time per
+// point.  The day is also simplified with one window as big as the track,
+// to show what the bounded window costs in extra points.
+
+import gov.nasa.arc.geocam.geocam.TrackSimplifier;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class TrackSimplifierBenchmark {
+    private static final double[] TOLERANCES = { 0.5, 1, 2, 5, 10, 20 };
+    private static final int DAY_SECS = 24 * 60 * 60;
+    private static final double WALK_METERS_PER_SEC = 1.4;
+    private static final double METERS_PER_DEGREE = 6371009.0 * Math.PI / 180;
+
+    private static final Pattern TRKPT = Pattern.compile("<trkpt\\s+lat=\"([-0-9.]+)\"\\s+lon=\"([-0-9.]+)\"");
+
+    // Points kept, in order, and which recorded point each one is
+    private static class Collector implements TrackSimplifier.Sink {
+        final List<Integer> kept = new ArrayList<Integer>();
+
+        public void point(double lat, double lon, double alt, long time) {
+            kept.add((int) time);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0)
+            args = new String[] { "android/example.gpx" };
+
+        for (String file : args) {
+            double[][] track = readGpx(file);
+            System.out.println(file + ": " + track[0].length + " points");
+            report(track, TrackSimplifier.DEFAULT_WINDOW);
+
+            double[][] day = makeDay(track);
+            System.out.println(file + ", a day at 1 fix/s: " + day[0].length + " points");
+            report(day, TrackSimplifier.DEFAULT_WINDOW);
+            System.out.println(file + ", a day in one window:");
+            report(day, day[0].length);
+        }
+    }
+
+    private static void report(double[][] track, int window) throws IOException {
+        double[] lat = track[0];
+        double[] lon = track[1];
+        int n = lat.length;
+        System.out.println("  tolerance     kept           max error  mean error      ns/point");
+        for (double tolerance : TOLERANCES) {
+            Collector collector = simplify(lat, lon, tolerance, window);
+
+            // time the same work a few more times, without collecting
+            long start = System.nanoTime();
+            int rounds = Math.max(1, 2000000 / n);
+            for (int r = 0; r < rounds; r++)
+                simplify(lat, lon, tolerance, window);
+            double nsPerPoint = (System.nanoTime() - start) / ((double) rounds * n);
+
+            List<Integer> kept = collector.kept;
+            double maxError = 0;
+            double sumError = 0;
+            for (int k = 0; k + 1 < kept.size(); k++) {
+                int a = kept.get(k);
+                int b = kept.get(k + 1);
+                for (int i = a + 1; i < b; i++) {
+                    double error = distance(lat, lon, i, a, b);
+                    maxError = Math.max(maxError, error);
+                    sumError += error;
+                }
+            }
+            System.out.printf("  %6.1f m  %7d (%5.1f%%)  %8.2f m  %8.2f m  %10.1f%n",
+                              tolerance, kept.size(), 100.0 * kept.size() / n,
+                              maxError, sumError / n, nsPerPoint);
+            if (maxError > tolerance + 1e-6)
+                throw new AssertionError("error " + maxError + " over tolerance " + tolerance);
+        }
+    }
+
+    private static Collector simplify(double[] lat, double[] lon, double tolerance, int window)
+        throws IOException {
+        Collector collector = new Collector();
+        TrackSimplifier simplifier = new TrackSimplifier(tolerance, window, collector);
+        for (int i = 0; i < lat.length; i++)
+            simplifier.add(lat[i], lon[i], 0, i);
+        simplifier.finish();
+        return collector;
+    }
+
+    // Distance in meters from point i to the segment from a to b, on the
+    // same flat projection TrackSimplifier uses
+    private static double distance(double[] lat, double[] lon, int i, int a, int b) {
+        double scale = Math.cos(Math.toRadians(lat[0])) * METERS_PER_DEGREE;
+        double dx = (lon[b] - lon[a]) * scale;
+        double dy = (lat[b] - lat[a]) * METERS_PER_DEGREE;
+        double px = (lon[i] - lon[a]) * scale;
+        double py = (lat[i] - lat[a]) * METERS_PER_DEGREE;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = (lengthSquared > 0) ? Math.max(0, Math.min(1, (px * dx + py * dy) / lengthSquared)) : 0;
+        return Math.hypot(px - t * dx, py - t * dy);
+    }
+
+    private static double[][] readGpx(String file) throws IOException {
+        List<double[]> points = new ArrayList<double[]>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                Matcher m = TRKPT.matcher(line);
+                while (m.find())
+                    points.add(new double[] { Double.parseDouble(m.group(1)), Double.parseDouble(m.group(2)) });
+            }
+        } finally {
+            reader.close();
+        }
+        double[][] track = new double[2][points.size()];
+        for (int i = 0; i < points.size(); i++) {
+            track[0][i] = points.get(i)[0];
+            track[1][i] = points.get(i)[1];
+        }
+        return track;
+    }
+
+    // Walk the track's path back and forth for a day, one fix a second,
+    // with an error that drifts a few meters the way GPS error does
+    private static double[][] makeDay(double[][] path) {
+        double[] lat = new double[DAY_SECS];
+        double[] lon = new double[DAY_SECS];
+        double scale = Math.cos(Math.toRadians(path[0][0])) * METERS_PER_DEGREE;
+        Random random = new Random(42);
+        double errorX = 0;
+        double errorY = 0;
+
+        int leg = 0;
+        int step = 1;
+        double along = 0;
+        for (int i = 0; i < DAY_SECS; i++) {
+            int from = leg;
+            int to = leg + step;
+            double legX = (path[1][to] - path[1][from]) * scale;
+            double legY = (path[0][to] - path[0][from]) * METERS_PER_DEGREE;
+            double legLength = Math.hypot(legX, legY);
+            while (along >= legLength) {
+                along -= legLength;
+                leg = to;
+                if (leg + step < 0 || leg + step >= path[0].length)
+                    step = -step;
+                from = leg;
+                to = leg + step;
+                legX = (path[1][to] - path[1][from]) * scale;
+                legY = (path[0][to] - path[0][from]) * METERS_PER_DEGREE;
+                legLength = Math.hypot(legX, legY);
+            }
+            double f = (legLength > 0) ? along / legLength : 0;
+
+            errorX = 0.98 * errorX + 0.3 * random.nextGaussian();
+            errorY = 0.98 * errorY + 0.3 * random.nextGaussian();
+            lat[i] = path[0][from] + (f * legY + errorY) / METERS_PER_DEGREE;
+            lon[i] = path[1][from] + (f * legX + errorX) / scale;
+            along += WALK_METERS_PER_SEC;
+        }
+        return new double[][] { lat, lon };
+    }
+}
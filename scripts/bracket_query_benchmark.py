@@ -0,0 +1,159 @@
+#!/usr/bin/env python3
+# __BEGIN_LICENSE__
+# Copyright (C) 2008-2010 United States Government as represented by
+# the Administrator of the National Aeronautics and Space Administration.
+# All Rights Reserved.
+# __END_LICENSE__
+
+"""
+Geotag latency of GpsDbAdapter.getBoundingLocations against a big points
+table, before and after the version 3 indexes:
+
+  ./bracket_query_benchmark.py [--rows 10000000] [--lookups 1000] [--db /tmp/points.db]
+
+Builds a gps.db points table (version 2 schema) of --rows fixes, one a
+second with one in ten in a track, as months of logging would leave it.
+Then times photo lookups at random times three ways:
+
+  old      the two ORDER BY/LIMIT queries the app used to run, no indexes
+  upgrade  creating the two indexes, as onUpgrade to version 3 does
+  new      the single UNION ALL bracket query the app runs now, indexed
+
+The database is left at --db, so later runs skip the build; delete it to
+start over.  Each lookup's result is checked against the other way.
+"""
+
+import argparse
+import os
+import random
+import sqlite3
+import statistics
+import time
+
+START = 1262304000000  # 2010-01-01, msecs
+
+CREATE_POINTS = """
+create table points (
+    _id integer primary key autoincrement,
+    latitude real not null,
+    longitude real not null,
+    altitude real not null,
+    orientation real,
+    acquired integer not null,
+    provider text not null,
+    track_id integer default null,
+    track_segment integer default 0)
+"""
+
+SELECT = "select latitude, longitude, altitude, acquired, provider from points"
+
+OLD_PREVIOUS = SELECT + " where acquired <= ? order by acquired desc limit ?"
+OLD_NEXT = SELECT + " where acquired > ? order by acquired asc limit ?"
+
+NEW_BRACKET = (
+    "select * from (" + SELECT + " where acquired <= ? order by acquired desc limit ?)"
+    " union all "
+    "select * from (" + SELECT + " where acquired > ? order by acquired asc limit ?)")
+
+CREATE_INDEXES = [
+    "create index if not exists points_acquired_idx on points (acquired)",
+    "create index if not exists points_track_acquired_idx on points (track_id, acquired)",
+]
+
+
+def build(db, rows):
+    print("building %d points..." % rows, flush=True)
+    started = time.time()
+    db.execute(CREATE_POINTS)
+    random.seed(42)
+
+    def points():
+        lat, lon = 37.41, -122.06
+        for i in range(rows):
+            lat += random.gauss(0, 1e-5)
+            lon += random.gauss(0, 1e-5)
+            track = (i // 3600) if (i // 3600) % 10 == 0 else None
+            yield (lat, lon, 30.0, START + i * 1000, "gps", track, 0)
+
+    db.executemany("insert into points (latitude, longitude, altitude, acquired, provider,"
+                   " track_id, track_segment) values (?, ?, ?, ?, ?, ?, ?)", points())
+    db.commit()
+    print("  %.0f s, %.0f MB" % (time.time() - started, os.path.getsize(args.db) / 1e6))
+
+
+def has_indexes(db):
+    return db.execute("select count(*) from sqlite_master where type = 'index'"
+                      " and name = 'points_acquired_idx'").fetchone()[0] > 0
+
+
+def lookup_old(db, t, bracket):
+    return (db.execute(OLD_PREVIOUS, (t, bracket)).fetchall()
+            + db.execute(OLD_NEXT, (t, bracket)).fetchall())
+
+
+def lookup_new(db, t, bracket):
+    return db.execute(NEW_BRACKET, (t, bracket, t, bracket)).fetchall()
+
+
+def report(name, times):
+    times = sorted(times)
+    print("%-8s %5d lookups: median %9.3f ms, 95th %9.3f ms, max %9.3f ms"
+          % (name, len(times), statistics.median(times) * 1000,
+             times[int(len(times) * 0.95) - 1] * 1000 if len(times) >= 20 else times[-1] * 1000,
+             times[-1] * 1000))
+
+
+def main():
+    exists = os.path.exists(args.db)
+    db = sqlite3.connect(args.db)
+    if not exists:
+        build(db, args.rows)
+    rows = db.execute("select max(_id) from points").fetchone()[0]
+    print("points: %d rows" % rows)
+
+    random.seed(7)
+    end = START + rows * 1000
+    photo_times = [random.randrange(START, end) for _ in range(args.lookups)]
+
+    # Unindexed lookups scan the whole table, so only a few are timed
+    expected = {}
+    if has_indexes(db):
+        print("indexes already built, skipping the old lookups and upgrade")
+    else:
+        times = []
+        for t in photo_times[:args.old_lookups]:
+            started = time.perf_counter()
+            expected[t] = lookup_old(db, t, args.bracket)
+            times.append(time.perf_counter() - started)
+        report("old", times)
+
+        started = time.perf_counter()
+        for sql in CREATE_INDEXES:
+            db.execute(sql)
+        db.commit()
+        print("upgrade  %.1f s to build both indexes" % (time.perf_counter() - started))
+
+    times = []
+    for t in photo_times:
+        started = time.perf_counter()
+        result = lookup_new(db, t, args.bracket)
+        times.append(time.perf_counter() - started)
+        if t in expected and result != expected[t]:
+            raise SystemExit("bracket for %d differs: %r != %r" % (t, result, expected[t]))
+    report("new", times)
+
+    plan = db.execute("explain query plan " + NEW_BRACKET, (0, 1, 0, 1)).fetchall()
+    for row in plan:
+        print("  plan: " + row[-1])
+
+
+if __name__ == "__main__":
+    parser = argparse.ArgumentParser(description=__doc__.strip().split("\n")[0])
+    parser.add_argument("--rows", type=int, default=10000000)
+    parser.add_argument("--lookups", type=int, default=1000)
+    parser.add_argument("--old-lookups", type=int, default=10,
+                        help="unindexed lookups to time (each scans the table)")
+    parser.add_argument("--bracket", type=int, default=1)
+    parser.add_argument("--db", default="/tmp/points.db")
+    args = parser.parse_args()
+    main()
@@ -0,0 +1,128 @@
+#!/usr/bin/env python3
+# __BEGIN_LICENSE__
+# Copyright (C) 2008-2010 United States Government as represented by
+# the Administrator of the National Aeronautics and Space Administration.
+# All Rights Reserved.
+# __END_LICENSE__
+
+"""
+Stand-in for the GeoCam Share photo upload views, for testing the phone's
+resumable (chunked) uploads without a real server.  See "Resumable Photo
+Uploads" in docs/protocol.rst.
+
+Point the phone's Server URL at http://<this machine>:8000/share/ and turn
+on "Resumable uploads".  Both the /upload-chunk-m/ and the older
+/upload-chunk/<user>/ URLs are accepted.
+
+  ./resumable_upload_server.py --port 8000 --dir /tmp/uploads --drop 0.3
+
+--drop makes the server hang up on that fraction of chunks before answering,
+which is how you watch the phone resume.
+"""
+
+import argparse
+import email.parser
+import email.policy
+import os
+import random
+import re
+from http.server import HTTPServer, BaseHTTPRequestHandler
+
+CHUNK_URL = re.compile(r'.*/upload-chunk(-m|/[^/]+)/$')
+UPLOAD_URL = re.compile(r'.*/upload(-m|/[^/]+)/$')
+
+
+def parse_multipart(content_type, body):
+    msg = email.parser.BytesParser(policy=email.policy.HTTP).parsebytes(
+        b'Content-Type: ' + content_type.encode('latin-1') + b'\r\n\r\n' + body)
+    fields, files = {}, {}
+    for part in msg.iter_parts():
+        name = part.get_param('name', header='content-disposition')
+        filename = part.get_param('filename', header='content-disposition')
+        data = part.get_payload(decode=True) or b''
+        if filename is None:
+            fields[name] = data.decode('utf-8')
+        else:
+            files[name] = (filename, data)
+    return fields, files
+
+
+class UploadHandler(BaseHTTPRequestHandler):
+    def do_POST(self):
+        length = int(self.headers.get('Content-Length', 0))
+        body = self.rfile.read(length)
+        fields, files = parse_multipart(self.headers['Content-Type'], body)
+
+        if CHUNK_URL.match(self.path):
+            self.handle_chunk(fields, files)
+        elif UPLOAD_URL.match(self.path):
+            filename, data = files['photo']
+            self.store(fields['uuid'], data)
+            self.respond(200, 'GEOCAM_SHARE_POSTED %s\n' % filename)
+        else:
+            self.respond(404, 'not found\n')
+
+    def handle_chunk(self, fields, files):
+        uuid = fields['uuid']
+        offset = int(fields['offset'])
+        total = int(fields['totalSize'])
+        filename, data = files['chunk']
+
+        path = self.partial_path(uuid)
+        held = os.path.getsize(path) if os.path.exists(path) else 0
+        if offset == held:
+            with open(path, 'ab') as f:
+                f.write(data)
+            held += len(data)
+        else:
+            self.log_message('%s: chunk at %d but holding %d, ignored', uuid, offset, held)
+
+        if random.random() < self.server.drop_rate:
+            self.log_message('%s: dropping connection at %d of %d', uuid, held, total)
+            self.close_connection = True
+            return
+
+        response = 'GEOCAM_SHARE_CHUNK %s %d\n' % (uuid, held)
+        if held == total and 'cameraTime' in fields:
+            with open(path, 'rb') as f:
+                self.store(uuid, f.read())
+            os.remove(path)
+            response += 'GEOCAM_SHARE_POSTED %s\n' % filename
+        self.respond(200, response)
+
+    def partial_path(self, uuid):
+        return os.path.join(self.server.upload_dir, uuid + '.part')
+
+    def store(self, uuid, data):
+        path = os.path.join(self.server.upload_dir, uuid + '.jpg')
+        with open(path, 'wb') as f:
+            f.write(data)
+        self.log_message('%s: stored %d bytes', uuid, len(data))
+
+    def respond(self, status, text):
+        payload = text.encode('utf-8')
+        self.send_response(status)
+        self.send_header('Content-Type', 'text/plain')
+        self.send_header('Content-Length', str(len(payload)))
+        self.end_headers()
+        self.wfile.write(payload)
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__,
+                                     formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument('--port', type=int, default=8000)
+    parser.add_argument('--dir', default='uploads')
+    parser.add_argument('--drop', type=float, default=0.0,
+                        help='fraction of chunks to hang up on before answering')
+    args = parser.parse_args()
+
+    os.makedirs(args.dir, exist_ok=True)
+    server = HTTPServer(('', args.port), UploadHandler)
+    server.upload_dir = args.dir
+    server.drop_rate = args.drop
+    server.serve_forever()
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,128 @@
+#!/usr/bin/env python3
+# __BEGIN_LICENSE__
+# Copyright (C) 2008-2010 United States Government as represented by
+# the Administrator of the National Aeronautics and Space Administration.
+# All Rights Reserved.
+# __END_LICENSE__
+
+"""
+TCP proxy that slows the phone's uploads down to a given rate and adds
+latency, for checking the phone's link estimate (ThroughputEstimator) and
+the photo sizes it picks against a known link.
+
+  ./throttle_proxy.py --listen 8001 --target geocamshare.org:80 --rate 20 --delay 300
+
+then set the phone's Server URL to http://<this machine>:8001/share/ and
+watch "adb logcat -s ThroughputEstimator" -- after a few photos the KB/s
+estimate should settle near --rate and the rtt near twice --delay plus
+the server's own response time.  Works with resumable_upload_server.py as
+the target.
+"""
+
+import argparse
+import asyncio
+import time
+
+READ_BYTES = 4096
+
+
+class Bucket:
+    """Token bucket shared by all connections in one direction."""
+
+    def __init__(self, bytes_per_sec):
+        self.rate = bytes_per_sec
+        self.allowance = 0.0
+        self.last = time.monotonic()
+
+    async def take(self, count):
+        if self.rate <= 0:
+            return
+        while True:
+            now = time.monotonic()
+            # Allow at most a quarter second of burst, but always enough
+            # for one read or slow rates would never get going
+            self.allowance = min(self.allowance + (now - self.last) * self.rate,
+                                 max(self.rate / 4, READ_BYTES))
+            self.last = now
+            if self.allowance >= count:
+                self.allowance -= count
+                return
+            await asyncio.sleep((count - self.allowance) / self.rate)
+
+
+async def pipe(reader, writer, bucket, delay):
+    # Data read at the throttled rate is written delay seconds later, like
+    # a long wire: the latency doesn't slow the transfer down
+    queue = asyncio.Queue()
+
+    async def deliver():
+        try:
+            while True:
+                due, data = await queue.get()
+                if not data:
+                    break
+                wait = due - time.monotonic()
+                if wait > 0:
+                    await asyncio.sleep(wait)
+                writer.write(data)
+                await writer.drain()
+        except ConnectionError:
+            pass
+        finally:
+            writer.close()
+
+    delivering = asyncio.ensure_future(deliver())
+    try:
+        while True:
+            data = await reader.read(READ_BYTES)
+            if not data:
+                break
+            await bucket.take(len(data))
+            queue.put_nowait((time.monotonic() + delay, data))
+    except ConnectionError:
+        pass
+    finally:
+        queue.put_nowait((time.monotonic() + delay, b''))
+        await delivering
+
+
+async def handle(client_reader, client_writer, args, up, down):
+    host, port = args.target.rsplit(':', 1)
+    try:
+        server_reader, server_writer = await asyncio.open_connection(host, int(port))
+    except OSError as e:
+        print('cannot reach %s: %s' % (args.target, e))
+        client_writer.close()
+        return
+    delay = args.delay / 1000.0
+    await asyncio.gather(pipe(client_reader, server_writer, up, delay),
+                         pipe(server_reader, client_writer, down, delay))
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__,
+                                     formatter_class=argparse.RawDescriptionHelpFormatter)
+    parser.add_argument('--listen', type=int, default=8001, help='port to listen on')
+    parser.add_argument('--target', required=True, help='host:port to forward to')
+    parser.add_argument('--rate', type=float, default=20,
+                        help='upload rate in KB/s, 0 for unlimited (default 20)')
+    parser.add_argument('--down-rate', type=float, default=0,
+                        help='download rate in KB/s, 0 for unlimited (default)')
+    parser.add_argument('--delay', type=float, default=0,
+                        help='one-way latency to add in msecs (default 0)')
+    args = parser.parse_args()
+
+    up = Bucket(args.rate * 1024)
+    down = Bucket(args.down_rate * 1024)
+
+    async def serve():
+        server = await asyncio.start_server(lambda r, w: handle(r, w, args, up, down),
+                                            '', args.listen)
+        async with server:
+            await server.serve_forever()
+
+    asyncio.run(serve())
+
+
+if __name__ == '__main__':
+    main()